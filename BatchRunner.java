@@ -0,0 +1,470 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import ij.*;
+import ij.gui.*;
+import ij.io.*;
+import ij.process.*;
+
+/**
+* Command line runner that extracts traces from many stacks without ImageJ's GUI,
+* e.g. on an analysis node overnight. Jobs are listed in a text file, one stack
+* per line, followed by the file with its targets and any parameters:
+*
+*   session1.tif session1-points.txt radius=2 maxima=25 sort=true
+*   session2.tif session2-points.roi value=median matrix=true calibration=cal.txt
+*
+* Targets are read from an ImageJ point selection (.roi) or from a text file with
+* one "x y" pair per line (such as the output of File>Save As>XY Coordinates).
+* Parameters are radius, maxima, sort, value (sum, mean, median or percentile),
+* percentile, matrix (also save the data matrix), binary (also save the traces,
+* and the data matrix if saved, as a compressed TraceFile), band (frame buffer
+* in MB), dff (also compute dF/F with a baseline window of this many frames),
+* baseline (percentile used as dF/F baseline), events (also infer events with
+* EventDetector, for an indicator with this decay time in frames), threshold
+* (smallest event, in noise standard deviations), reference (image to register
+* the frames to, which turns on motion correction), maxshift (largest shift
+* corrected for, in pixels), calibration (also save the SLM mask of the
+* targets), hologram (with a calibration, also save the SLM phase pattern of the
+* targets, computed with up to this many iterations of weighted
+* Gerchberg-Saxton) and sequence (with a calibration, also save a stack of
+* masks: "singles" for one per target, or a file of target groups as read by
+* MaskSequence, one mask per group). Lines starting with # are ignored.
+*
+* Usage: java -cp ij.jar:slm-imaging.jar BatchRunner jobs.txt [-out folder]
+*        [-jobs n] [-threads n]
+*
+* Up to -jobs stacks are processed at the same time, each with -threads
+* extraction threads. Uncompressed TIFFs are streamed through an
+* ExtractionPipeline, so reading overlaps extraction, unless the band cannot
+* hold a few frames for each thread, in which case they are read and extracted
+* in pieces. For every stack, name_traces.csv (and name_dff.csv, name_events.csv,
+* name_shifts.csv, name_matrix.raw, name_traces.trc, name_mask.bmp,
+* name_phase.bmp, name_masks.tif if asked for) are written to the output
+* folder, and the throughput is reported.
+*/
+
+public class BatchRunner {
+
+   private static final String USAGE = "Usage: BatchRunner jobs.txt [-out folder] [-jobs n] [-threads n]";
+
+   // Most frames waiting between the stages of an ExtractionPipeline
+   private static final int QUEUE_FRAMES = 8;
+
+   public static void main(String[] args) {
+      System.setProperty("java.awt.headless", "true");
+      if (args.length < 1 || args[0].startsWith("-"))
+         usage(null);
+
+      // Parse the options
+      String outDir = null;
+      int nJobs = Math.max(1, Runtime.getRuntime().availableProcessors()/4);
+      int nThreads = 0;
+      for (int a = 1; a < args.length; a += 2) {
+         if (!(args[a].equals("-out") || args[a].equals("-jobs") || args[a].equals("-threads")))
+            usage("Unknown option " + args[a]);
+         if (a+1 == args.length)
+            usage("Missing value for " + args[a]);
+         if (args[a].equals("-out"))
+            outDir = args[a+1];
+         else if (args[a].equals("-jobs"))
+            nJobs = count(args[a], args[a+1]);
+         else
+            nThreads = count(args[a], args[a+1]);
+      }
+      if (nThreads < 1)
+         nThreads = Math.max(1, Runtime.getRuntime().availableProcessors()/nJobs);
+
+      java.util.List<Job> jobs;
+      try {
+         jobs = readJobs(args[0], outDir, nThreads);
+      } catch (IOException e) {
+         System.err.println("Error reading job list: " + e.getMessage());
+         System.exit(1);
+         return;
+      }
+
+      // Run them on a bounded pool
+      long start = System.nanoTime();
+      ExecutorService pool = Executors.newFixedThreadPool(nJobs);
+      java.util.List<Future<String>> results = new ArrayList<Future<String>>();
+      for (Job job : jobs)
+         results.add(pool.submit(job));
+      pool.shutdown();
+
+      int failed = 0;
+      for (int j = 0; j < jobs.size(); j++) {
+         try {
+            System.out.println(results.get(j).get());
+         } catch (ExecutionException e) {
+            failed++;
+            System.out.println(jobs.get(j).stackPath + ": FAILED, " + e.getCause());
+         } catch (InterruptedException e) {
+            failed++;
+            break;
+         }
+      }
+      System.out.println(String.format("%d stacks in %.1f s, %d failed", jobs.size(),
+                                       (System.nanoTime()-start)/1e9, failed));
+      System.exit(failed == 0 ? 0 : 1);
+   }
+
+   // Print what was wrong and how to run it, and exit
+   private static void usage(String problem) {
+      if (problem != null)
+         System.err.println(problem);
+      System.err.println(USAGE);
+      System.exit(2);
+   }
+
+   // A positive count given for option
+   private static int count(String option, String value) {
+      try {
+         int n = Integer.parseInt(value);
+         if (n >= 1)
+            return n;
+      } catch (NumberFormatException e) {
+         // Reported below
+      }
+      usage(option + " needs a positive number: " + value);
+      return 0;
+   }
+
+   // Read the list of jobs, one per line
+   static java.util.List<Job> readJobs(String path, String outDir, int nThreads) throws IOException {
+      java.util.List<Job> jobs = new ArrayList<Job>();
+      File listDir = new File(path).getAbsoluteFile().getParentFile();
+      BufferedReader in = new BufferedReader(new FileReader(path));
+      try {
+         String line;
+         while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#"))
+               continue;
+            String[] tokens = line.split("\\s+");
+            if (tokens.length < 2)
+               throw new IOException("Expected a stack and a point list: " + line);
+            Job job = new Job(resolve(listDir, tokens[0]), resolve(listDir, tokens[1]), nThreads);
+            job.outDir = outDir;
+            for (int t = 2; t < tokens.length; t++) {
+               int eq = tokens[t].indexOf('=');
+               if (eq < 0)
+                  throw new IOException("Expected key=value: " + tokens[t]);
+               job.set(tokens[t].substring(0, eq), tokens[t].substring(eq+1), listDir);
+            }
+            jobs.add(job);
+         }
+      } finally {
+         in.close();
+      }
+      return jobs;
+   }
+
+   // Paths in the job list are relative to the list itself
+   private static String resolve(File dir, String path) {
+      File file = new File(path);
+      return file.isAbsolute() ? path : new File(dir, path).getPath();
+   }
+
+   // Read target coordinates from a .roi file or a text file of x y pairs, [x, y][target]
+   static int[][] readPoints(String path) throws IOException {
+      if (path.toLowerCase().endsWith(".roi")) {
+         Roi roi = new RoiDecoder(path).getRoi();
+         java.awt.Polygon poly = roi.getPolygon();
+         return new int[][] {Arrays.copyOf(poly.xpoints, poly.npoints),
+                             Arrays.copyOf(poly.ypoints, poly.npoints)};
+      }
+
+      java.util.List<int[]> points = new ArrayList<int[]>();
+      BufferedReader in = new BufferedReader(new FileReader(path));
+      try {
+         String line;
+         while ((line = in.readLine()) != null) {
+            String[] tokens = line.trim().split("[\\s,]+");
+            if (tokens.length < 2)
+               continue;
+            try {
+               points.add(new int[] {(int) Double.parseDouble(tokens[0]),
+                                     (int) Double.parseDouble(tokens[1])});
+            } catch (NumberFormatException e) {
+               // Header line
+            }
+         }
+      } finally {
+         in.close();
+      }
+      int[][] xy = new int[2][points.size()];
+      for (int i = 0; i < points.size(); i++) {
+         xy[0][i] = points.get(i)[0];
+         xy[1][i] = points.get(i)[1];
+      }
+      return xy;
+   }
+
+   // One stack with its targets and parameters
+   static class Job implements Callable<String> {
+      final String stackPath, pointsPath;
+      String outDir, calibration, reference, sequence;
+      int cRadius = 2, nMaxima = 25, traceValue = RoiReducer.SUM, nThreads, deltaWindow, maxShift = 10;
+      int hologramIterations;
+      double percentile = 50, bufferSize = 64, deltaPercentile = 10;
+      double eventTau, eventThreshold = 3;
+      boolean sortTraces, saveMatrix, saveBinary;
+
+      Job(String stackPath, String pointsPath, int nThreads) {
+         this.stackPath = stackPath;
+         this.pointsPath = pointsPath;
+         this.nThreads = nThreads;
+      }
+
+      void set(String key, String value, File dir) throws IOException {
+         try {
+            if (key.equals("radius")) cRadius = Integer.parseInt(value);
+            else if (key.equals("maxima")) nMaxima = Integer.parseInt(value);
+            else if (key.equals("sort")) sortTraces = Boolean.parseBoolean(value);
+            else if (key.equals("percentile")) percentile = Double.parseDouble(value);
+            else if (key.equals("matrix")) saveMatrix = Boolean.parseBoolean(value);
+            else if (key.equals("binary")) saveBinary = Boolean.parseBoolean(value);
+            else if (key.equals("band")) bufferSize = Double.parseDouble(value);
+            else if (key.equals("threads")) nThreads = Integer.parseInt(value);
+            else if (key.equals("dff")) deltaWindow = Integer.parseInt(value);
+            else if (key.equals("baseline")) deltaPercentile = Double.parseDouble(value);
+            else if (key.equals("events")) eventTau = Double.parseDouble(value);
+            else if (key.equals("threshold")) eventThreshold = Double.parseDouble(value);
+            else if (key.equals("calibration")) calibration = resolve(dir, value);
+            else if (key.equals("hologram")) hologramIterations = Integer.parseInt(value);
+            else if (key.equals("sequence")) sequence = value.equals("singles") ? value : resolve(dir, value);
+            else if (key.equals("reference")) reference = resolve(dir, value);
+            else if (key.equals("maxshift")) maxShift = Integer.parseInt(value);
+            else if (key.equals("value")) traceValue = parseValue(value);
+            else throw new IOException("Unknown parameter: " + key);
+         } catch (NumberFormatException e) {
+            throw new IOException("Bad value for " + key + ": " + value);
+         }
+      }
+
+      private static int parseValue(String value) throws IOException {
+         String[] names = {"sum", "mean", "median", "percentile"};
+         for (int k = 0; k < names.length; k++)
+            if (names[k].equalsIgnoreCase(value))
+               return k;
+         throw new IOException("Unknown trace value: " + value);
+      }
+
+      public String call() throws Exception {
+         long start = System.nanoTime();
+         int[][] points = readPoints(pointsPath);
+         int nTargets = points[0].length;
+         if (nTargets == 0)
+            throw new IOException("No targets in " + pointsPath);
+         if (cRadius < 1)
+            throw new IOException("Radius must be at least 1");
+         if (nMaxima < 0)
+            throw new IOException("Maxima can not be negative");
+         int maxPixels = ((cRadius*2)+1)*((cRadius*2)+1);
+         if (nMaxima > maxPixels) nMaxima = maxPixels;
+
+         File stackFile = new File(stackPath);
+         String name = stackFile.getName().replaceFirst("\\.[^.]*$", "");
+         File dir = outDir != null ? new File(outDir) : stackFile.getAbsoluteFile().getParentFile();
+         dir.mkdirs();
+
+         RoiReducer reducer = RoiReducer.create(traceValue, sortTraces, percentile);
+         TraceExtractor extractor = new TraceExtractor(points[0], points[1], nTargets,
+                                                       cRadius, nMaxima, reducer);
+         extractor.setThreads(nThreads);
+         extractor.setDeltaF(deltaWindow, deltaPercentile);
+         if (reference != null) {
+            ImagePlus ref = IJ.openImage(reference);
+            if (ref == null)
+               throw new IOException("Could not open " + reference);
+            extractor.setMotionCorrection(new MotionCorrector(ref.getProcessor(), maxShift));
+         }
+
+         // Stream uncompressed TIFFs, open anything else with ImageJ
+         double[][] dPoints;
+         int width, height, bytesPerPixel;
+         DataMatrixStore matrix = null;
+         TiffStreamReader reader = null;
+         boolean finished = false;
+         try {
+            reader = new TiffStreamReader(stackPath);
+         } catch (IOException e) {
+            reader = null;
+         }
+         try {
+            if (reader != null) {
+               width = reader.getWidth();
+               height = reader.getHeight();
+               bytesPerPixel = reader.getBitDepth()/8;
+               if (saveMatrix && nMaxima > 0)
+                  matrix = new DataMatrixStore(nTargets, nMaxima, reader.getFrames(),
+                                               reader.getBitDepth(), new File(dir, name + "_matrix.raw"));
+               if (saveBinary)
+                  extractor.setWriter(newTraceFile(new File(dir, name + "_traces.trc"), nTargets, matrix));
+               long bandBytes = (long)(bufferSize*1024*1024);
+               // The pipeline holds a frame in each queue slot, one with each
+               // worker, one being read and one being written
+               long bandFrames = bandBytes/((long) reader.getRowBytes()*height);
+               int queueFrames = (int) Math.min(QUEUE_FRAMES, (bandFrames - nThreads - 2)/2);
+               if (queueFrames >= 1) {
+                  // Whole frames fit in the buffer, so reading overlaps extraction
+                  ExtractionPipeline pipeline = new ExtractionPipeline(extractor, nThreads, queueFrames);
+                  dPoints = pipeline.run(reader, matrix);
+               } else {
+                  dPoints = extractor.extract(reader, matrix, bandBytes);
+               }
+            } else {
+               ImagePlus imp = IJ.openImage(stackPath);
+               if (imp == null)
+                  throw new IOException("Could not open " + stackPath);
+               width = imp.getWidth();
+               height = imp.getHeight();
+               bytesPerPixel = imp.getBytesPerPixel();
+               if (saveMatrix && nMaxima > 0)
+                  matrix = new DataMatrixStore(nTargets, nMaxima, imp.getStackSize(),
+                                               imp.getBitDepth(), new File(dir, name + "_matrix.raw"));
+               if (saveBinary)
+                  extractor.setWriter(newTraceFile(new File(dir, name + "_traces.trc"), nTargets, matrix));
+               dPoints = extractor.extract(imp.getStack(), matrix);
+            }
+            // Only a complete run finishes the trace file and the data matrix
+            if (extractor.getWriter() != null)
+               extractor.getWriter().close();
+            if (matrix != null)
+               matrix.close();
+            finished = true;
+         } finally {
+            if (reader != null)
+               closeQuietly(reader);
+            if (!finished) {
+               // Partial outputs would look complete, so they go, and the
+               // error that stopped the run is the one reported
+               if (extractor.getWriter() != null) {
+                  closeQuietly(extractor.getWriter());
+                  new File(dir, name + "_traces.trc").delete();
+               }
+               if (matrix != null) {
+                  closeQuietly(matrix);
+                  new File(dir, name + "_matrix.raw").delete();
+               }
+            }
+         }
+         int nFrames = dPoints[0].length;
+         writeTraces(dPoints, new File(dir, name + "_traces.csv"));
+         if (extractor.getDeltaF() != null)
+            writeTraces(extractor.getDeltaF(), new File(dir, name + "_dff.csv"));
+         if (eventTau > 0) {
+            // From the dF/F traces if there are any, with the same baseline
+            double[][] traces = extractor.getDeltaF() != null ? extractor.getDeltaF() : dPoints;
+            writeTraces(EventDetector.detect(traces, eventTau, eventThreshold,
+                                             deltaWindow > 0 ? deltaWindow : 1000,
+                                             deltaPercentile, nThreads),
+                        new File(dir, name + "_events.csv"));
+         }
+         if (extractor.getShifts() != null)
+            writeShifts(extractor.getShifts(), new File(dir, name + "_shifts.csv"));
+
+         // The SLM mask that would excite these targets
+         if (calibration != null) {
+            MaskGenerator generator = MaskGenerator.read(calibration);
+            ImageProcessor mask = generator.createMask(generator.getScaleOffset(height),
+                                                       points[0], points[1]);
+            new FileSaver(new ImagePlus(name + "_mask", mask))
+               .saveAsBmp(new File(dir, name + "_mask.bmp").getPath());
+            if (hologramIterations > 0) {
+               HologramGenerator hologram = new HologramGenerator(generator.outSize);
+               hologram.setThreads(nThreads);
+               hologram.setIterations(hologramIterations);
+               FloatProcessor phase = generator.createHologram(hologram, generator.getScaleOffset(height),
+                                                               points[0], points[1]);
+               new FileSaver(new ImagePlus(name + "_phase", HologramGenerator.toGrayLevels(phase)))
+                  .saveAsBmp(new File(dir, name + "_phase.bmp").getPath());
+            }
+            if (sequence != null) {
+               int[][] groups = sequence.equals("singles") ? MaskSequence.singles(nTargets)
+                                                           : MaskSequence.readGroups(sequence, nTargets);
+               new MaskSequence(generator, generator.getScaleOffset(height), points[0], points[1])
+                  .writeTiff(new File(dir, name + "_masks.tif").getPath(), groups);
+            }
+         }
+
+         double seconds = (System.nanoTime()-start)/1e9;
+         double mb = (double) nFrames*width*height*bytesPerPixel/(1024*1024);
+         return String.format("%s: %d frames, %d targets, %.2f s, %.1f frames/s, %.1f MB/s",
+                              stackPath, nFrames, nTargets, seconds, nFrames/seconds, mb/seconds);
+      }
+
+      // A trace file with the settings of the job in its header
+      TraceFile.Writer newTraceFile(File file, int nTargets, DataMatrixStore matrix)
+                                                                 throws IOException {
+         Map<String, String> params = new LinkedHashMap<String, String>();
+         params.put("stack", stackPath);
+         params.put("radius", Integer.toString(cRadius));
+         params.put("value", RoiReducer.NAMES[traceValue]);
+         params.put("percentile", Double.toString(percentile));
+         params.put("sort", Boolean.toString(sortTraces));
+         if (reference != null)
+            params.put("reference", reference);
+         return new TraceFile.Writer(file, nTargets, matrix != null ? nMaxima : 0,
+                                     matrix != null ? matrix.getBitDepth() : 0, params);
+      }
+   }
+
+   static void closeQuietly(TraceFile.Writer writer) {
+      try {
+         writer.close();
+      } catch (IOException e) {
+         // The file is deleted anyway
+      }
+   }
+
+   static void closeQuietly(DataMatrixStore matrix) {
+      try {
+         matrix.close();
+      } catch (IOException e) {
+         // The file is deleted anyway
+      }
+   }
+
+   static void closeQuietly(FrameSource reader) {
+      try {
+         reader.close();
+      } catch (IOException e) {
+         // Everything needed has been read, or the run has failed anyway
+      }
+   }
+
+   // Write the shift of each frame as CSV
+   static void writeShifts(int[][] shifts, File file) throws IOException {
+      PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file), 1 << 16));
+      try {
+         out.println("Frame,X Shift,Y Shift");
+         for (int f = 0; f < shifts[0].length; f++)
+            out.println((f+1) + "," + shifts[0][f] + "," + shifts[1][f]);
+      } finally {
+         out.close();
+      }
+   }
+
+   // Write traces as CSV, one row per frame and one column per target
+   static void writeTraces(double[][] dPoints, File file) throws IOException {
+      int nTargets = dPoints.length, nFrames = dPoints[0].length;
+      PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file), 1 << 16));
+      try {
+         StringBuilder line = new StringBuilder("Frame");
+         for (int i = 0; i < nTargets; i++)
+            line.append(",Neuron ").append(i);
+         out.println(line);
+         for (int f = 0; f < nFrames; f++) {
+            line.setLength(0);
+            line.append(f+1);
+            for (int i = 0; i < nTargets; i++)
+               line.append(',').append(dPoints[i][f]);
+            out.println(line);
+         }
+      } finally {
+         out.close();
+      }
+   }
+}
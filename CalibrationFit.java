@@ -0,0 +1,168 @@
+/**
+* Fits the mapping from camera pixels to SLM pattern pixels to any number of
+* matching points, as picked in calibrate_slm_. Two points give the separate x
+* and y scale and offset calibrate_slm_ has always used. Three or more give the
+* least-squares affine map, which also covers rotation and shear, and six or
+* more can give a quadratic one, for distortion of the optics. The distance
+* between each calibration point and where the fit puts its camera point is
+* kept, so bad picks show up.
+*
+* The least-squares problems are solved by Householder QR of the design matrix
+* rather than through the normal equations, which would square its condition
+* number (large for the quadratic terms of a 1000 pixel image).
+*/
+
+public class CalibrationFit {
+
+   private final int n;
+   private final double[] camX, camY, calX, calY;
+   // Scale and offset (two points), or the coefficients of MaskGenerator's terms
+   private double xScale, yScale, xOffset, yOffset;
+   private double[] xTerms, yTerms;
+   private final double[] fitX, fitY;
+
+   // order: 1 for affine or 2 for quadratic, if there are more than two points
+   public CalibrationFit(double[] camX, double[] camY, double[] calX, double[] calY, int order) {
+      n = camX.length;
+      this.camX = camX;
+      this.camY = camY;
+      this.calX = calX;
+      this.calY = calY;
+      if (n < 2)
+         throw new IllegalArgumentException("At least two points are needed");
+
+      if (n == 2) {
+         xScale = (calX[0] - calX[1])/(camX[0] - camX[1]);
+         yScale = (calY[0] - calY[1])/(camY[0] - camY[1]);
+         xOffset = calX[0] - camX[0]*xScale;
+         yOffset = calY[0] - camY[0]*yScale;
+      } else {
+         int nTerms = order > 1 ? 6 : 3;
+         if (n < nTerms)
+            throw new IllegalArgumentException("A " + (order > 1 ? "quadratic" : "affine")
+                                               + " fit needs at least " + nTerms + " points");
+         xTerms = solve(design(nTerms), calX);
+         yTerms = solve(design(nTerms), calY);
+         // The nearest scale and offset, for readers of the calibration that
+         // only know those
+         xScale = xTerms[1];
+         yScale = yTerms[2];
+         xOffset = xTerms[0];
+         yOffset = yTerms[0];
+      }
+
+      fitX = new double[n];
+      fitY = new double[n];
+      MaskGenerator generator = new MaskGenerator();
+      apply(generator);
+      for (int i = 0; i < n; i++) {
+         fitX[i] = generator.mapX(camX[i], camY[i]);
+         fitY[i] = generator.mapY(camX[i], camY[i]);
+      }
+   }
+
+   // Put the fit into generator
+   public void apply(MaskGenerator generator) {
+      generator.xScale = xScale;
+      generator.yScale = yScale;
+      generator.xOffset = xOffset;
+      generator.yOffset = yOffset;
+      generator.xTerms = xTerms != null ? xTerms.clone() : null;
+      generator.yTerms = yTerms != null ? yTerms.clone() : null;
+   }
+
+   public int getPoints() {
+      return n;
+   }
+
+   // Number of terms of the fit, 0 for scale and offset only
+   public int getTerms() {
+      return xTerms != null ? xTerms.length : 0;
+   }
+
+   // Where the fit puts camera point i in the pattern
+   public double getFitX(int i) {
+      return fitX[i];
+   }
+
+   public double getFitY(int i) {
+      return fitY[i];
+   }
+
+   // Distance from calibration point i to where the fit puts its camera point
+   public double getResidual(int i) {
+      double dx = fitX[i] - calX[i], dy = fitY[i] - calY[i];
+      return Math.sqrt(dx*dx + dy*dy);
+   }
+
+   // Root mean square and largest residual
+   public double getRms() {
+      double sum = 0;
+      for (int i = 0; i < n; i++)
+         sum += getResidual(i)*getResidual(i);
+      return Math.sqrt(sum/n);
+   }
+
+   public double getMax() {
+      double max = 0;
+      for (int i = 0; i < n; i++)
+         max = Math.max(max, getResidual(i));
+      return max;
+   }
+
+   // Rows of the terms of each camera point
+   private double[][] design(int nTerms) {
+      double[][] a = new double[n][];
+      for (int i = 0; i < n; i++)
+         a[i] = MaskGenerator.terms(camX[i], camY[i], nTerms);
+      return a;
+   }
+
+   // Least-squares solution of a x = b, a (overwritten) n x k with n >= k
+   private static double[] solve(double[][] a, double[] target) {
+      int rows = a.length, k = a[0].length;
+      double[] b = target.clone();
+      double[] v = new double[rows];
+      double largest = 0;
+      for (int j = 0; j < k; j++) {
+         // Reflect column j below the diagonal onto the diagonal
+         double norm = 0;
+         for (int i = j; i < rows; i++)
+            norm += a[i][j]*a[i][j];
+         norm = Math.sqrt(norm);
+         double alpha = a[j][j] > 0 ? -norm : norm;
+         largest = Math.max(largest, norm);
+         if (norm == 0 || norm < 1e-12*largest)
+            throw new IllegalArgumentException("Points are degenerate (e.g. all on one line)");
+         double length = 0;
+         for (int i = j; i < rows; i++) {
+            v[i] = a[i][j] - (i == j ? alpha : 0);
+            length += v[i]*v[i];
+         }
+         for (int c = j; c < k; c++) {
+            double s = 0;
+            for (int i = j; i < rows; i++)
+               s += v[i]*a[i][c];
+            s *= 2/length;
+            for (int i = j; i < rows; i++)
+               a[i][c] -= s*v[i];
+         }
+         double s = 0;
+         for (int i = j; i < rows; i++)
+            s += v[i]*b[i];
+         s *= 2/length;
+         for (int i = j; i < rows; i++)
+            b[i] -= s*v[i];
+      }
+
+      // Back substitution through R
+      double[] x = new double[k];
+      for (int j = k-1; j >= 0; j--) {
+         double s = b[j];
+         for (int c = j+1; c < k; c++)
+            s -= a[j][c]*x[c];
+         x[j] = s/a[j][j];
+      }
+      return x;
+   }
+}
@@ -0,0 +1,170 @@
+import java.io.*;
+
+/**
+* Turns the activity of the targets in each live frame into a new SLM mask, for
+* all-optical closed-loop experiments. A Rule picks the targets to stimulate
+* from the latest trace (or dF/F) values, their mask is drawn from the pixels
+* a MaskSequence has already mapped through the calibration, and a MaskSink
+* sends it on. Everything a frame needs is allocated up front, so the loop
+* itself makes no garbage.
+*
+* The time each stage of each frame takes is counted in a LatencyHistogram:
+* the wait from the frame being complete in its source (FrameSource's frame
+* time) until it was picked up, e.g. the time a FolderSource lets a file
+* settle, then extraction and detection (as marked by the caller), selection,
+* drawing the mask and sending it, and the total from the frame being
+* complete to the mask being sent. Frames whose total exceeds the budget are
+* counted as well.
+*/
+
+public class ClosedLoop {
+
+   public static final int SETTLE = 0, EXTRACT = 1, DETECT = 2, SELECT = 3, MAP = 4, SEND = 5, TOTAL = 6;
+   public static final String[] STAGES = {"Settle", "Extract", "Detect", "Select", "Map", "Send", "Total"};
+
+   // Picks the targets to stimulate
+   public interface Rule {
+      // Store the targets to stimulate, given activity[target] of the latest
+      // frame, in selected and return how many there are. Called once per
+      // frame; must not allocate.
+      int select(double[] activity, int[] selected);
+   }
+
+   private final MaskSequence targets;
+   private final Rule rule;
+   private final MaskSink sink;
+   private final int[] selected;
+   private final byte[] mask;
+   private final LatencyHistogram[] latency = new LatencyHistogram[STAGES.length];
+   private long budget = Long.MAX_VALUE, overBudget, frames;
+   private long start, last;
+   private int nSelected;
+
+   // targets: the mapped targets, in the order of the activity values
+   public ClosedLoop(MaskSequence targets, Rule rule, MaskSink sink) {
+      this.targets = targets;
+      this.rule = rule;
+      this.sink = sink;
+      selected = new int[targets.getTargets()];
+      mask = new byte[targets.getSize()*targets.getSize()];
+      for (int s = 0; s < latency.length; s++)
+         latency[s] = new LatencyHistogram();
+   }
+
+   // Largest total latency (ms) a frame should take
+   public void setBudget(double ms) {
+      budget = (long) (ms*1e6);
+   }
+
+   // A frame is ready: its stages are timed from now
+   public void startFrame() {
+      startFrame(System.nanoTime());
+   }
+
+   // A frame that was complete at frameTime (System.nanoTime()) is picked up
+   // now; the total is timed from frameTime
+   public void startFrame(long frameTime) {
+      last = System.nanoTime();
+      start = Math.min(frameTime, last);
+      latency[SETTLE].record(last - start);
+   }
+
+   // Stage (EXTRACT or DETECT) of the current frame is done
+   public void mark(int stage) {
+      long now = System.nanoTime();
+      latency[stage].record(now - last);
+      last = now;
+   }
+
+   // Select, draw and send the mask for the current frame from the activity of
+   // the targets
+   public void process(double[] activity) throws IOException {
+      nSelected = rule.select(activity, selected);
+      mark(SELECT);
+      targets.render(selected, nSelected, mask);
+      mark(MAP);
+      sink.send(mask, targets.getSize(), frames++);
+      mark(SEND);
+      latency[TOTAL].record(last - start);
+      if (last - start > budget)
+         overBudget++;
+   }
+
+   public LatencyHistogram getLatency(int stage) {
+      return latency[stage];
+   }
+
+   // Masks sent, and how many of them took longer than the budget
+   public long getFrames() {
+      return frames;
+   }
+
+   public long getOverBudget() {
+      return overBudget;
+   }
+
+   // Targets in the latest mask
+   public int getSelected() {
+      return nSelected;
+   }
+
+   public void close() throws IOException {
+      sink.close();
+   }
+
+   // The targets whose activity is at least level, at most maxTargets of them,
+   // the most active first
+   public static Rule above(double level, int maxTargets) {
+      return new Strongest(level, maxTargets);
+   }
+
+   // The k most active targets
+   public static Rule strongest(int k) {
+      return new Strongest(Double.NEGATIVE_INFINITY, k);
+   }
+
+   // The targets of group, all together, whenever the activity of cell is at
+   // least level; nothing otherwise
+   public static Rule trigger(final int cell, final double level, int[] group) {
+      final int[] targets = group.clone();
+      return new Rule() {
+         public int select(double[] activity, int[] selected) {
+            if (!(activity[cell] >= level))
+               return 0;
+            System.arraycopy(targets, 0, selected, 0, targets.length);
+            return targets.length;
+         }
+      };
+   }
+
+   // Keeps the k largest values at least level, sorted, by insertion
+   private static class Strongest implements Rule {
+      private final double level;
+      private final int k;
+      private final double[] values;
+
+      Strongest(double level, int k) {
+         this.level = level;
+         this.k = Math.max(0, k);
+         values = new double[this.k];
+      }
+
+      public int select(double[] activity, int[] selected) {
+         int n = 0;
+         for (int i = 0; i < activity.length; i++) {
+            double a = activity[i];
+            if (k == 0 || !(a >= level) || (n == k && a <= values[n-1]))
+               continue;
+            int j = n < k ? n++ : n-1;
+            while (j > 0 && values[j-1] < a) {
+               values[j] = values[j-1];
+               selected[j] = selected[j-1];
+               j--;
+            }
+            values[j] = a;
+            selected[j] = i;
+         }
+         return n;
+      }
+   }
+}
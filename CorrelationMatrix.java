@@ -0,0 +1,342 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import ij.process.*;
+
+/**
+* Pearson correlations between all pairs of traces, accumulated as frames come
+* in so the matrix can be updated without going over the earlier frames again.
+* Frames are gathered into batches; each batch is centered once, by a shift per
+* trace taken from the first batch, and its cross products are added to running
+* sums, from which the correlations follow. Centering first keeps the sums from
+* losing precision on traces with a large baseline.
+*
+* The cross products are computed in tiles of TILE x TILE traces over SPAN
+* frames at a time, small enough for both sets of traces to stay in cache while
+* every pair between them is done. Tiles are shared out among the threads; each
+* tile is written by one thread only. Only the upper triangle is computed. The
+* threads are started with the first batch and kept until close is called, so
+* adding frames one at a time (as in live mode) does not start new ones.
+*
+* The matrix can be ordered by average-linkage hierarchical clustering on
+* 1 - r, so that groups of correlated cells show up as blocks along the
+* diagonal.
+*/
+
+public class CorrelationMatrix {
+
+   // Traces per side of a tile, frames per pass over a tile and frames per batch
+   private static final int TILE = 32, SPAN = 512, BATCH = 4096;
+
+   private final int nTargets;
+   private int nThreads = 1;
+   private ExecutorService pool;
+   // Cross products of the centered values, upper triangle, and their sums
+   private final double[][] products;
+   private final double[] sums;
+   private double[] shift;
+   private int nFrames;
+   // Frames added one at a time, waiting to be added as a batch, [target][frame]
+   private final double[][] batch;
+   private int inBatch;
+
+   public CorrelationMatrix(int nTargets) {
+      this.nTargets = nTargets;
+      products = new double[nTargets][nTargets];
+      sums = new double[nTargets];
+      batch = new double[nTargets][BATCH];
+   }
+
+   public void setThreads(int nThreads) {
+      this.nThreads = Math.max(1, nThreads);
+      close();
+   }
+
+   // Stop the threads. Frames can still be added, which starts them again.
+   public void close() {
+      if (pool != null)
+         pool.shutdownNow();
+      pool = null;
+   }
+
+   public int getTargets() {
+      return nTargets;
+   }
+
+   // Frames added so far
+   public int getFrames() {
+      return nFrames + inBatch;
+   }
+
+   // Add the next frame, values[target]
+   public void addFrame(double[] values) {
+      for (int i = 0; i < nTargets; i++)
+         batch[i][inBatch] = values[i];
+      if (++inBatch == BATCH)
+         flush();
+   }
+
+   // Add frames first..last-1 (0-based) of traces, [target][frame]
+   public void addFrames(double[][] traces, int first, int last) {
+      flush();
+      if (shift == null && last > first) {
+         // The mean of the frames given, so the sums stay close to 0
+         shift = new double[nTargets];
+         for (int i = 0; i < nTargets; i++) {
+            double sum = 0;
+            for (int f = first; f < last; f++)
+               sum += traces[i][f];
+            shift[i] = sum/(last - first);
+         }
+      }
+      for (int f = first; f < last; f += BATCH) {
+         int n = Math.min(BATCH, last - f);
+         for (int i = 0; i < nTargets; i++)
+            System.arraycopy(traces[i], f, batch[i], 0, n);
+         inBatch = n;
+         flush();
+      }
+   }
+
+   // Correlations of the frames added so far, [target][target]. Traces that do
+   // not change have no correlation with the others.
+   public double[][] getCorrelations() {
+      flush();
+      double[] norm = new double[nTargets];
+      for (int i = 0; i < nTargets; i++) {
+         double variance = products[i][i] - sums[i]*sums[i]/Math.max(nFrames, 1);
+         norm[i] = variance > 0 ? 1/Math.sqrt(variance) : 0;
+      }
+      double[][] r = new double[nTargets][nTargets];
+      for (int i = 0; i < nTargets; i++) {
+         r[i][i] = 1;
+         for (int j = i+1; j < nTargets && nFrames > 1; j++) {
+            double c = (products[i][j] - sums[i]*sums[j]/nFrames)*norm[i]*norm[j];
+            r[i][j] = r[j][i] = Math.max(-1, Math.min(1, c));
+         }
+      }
+      return r;
+   }
+
+   // Correlations of complete traces, [target][frame]
+   public static double[][] compute(double[][] traces, int nThreads) {
+      CorrelationMatrix matrix = new CorrelationMatrix(traces.length);
+      matrix.setThreads(nThreads);
+      try {
+         if (traces.length > 0)
+            matrix.addFrames(traces, 0, traces[0].length);
+         return matrix.getCorrelations();
+      } finally {
+         matrix.close();
+      }
+   }
+
+   // Center the waiting frames and add their cross products
+   private void flush() {
+      if (inBatch == 0)
+         return;
+      final int n = inBatch;
+      if (shift == null) {
+         shift = new double[nTargets];
+         for (int i = 0; i < nTargets; i++) {
+            double sum = 0;
+            for (int f = 0; f < n; f++)
+               sum += batch[i][f];
+            shift[i] = sum/n;
+         }
+      }
+      for (int i = 0; i < nTargets; i++) {
+         double[] values = batch[i];
+         double s = shift[i], sum = 0;
+         for (int f = 0; f < n; f++) {
+            values[f] -= s;
+            sum += values[f];
+         }
+         sums[i] += sum;
+      }
+
+      // Tiles of the upper triangle, in rows
+      final int nBlocks = (nTargets + TILE - 1)/TILE;
+      final int nTiles = nBlocks*(nBlocks+1)/2;
+      final int[] rows = new int[nTiles], columns = new int[nTiles];
+      for (int b = 0, t = 0; b < nBlocks; b++) {
+         for (int c = b; c < nBlocks; c++, t++) {
+            rows[t] = b;
+            columns[t] = c;
+         }
+      }
+      final AtomicInteger next = new AtomicInteger();
+      Runnable worker = new Runnable() {
+         public void run() {
+            int t;
+            while ((t = next.getAndIncrement()) < nTiles)
+               addTile(rows[t]*TILE, columns[t]*TILE, n);
+         }
+      };
+      int nWorkers = Math.min(nThreads, nTiles);
+      if (nWorkers < 2) {
+         worker.run();
+      } else {
+         if (pool == null)
+            pool = Executors.newFixedThreadPool(nThreads);
+         try {
+            java.util.List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int w = 0; w < nWorkers; w++)
+               futures.add(pool.submit(worker));
+            for (Future<?> future : futures)
+               future.get();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Correlation interrupted", e);
+         } catch (ExecutionException e) {
+            throw new RuntimeException("Correlation failed", e.getCause());
+         }
+      }
+      nFrames += n;
+      inBatch = 0;
+   }
+
+   // Cross products of the traces of the tile at rows i0.., columns j0.., over
+   // the first n frames of the batch
+   private void addTile(int i0, int j0, int n) {
+      int i1 = Math.min(i0 + TILE, nTargets), j1 = Math.min(j0 + TILE, nTargets);
+      for (int f0 = 0; f0 < n; f0 += SPAN) {
+         int f1 = Math.min(f0 + SPAN, n);
+         for (int i = i0; i < i1; i++) {
+            double[] a = batch[i];
+            double[] row = products[i];
+            int j = Math.max(j0, i);
+            // Four columns at a time, so each value of a is loaded once for them
+            for (; j + 3 < j1; j += 4) {
+               double[] b0 = batch[j], b1 = batch[j+1], b2 = batch[j+2], b3 = batch[j+3];
+               double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+               for (int f = f0; f < f1; f++) {
+                  double x = a[f];
+                  s0 += x*b0[f];
+                  s1 += x*b1[f];
+                  s2 += x*b2[f];
+                  s3 += x*b3[f];
+               }
+               row[j] += s0;
+               row[j+1] += s1;
+               row[j+2] += s2;
+               row[j+3] += s3;
+            }
+            for (; j < j1; j++) {
+               double[] b = batch[j];
+               double s = 0;
+               for (int f = f0; f < f1; f++)
+                  s += a[f]*b[f];
+               row[j] += s;
+            }
+         }
+      }
+   }
+
+   // Leaf order of the average-linkage clustering of the targets on 1 - r,
+   // found with the nearest-neighbor chain algorithm in O(nTargets^2)
+   public static int[] clusterOrder(double[][] r) {
+      int n = r.length;
+      if (n < 3) {
+         int[] order = new int[n];
+         for (int i = 0; i < n; i++)
+            order[i] = i;
+         return order;
+      }
+      double[][] distance = new double[n][n];
+      for (int i = 0; i < n; i++)
+         for (int j = 0; j < n; j++)
+            distance[i][j] = 1 - r[i][j];
+      // Each slot holds a cluster: its size and node in the tree (leaves are
+      // 0..n-1, merges n..2n-2, with their two children)
+      int[] size = new int[n], node = new int[n];
+      int[] left = new int[n-1], right = new int[n-1];
+      boolean[] active = new boolean[n];
+      for (int i = 0; i < n; i++) {
+         size[i] = 1;
+         node[i] = i;
+         active[i] = true;
+      }
+
+      int[] chain = new int[n];
+      int length = 0;
+      for (int merge = 0; merge < n-1; merge++) {
+         while (true) {
+            if (length == 0) {
+               int first = 0;
+               while (!active[first])
+                  first++;
+               chain[length++] = first;
+            }
+            int a = chain[length-1];
+            // Nearest neighbor of a, keeping the one before it on ties so the
+            // chain ends
+            int nearest = length > 1 ? chain[length-2] : -1;
+            double best = nearest >= 0 ? distance[a][nearest] : Double.POSITIVE_INFINITY;
+            for (int k = 0; k < n; k++) {
+               if (active[k] && k != a && distance[a][k] < best) {
+                  best = distance[a][k];
+                  nearest = k;
+               }
+            }
+            if (length > 1 && nearest == chain[length-2])
+               break;
+            chain[length++] = nearest;
+         }
+
+         // The last two on the chain are each other's nearest: merge b into a
+         int a = chain[length-2], b = chain[length-1];
+         length -= 2;
+         for (int k = 0; k < n; k++) {
+            if (active[k] && k != a && k != b) {
+               double d = (size[a]*distance[a][k] + size[b]*distance[b][k])/(size[a] + size[b]);
+               distance[a][k] = distance[k][a] = d;
+            }
+         }
+         left[merge] = node[a];
+         right[merge] = node[b];
+         node[a] = n + merge;
+         size[a] += size[b];
+         active[b] = false;
+      }
+
+      // Leaves from left to right
+      int[] order = new int[n];
+      int[] stack = new int[n];
+      int depth = 0, count = 0;
+      stack[depth++] = 2*n - 2;
+      while (depth > 0) {
+         int v = stack[--depth];
+         if (v < n) {
+            order[count++] = v;
+         } else {
+            stack[depth++] = right[v-n];
+            stack[depth++] = left[v-n];
+         }
+      }
+      return order;
+   }
+
+   // The matrix with rows and columns in the given order (null: as it is),
+   // shown from blue (-1) through white to red (1)
+   public static ImageProcessor toImage(double[][] r, int[] order) {
+      int n = r.length;
+      float[] pixels = new float[n*n];
+      for (int y = 0; y < n; y++) {
+         int i = order != null ? order[y] : y;
+         for (int x = 0; x < n; x++)
+            pixels[y*n + x] = (float) r[i][order != null ? order[x] : x];
+      }
+      FloatProcessor ip = new FloatProcessor(n, n, pixels);
+      byte[] reds = new byte[256], greens = new byte[256], blues = new byte[256];
+      for (int v = 0; v < 256; v++) {
+         int low = Math.min(255, 2*v), high = Math.min(255, 2*(255 - v));
+         reds[v] = (byte) (v < 128 ? low : 255);
+         greens[v] = (byte) (v < 128 ? low : high);
+         blues[v] = (byte) (v < 128 ? 255 : high);
+      }
+      ip.setColorModel(new LUT(reds, greens, blues));
+      ip.setMinAndMax(-1, 1);
+      return ip;
+   }
+}
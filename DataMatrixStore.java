@@ -0,0 +1,238 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import ij.*;
+import ij.process.*;
+
+/**
+* The data matrix of a recording, nTargets x nMaxima x nFrames values kept in one
+* memory-mapped file instead of one processor per frame. Nothing of it lives on
+* the Java heap, and ImageJ sees it through a virtual stack that builds a slice
+* only when it is displayed. Values have the type of the pixels they come from:
+* 8-bit, 16-bit or float (RGB pixels are kept as 16-bit values, as they always
+* were).
+*
+* The file is also the export format, so downstream analysis can map it
+* directly. It starts with a header of HEADER_SIZE bytes, all little-endian:
+*
+*   0  magic "SLMDMAT1"       24  nFrames
+*   8  format version (1)     28  bits per value (8 or 16 unsigned, 32 float)
+*   12 header size            32  reserved, zero up to HEADER_SIZE
+*   16 nTargets
+*   20 nMaxima
+*
+* followed by the values, targets varying fastest and frames slowest: value m of
+* target i in frame f (all 0-based) is at HEADER_SIZE + bytes*((f*nMaxima + m)*nTargets + i),
+* with bytes = bits per value / 8.
+* A frame is therefore laid out like the pixels of a nTargets x nMaxima image.
+*/
+
+public class DataMatrixStore {
+
+   public static final int HEADER_SIZE = 64;
+   public static final int VERSION = 1;
+   private static final byte[] MAGIC = {'S','L','M','D','M','A','T','1'};
+
+   private final int nTargets, nMaxima, nFrames, bitDepth;
+   private final int frameValues;
+   private final File file;
+   private final boolean temporary;
+   private final RandomAccessFile raf;
+   // The values are mapped in segments of whole frames, each smaller than 2GB
+   private final MappedByteBuffer[] segments;
+   private final int framesPerSegment;
+
+   // Create a store of 16-bit values backed by a temporary file that is deleted on exit
+   public DataMatrixStore(int nTargets, int nMaxima, int nFrames) throws IOException {
+      this(nTargets, nMaxima, nFrames, 16);
+   }
+
+   // Create a store for a stack of the given bit depth, backed by a temporary file
+   public DataMatrixStore(int nTargets, int nMaxima, int nFrames, int bitDepth) throws IOException {
+      this(nTargets, nMaxima, nFrames, bitDepth, File.createTempFile("datamatrix", ".raw"), true);
+   }
+
+   // Create a store of 16-bit values backed by the given file, which is overwritten
+   public DataMatrixStore(int nTargets, int nMaxima, int nFrames, File file) throws IOException {
+      this(nTargets, nMaxima, nFrames, 16, file, false);
+   }
+
+   // Create a store for a stack of the given bit depth, backed by the given file
+   public DataMatrixStore(int nTargets, int nMaxima, int nFrames, int bitDepth,
+                          File file) throws IOException {
+      this(nTargets, nMaxima, nFrames, bitDepth, file, false);
+   }
+
+   private DataMatrixStore(int nTargets, int nMaxima, int nFrames, int bitDepth, File file,
+                           boolean temporary) throws IOException {
+      if (nTargets < 1 || nMaxima < 1)
+         throw new IllegalArgumentException("A data matrix needs at least one target and one pixel per target");
+      this.nTargets = nTargets;
+      this.nMaxima = nMaxima;
+      this.nFrames = nFrames;
+      this.bitDepth = valueBits(bitDepth);
+      this.frameValues = nTargets*nMaxima;
+      this.file = file;
+      this.temporary = temporary;
+      if (temporary)
+         file.deleteOnExit();
+
+      long frameBytes = (long) (this.bitDepth/8)*frameValues;
+      framesPerSegment = (int) Math.max(1, Math.min(nFrames, Integer.MAX_VALUE/frameBytes));
+      raf = new RandomAccessFile(file, "rw");
+      raf.setLength(HEADER_SIZE + frameBytes*nFrames);
+      writeHeader(raf.getChannel());
+
+      FileChannel channel = raf.getChannel();
+      int nSegments = (nFrames + framesPerSegment - 1)/framesPerSegment;
+      segments = new MappedByteBuffer[Math.max(nSegments, 1)];
+      for (int s = 0; s < nSegments; s++) {
+         int frames = Math.min(framesPerSegment, nFrames - s*framesPerSegment);
+         segments[s] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                   HEADER_SIZE + s*framesPerSegment*frameBytes, frames*frameBytes);
+         segments[s].order(ByteOrder.LITTLE_ENDIAN);
+      }
+   }
+
+   public int getTargets() {
+      return nTargets;
+   }
+
+   public int getMaxima() {
+      return nMaxima;
+   }
+
+   public int getFrames() {
+      return nFrames;
+   }
+
+   // Bits per value: 8, 16 or 32 (float)
+   public int getBitDepth() {
+      return bitDepth;
+   }
+
+   // Bits per value of the data matrix of a stack of the given bit depth
+   public static int valueBits(int bitDepth) {
+      return bitDepth == 8 || bitDepth == 32 ? bitDepth : 16;
+   }
+
+   // An array that holds the data matrix of one frame: a byte[], short[] or
+   // float[] of nTargets*nMaxima values, depending on the bit depth
+   public Object newFrame() {
+      if (bitDepth == 8)
+         return new byte[frameValues];
+      else if (bitDepth == 16)
+         return new short[frameValues];
+      else
+         return new float[frameValues];
+   }
+
+   // Store the data matrix of frame f (1-based), laid out like the pixels of a
+   // nTargets x nMaxima image, from an array made by newFrame(). Different frames
+   // may be stored from different threads.
+   public void putFrame(int f, Object values) {
+      ByteBuffer buffer = frameBuffer(f);
+      if (bitDepth == 8)
+         buffer.put((byte[]) values, 0, frameValues);
+      else if (bitDepth == 16)
+         buffer.asShortBuffer().put((short[]) values, 0, frameValues);
+      else
+         buffer.asFloatBuffer().put((float[]) values, 0, frameValues);
+   }
+
+   // Read the data matrix of frame f (1-based) into an array made by newFrame()
+   public void getFrame(int f, Object values) {
+      ByteBuffer buffer = frameBuffer(f);
+      if (bitDepth == 8)
+         buffer.get((byte[]) values, 0, frameValues);
+      else if (bitDepth == 16)
+         buffer.asShortBuffer().get((short[]) values, 0, frameValues);
+      else
+         buffer.asFloatBuffer().get((float[]) values, 0, frameValues);
+   }
+
+   // A view of the store as an ImageJ stack, one nTargets x nMaxima slice per frame
+   public ImageStack getStack() {
+      return new MatrixStack();
+   }
+
+   // Copy the store, header included, to a file
+   public void export(String path) throws IOException {
+      FileOutputStream out = new FileOutputStream(path);
+      try {
+         FileChannel source = raf.getChannel();
+         FileChannel target = out.getChannel();
+         long size = source.size(), position = 0;
+         while (position < size)
+            position += source.transferTo(position, size - position, target);
+      } finally {
+         out.close();
+      }
+   }
+
+   // Force the values out to disk and release the file. A temporary file is deleted.
+   public void close() throws IOException {
+      for (MappedByteBuffer segment : segments)
+         if (segment != null)
+            segment.force();
+      raf.close();
+      if (temporary)
+         file.delete();
+   }
+
+   // A buffer positioned at the start of frame f, independent of other threads
+   private ByteBuffer frameBuffer(int f) {
+      int s = (f-1)/framesPerSegment;
+      ByteBuffer buffer = segments[s].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      buffer.position(((f-1) - s*framesPerSegment)*frameValues*(bitDepth/8));
+      return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+   }
+
+   private void writeHeader(FileChannel channel) throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      header.put(MAGIC);
+      header.putInt(VERSION);
+      header.putInt(HEADER_SIZE);
+      header.putInt(nTargets);
+      header.putInt(nMaxima);
+      header.putInt(nFrames);
+      header.putInt(bitDepth);
+      header.clear();
+      while (header.hasRemaining())
+         channel.write(header, header.position());
+   }
+
+   // Virtual stack that reads each slice from the store when it is needed
+   private class MatrixStack extends VirtualStack {
+      MatrixStack() {
+         super(nTargets, nMaxima, null, null);
+      }
+
+      public ImageProcessor getProcessor(int n) {
+         Object pixels = newFrame();
+         getFrame(n, pixels);
+         if (bitDepth == 8)
+            return new ByteProcessor(nTargets, nMaxima, (byte[]) pixels, null);
+         else if (bitDepth == 16)
+            return new ShortProcessor(nTargets, nMaxima, (short[]) pixels, null);
+         else
+            return new FloatProcessor(nTargets, nMaxima, (float[]) pixels, null);
+      }
+
+      public Object getPixels(int n) {
+         return getProcessor(n).getPixels();
+      }
+
+      public int getSize() {
+         return nFrames;
+      }
+
+      public String getSliceLabel(int n) {
+         return "Slice";
+      }
+
+      public void deleteSlice(int n) {
+         throw new IllegalArgumentException("The data matrix can not be edited");
+      }
+   }
+}
@@ -0,0 +1,83 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+* dF/F of traces against a baseline F0 that is a low percentile of the window
+* frames of each trace ending at (and including) this frame, (F - F0)/F0. The
+* baseline only looks back, so frames can be fed as they are extracted (also
+* during live acquisition) and each one costs O(log window) per target, however
+* long the recording is. During the first window frames the baseline is taken
+* over the frames seen so far.
+*/
+
+public class DeltaF {
+
+   private final RollingPercentile[] baselines;
+
+   // window: baseline length (frames); percentile: baseline percentile (0-100)
+   public DeltaF(int nTargets, int window, double percentile) {
+      baselines = new RollingPercentile[nTargets];
+      for (int i = 0; i < nTargets; i++)
+         baselines[i] = new RollingPercentile(window, percentile);
+   }
+
+   // Add the next frame, values[target], and store its dF/F in dff[target]
+   public void addFrame(double[] values, double[] dff) {
+      for (int i = 0; i < baselines.length; i++)
+         dff[i] = ratio(values[i], baselines[i].add(values[i]));
+   }
+
+   // dF/F of complete traces, [target][frame]. Targets are independent of each
+   // other and are split among nThreads threads.
+   public static double[][] compute(final double[][] traces, final int window,
+                                    final double percentile, int nThreads) {
+      final int nTargets = traces.length;
+      final double[][] dff = new double[nTargets][];
+      int nChunks = Math.min(nTargets, Math.max(1, nThreads));
+      if (nChunks < 2) {
+         computeTargets(traces, dff, 0, nTargets, window, percentile);
+         return dff;
+      }
+
+      ExecutorService pool = Executors.newFixedThreadPool(nChunks);
+      try {
+         java.util.List<Future<?>> futures = new ArrayList<Future<?>>();
+         for (int c = 0; c < nChunks; c++) {
+            final int first = nTargets*c/nChunks;
+            final int last  = nTargets*(c+1)/nChunks;
+            futures.add(pool.submit(new Runnable() {
+                public void run() {
+                   computeTargets(traces, dff, first, last, window, percentile);
+                }
+            }));
+         }
+         for (Future<?> future : futures)
+            future.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("dF/F interrupted", e);
+      } catch (ExecutionException e) {
+         throw new RuntimeException("dF/F failed", e.getCause());
+      } finally {
+         pool.shutdownNow();
+      }
+      return dff;
+   }
+
+   // Targets first..last-1
+   private static void computeTargets(double[][] traces, double[][] dff, int first, int last,
+                                      int window, double percentile) {
+      RollingPercentile baseline = new RollingPercentile(window, percentile);
+      for (int i = first; i < last; i++) {
+         baseline.clear();
+         double[] trace = traces[i];
+         dff[i] = new double[trace.length];
+         for (int f = 0; f < trace.length; f++)
+            dff[i][f] = ratio(trace[f], baseline.add(trace[f]));
+      }
+   }
+
+   private static double ratio(double value, double baseline) {
+      return baseline != 0 ? (value - baseline)/baseline : 0;
+   }
+}
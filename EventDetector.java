@@ -0,0 +1,240 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+* Infers events (spikes) from traces by deconvolving them with an AR(1) model of
+* the calcium: c[t] = g*c[t-1] + s[t], with g = exp(-1/tau) and s >= 0. The
+* fit is the active set method of OASIS with a minimum event size (Friedrich et
+* al., 2017): frames are grouped into pools, each of which decays from its first
+* frame on. A new frame starts a pool of its own, which is merged into the one
+* before it for as long as it does not rise above that pool's decay by at least
+* the minimum size. Every frame is added once and every merge removes a pool, so
+* a trace costs O(nFrames).
+*
+* Before the fit, each trace has a baseline subtracted: a low percentile of the
+* preceding window frames, as in DeltaF. The minimum event size is threshold
+* times the noise, estimated from the median of the frame-to-frame differences
+* over the same window. Both only look back, so frames can be fed one at a time
+* during live acquisition.
+*
+* A pool is only merged into pools that started less than getLag() frames ago;
+* older pools are final. The events of a frame are therefore known getLag()
+* frames after it was added, and they are the same whether the frames were
+* added live or the traces were complete.
+*/
+
+public class EventDetector {
+
+   // Pools are final after this many decay times
+   private static final double LAG_TAUS = 5;
+   // Standard deviation of the noise from the median of |x[t] - x[t-1]|:
+   // 1/(sqrt(2)*0.6745)
+   private static final double NOISE_SCALE = 1.0484;
+
+   private final Target[] targets;
+   private final int lag;
+   private int nFrames, nSettled;
+
+   // tau: decay time of the indicator (frames); threshold: minimum event size
+   // (noise standard deviations); window and percentile: baseline, as in DeltaF
+   public EventDetector(int nTargets, double tau, double threshold, int window,
+                        double percentile) {
+      targets = new Target[nTargets];
+      for (int i = 0; i < nTargets; i++)
+         targets[i] = new Target(tau, threshold, window, percentile);
+      lag = lag(tau);
+   }
+
+   // Frames between adding a frame and knowing its events
+   public int getLag() {
+      return lag;
+   }
+
+   public int getFrames() {
+      return nFrames;
+   }
+
+   // Add the next frame, values[target]. Once getLag() frames have been added,
+   // the events of frame getFrames()-getLag() (1-based) are stored in events
+   // and true is returned.
+   public boolean addFrame(double[] values, double[] events) {
+      nFrames++;
+      boolean ready = nFrames > lag;
+      for (int i = 0; i < targets.length; i++) {
+         targets[i].add(values[i]);
+         if (ready)
+            events[i] = targets[i].settle(nSettled);
+      }
+      if (ready)
+         nSettled++;
+      return ready;
+   }
+
+   // After the last frame: store the events of the next frame still to come in
+   // events, and return false once there are none left
+   public boolean flush(double[] events) {
+      if (nSettled == nFrames)
+         return false;
+      for (int i = 0; i < targets.length; i++)
+         events[i] = targets[i].settle(nSettled);
+      nSettled++;
+      return true;
+   }
+
+   // Events of complete traces, [target][frame], the size of each event in the
+   // units of the traces (0 where there is none). Targets are independent of
+   // each other and are split among nThreads threads.
+   public static double[][] detect(final double[][] traces, final double tau,
+                                   final double threshold, final int window,
+                                   final double percentile, int nThreads) {
+      final int nTargets = traces.length;
+      final double[][] events = new double[nTargets][];
+      int nChunks = Math.min(nTargets, Math.max(1, nThreads));
+      if (nChunks < 2) {
+         detectTargets(traces, events, 0, nTargets, tau, threshold, window, percentile);
+         return events;
+      }
+
+      ExecutorService pool = Executors.newFixedThreadPool(nChunks);
+      try {
+         java.util.List<Future<?>> futures = new ArrayList<Future<?>>();
+         for (int c = 0; c < nChunks; c++) {
+            final int first = nTargets*c/nChunks;
+            final int last  = nTargets*(c+1)/nChunks;
+            futures.add(pool.submit(new Runnable() {
+                public void run() {
+                   detectTargets(traces, events, first, last, tau, threshold, window, percentile);
+                }
+            }));
+         }
+         for (Future<?> future : futures)
+            future.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Event detection interrupted", e);
+      } catch (ExecutionException e) {
+         throw new RuntimeException("Event detection failed", e.getCause());
+      } finally {
+         pool.shutdownNow();
+      }
+      return events;
+   }
+
+   // Targets first..last-1
+   private static void detectTargets(double[][] traces, double[][] events, int first, int last,
+                                     double tau, double threshold, int window, double percentile) {
+      int lag = lag(tau);
+      for (int i = first; i < last; i++) {
+         Target target = new Target(tau, threshold, window, percentile);
+         double[] trace = traces[i];
+         events[i] = new double[trace.length];
+         for (int f = 0; f < trace.length; f++) {
+            target.add(trace[f]);
+            if (f >= lag)
+               events[i][f-lag] = target.settle(f-lag);
+         }
+         for (int f = Math.max(0, trace.length-lag); f < trace.length; f++)
+            events[i][f] = target.settle(f);
+      }
+   }
+
+   // Number of events per target
+   public static int[] count(double[][] events) {
+      int[] counts = new int[events.length];
+      for (int i = 0; i < events.length; i++)
+         for (int f = 0; f < events[i].length; f++)
+            if (events[i][f] > 0)
+               counts[i]++;
+      return counts;
+   }
+
+   private static int lag(double tau) {
+      return (int) Math.ceil(LAG_TAUS*Math.max(tau, 1));
+   }
+
+   // The fit of one trace: the pools that can still change, oldest at head
+   private static class Target {
+      private final double g, threshold;
+      private final RollingPercentile baseline, noise;
+      // Value at the first frame, weight, first frame (0-based) and g^length
+      // of each pool
+      private double[] value = new double[16], weight = new double[16], decay = new double[16];
+      private int[] start = new int[16];
+      private int head, top;
+      // Calcium at the last frame of the newest final pool
+      private double settled;
+      // Minimum event size, following the noise
+      private double sMin;
+      private double previous = Double.NaN;
+      private int frames;
+
+      Target(double tau, double threshold, int window, double percentile) {
+         g = Math.exp(-1/Math.max(tau, 1e-3));
+         this.threshold = threshold;
+         baseline = new RollingPercentile(window, percentile);
+         noise = new RollingPercentile(window, 50);
+      }
+
+      void add(double x) {
+         double y = x - baseline.add(x);
+         if (!Double.isNaN(previous))
+            sMin = threshold*NOISE_SCALE*noise.add(Math.abs(x - previous));
+         previous = x;
+
+         // A pool of its own, merged backwards while it does not rise enough
+         if (top == value.length)
+            grow();
+         value[top] = y;
+         weight[top] = 1;
+         start[top] = frames++;
+         decay[top] = g;
+         top++;
+         while (top - head > 1) {
+            int p = top-2, q = top-1;
+            if (value[q] >= decay[p]*value[p] + sMin)
+               break;
+            double w = weight[p] + decay[p]*decay[p]*weight[q];
+            value[p] = (weight[p]*value[p] + decay[p]*weight[q]*value[q])/w;
+            weight[p] = w;
+            decay[p] *= decay[q];
+            top--;
+         }
+      }
+
+      // The event at frame f, which must be the next one not settled yet; the
+      // pool starting there, if any, becomes final. Unlike the pools that can
+      // still change, it may not rise enough above the final ones before it,
+      // and then there is no event.
+      double settle(int f) {
+         if (head == top || start[head] != f)
+            return 0;
+         double c = Math.max(value[head], 0);
+         double event = c - g*settled;
+         settled = c*decay[head]/g;
+         head++;
+         if (head == top)
+            head = top = 0;
+         return event > 0 && event >= sMin ? event : 0;
+      }
+
+      private void grow() {
+         // Drop the final pools before making room
+         if (head > 0) {
+            int n = top - head;
+            System.arraycopy(value, head, value, 0, n);
+            System.arraycopy(weight, head, weight, 0, n);
+            System.arraycopy(decay, head, decay, 0, n);
+            System.arraycopy(start, head, start, 0, n);
+            top = n;
+            head = 0;
+            if (top < value.length)
+               return;
+         }
+         int size = 2*value.length;
+         value = Arrays.copyOf(value, size);
+         weight = Arrays.copyOf(weight, size);
+         decay = Arrays.copyOf(decay, size);
+         start = Arrays.copyOf(start, size);
+      }
+   }
+}
@@ -0,0 +1,435 @@
+import java.io.*;
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.*;
+import ij.*;
+
+/**
+* Keeps the pixels around the targets of recently extracted stacks in memory, so
+* compress_stack_ can be run again on the same stack and targets with other
+* settings (pixels saved, sorting, trace value, display) without reading every
+* frame again.
+*
+* An entry holds, for each target, the full box of side radius*2 + 1 around it
+* in every frame, in one byte[], short[] or float[] per target of the stack's
+* type (pixels outside of the image are zeros). Any later run with a radius up to
+* that of the entry is served from it through a View, with the same traces and
+* data matrix as extracting from the stack. Entries are evicted least recently
+* used first once together they would take more than the capacity.
+*
+* Stacks are held weakly, so the entry of a closed image goes away with it; TIFF
+* files that are streamed are recognized by path, length and modification time.
+* A stack that is edited in place is the same object, so before its entry is
+* used, the boxes of its first, middle and last frames are compared with the
+* stack and the entry is dropped if they differ or frames were added or removed.
+* An edit that leaves those three frames alone is not seen; clear() drops all
+* entries.
+*/
+
+public class ExtractionCache {
+
+   // Number of chunks handed to each thread, so that slow frames even out
+   private static final int CHUNKS_PER_THREAD = 4;
+
+   private static long capacity = Runtime.getRuntime().maxMemory()/4;
+   private static long used;
+   // Least recently used first
+   private static final LinkedList<Entry> entries = new LinkedList<Entry>();
+
+   private ExtractionCache() {
+   }
+
+   // Most memory all entries may take together (bytes)
+   public static synchronized void setCapacity(long bytes) {
+      capacity = Math.max(0, bytes);
+      evict(0);
+   }
+
+   public static synchronized long getCapacity() {
+      return capacity;
+   }
+
+   // Memory taken by the entries now (bytes)
+   public static synchronized long getUsed() {
+      return used;
+   }
+
+   public static synchronized void clear() {
+      entries.clear();
+      used = 0;
+   }
+
+   // Memory an entry would take (bytes)
+   public static long bytesNeeded(int nTargets, int nFrames, int radius, int bitDepth) {
+      long side = radius*2 + 1;
+      return (long) nTargets*nFrames*side*side*(bitDepth/8);
+   }
+
+   // Whether an entry of this many bytes can be kept
+   public static synchronized boolean fits(long bytes) {
+      return bytes <= capacity;
+   }
+
+   // The boxes of the given radius around the targets of an entry for source (an
+   // ImageStack, or the File of a TIFF stack) with these targets and at least
+   // that radius, or null if there is none
+   public static synchronized View find(Object source, int[] xpoints, int[] ypoints,
+                                        int nTargets, int radius) {
+      purge();
+      Object id = identity(source);
+      Entry best = null;
+      for (Entry entry : entries) {
+         if (entry.matches(id, xpoints, ypoints, nTargets) && entry.radius >= radius
+             && (best == null || entry.radius < best.radius))
+            best = entry;
+      }
+      if (best == null)
+         return null;
+      if (source instanceof ImageStack && !best.isCurrent((ImageStack) source)) {
+         // Edited since it was read; any other entry of it is out of date too
+         for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.identity() == source) {
+               it.remove();
+               used -= entry.bytes;
+            }
+         }
+         return null;
+      }
+      entries.remove(best);
+      entries.addLast(best);
+      return new View(best, radius);
+   }
+
+   // Read the boxes of cacheRadius around the targets in every frame of the
+   // stack, keep them if they fit and return those of the given radius
+   public static View load(final ImageStack stack, int[] xpoints, int[] ypoints, int nTargets,
+                           int cacheRadius, int radius, int nThreads) {
+      // Virtual stacks may not know their type before a frame is read
+      int bitDepth = stack.getBitDepth();
+      if (bitDepth == 0)
+         bitDepth = stack.getProcessor(1).getBitDepth();
+      final Entry entry = new Entry(stack, xpoints, ypoints, nTargets, Math.max(radius, cacheRadius),
+                                    stack.getWidth(), stack.getHeight(), stack.getSize(), bitDepth);
+      int nFrames = stack.getSize();
+      int nChunks = Math.min(nFrames, nThreads*CHUNKS_PER_THREAD);
+      if (nThreads <= 1 || nChunks < 2) {
+         entry.copyFrames(stack, 1, nFrames);
+      } else {
+         ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+         try {
+            java.util.List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int c = 0; c < nChunks; c++) {
+               final int first = 1 + (int)((long)nFrames*c/nChunks);
+               final int last  = (int)((long)nFrames*(c+1)/nChunks);
+               futures.add(pool.submit(new Runnable() {
+                  public void run() {
+                     entry.copyFrames(stack, first, last);
+                  }
+               }));
+            }
+            for (Future<?> future : futures)
+               future.get();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Reading into the cache interrupted", e);
+         } catch (ExecutionException e) {
+            throw new RuntimeException("Reading into the cache failed", e.getCause());
+         } finally {
+            pool.shutdownNow();
+         }
+      }
+      keep(entry);
+      return new View(entry, radius);
+   }
+
+   // The same for a TIFF file streamed by reader, read in bands of at most
+   // bandBytes. The reader is left after the last frame. Nothing is kept if the
+   // file has fewer frames than it claims.
+   public static View load(File file, TiffStreamReader reader, int[] xpoints, int[] ypoints,
+                           int nTargets, int cacheRadius, int radius,
+                           long bandBytes) throws IOException {
+      Entry entry = new Entry(file, xpoints, ypoints, nTargets, Math.max(radius, cacheRadius),
+                              reader.getWidth(), reader.getHeight(), reader.getFrames(),
+                              reader.getBitDepth());
+      int height = reader.getHeight();
+      int bandRows = (int) Math.max(1, Math.min(height, bandBytes/reader.getRowBytes()));
+      for (int f = 1; f <= entry.nFrames; f++) {
+         if (!reader.nextFrame())
+            throw new IOException("Frame " + f + " of " + entry.nFrames + " could not be read: "
+                                  + reader.getPath());
+         for (int y0 = 0; y0 < height; y0 += bandRows) {
+            int y1 = Math.min(height, y0 + bandRows);
+            entry.copyRows(reader.readRows(y0, y1), y0, y1, f);
+         }
+      }
+      keep(entry);
+      return new View(entry, radius);
+   }
+
+   private static synchronized void keep(Entry entry) {
+      if (entry.bytes > capacity)
+         return;
+      // A larger box around the same targets makes the old entry useless
+      for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+         Entry old = it.next();
+         if (old.matches(entry.identity(), entry.xpoints, entry.ypoints, entry.nTargets)
+             && old.radius <= entry.radius) {
+            it.remove();
+            used -= old.bytes;
+         }
+      }
+      evict(entry.bytes);
+      entries.addLast(entry);
+      used += entry.bytes;
+   }
+
+   // Drop the least recently used entries until bytes more fit
+   private static void evict(long bytes) {
+      while (!entries.isEmpty() && used + bytes > capacity)
+         used -= entries.removeFirst().bytes;
+   }
+
+   // Drop the entries of stacks that have been garbage collected
+   private static void purge() {
+      for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+         Entry entry = it.next();
+         if (entry.identity() == null) {
+            it.remove();
+            used -= entry.bytes;
+         }
+      }
+   }
+
+   // What an entry is recognized by: the stack itself, or the path, length and
+   // modification time of a file
+   private static Object identity(Object source) {
+      if (source instanceof File) {
+         File file = (File) source;
+         return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+      }
+      return source;
+   }
+
+   // The pixels of the boxes around the targets of one stack, one block per target
+   private static class Entry {
+      private final Reference<ImageStack> stack;
+      private final String file;
+      private final int[] xpoints, ypoints;
+      private final int nTargets, radius, side, width, height, nFrames, bitDepth;
+      private final long bytes;
+      // [target][(frame-1)*side*side + (x-x0)*side + (y-y0)], one of them is set
+      private final byte[][] bytePixels;
+      private final short[][] shortPixels;
+      private final float[][] floatPixels;
+
+      Entry(Object source, int[] xpoints, int[] ypoints, int nTargets, int radius,
+            int width, int height, int nFrames, int bitDepth) {
+         if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+            throw new IllegalArgumentException("Only 8, 16 and 32-bit stacks can be cached");
+         long blockLength = (long) nFrames*(radius*2 + 1)*(radius*2 + 1);
+         if (blockLength > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many frames to cache");
+         this.stack = source instanceof ImageStack ? new WeakReference<ImageStack>((ImageStack) source) : null;
+         this.file = source instanceof File ? (String) ExtractionCache.identity(source) : null;
+         this.xpoints = Arrays.copyOf(xpoints, nTargets);
+         this.ypoints = Arrays.copyOf(ypoints, nTargets);
+         this.nTargets = nTargets;
+         this.radius = radius;
+         this.side = radius*2 + 1;
+         this.width = width;
+         this.height = height;
+         this.nFrames = nFrames;
+         this.bitDepth = bitDepth;
+         this.bytes = bytesNeeded(nTargets, nFrames, radius, bitDepth);
+         bytePixels = bitDepth == 8 ? new byte[nTargets][(int) blockLength] : null;
+         shortPixels = bitDepth == 16 ? new short[nTargets][(int) blockLength] : null;
+         floatPixels = bitDepth == 32 ? new float[nTargets][(int) blockLength] : null;
+      }
+
+      Object identity() {
+         return stack != null ? stack.get() : file;
+      }
+
+      boolean matches(Object id, int[] xs, int[] ys, int n) {
+         Object own = identity();
+         if (own == null || n != nTargets)
+            return false;
+         if (stack != null ? own != id : !own.equals(id))
+            return false;
+         for (int i = 0; i < n; i++)
+            if (xs[i] != xpoints[i] || ys[i] != ypoints[i])
+               return false;
+         return true;
+      }
+
+      // Copy the boxes of frames first..last (1-based, inclusive)
+      void copyFrames(ImageStack input, int first, int last) {
+         for (int f = first; f <= last; f++) {
+            // Virtual stacks are not safe to read from several threads
+            Object pixels;
+            if (input.isVirtual()) {
+               synchronized (input) {
+                  pixels = input.getPixels(f);
+               }
+            } else {
+               pixels = input.getPixels(f);
+            }
+            copyRows(pixels, 0, height, f);
+         }
+      }
+
+      // Whether the stack still has the frames and, in its first, middle and last
+      // frame, the pixels this entry was read from
+      boolean isCurrent(ImageStack input) {
+         if (input.getSize() != nFrames)
+            return false;
+         for (int f : new int[] {1, (nFrames+1)/2, nFrames}) {
+            Object pixels;
+            synchronized (input) {
+               pixels = input.getPixels(f);
+            }
+            if (!sameFrame(pixels, f))
+               return false;
+         }
+         return true;
+      }
+
+      // Whether the boxes of frame f hold the same pixels as the frame given
+      private boolean sameFrame(Object pixels, int f) {
+         int block = (f-1)*side*side;
+         for (int i = 0; i < nTargets; i++) {
+            int x0 = xpoints[i] - radius, y0 = ypoints[i] - radius;
+            int top = Math.max(y0, 0), bottom = Math.min(ypoints[i] + radius, height-1);
+            for (int k = Math.max(x0, 0); k <= Math.min(xpoints[i] + radius, width-1); k++) {
+               int at = block + (k-x0)*side + (top-y0);
+               int from = top*width + k;
+               for (int l = top; l <= bottom; l++, from += width, at++) {
+                  boolean same;
+                  if (bitDepth == 16)
+                     same = ((short[]) pixels)[from] == shortPixels[i][at];
+                  else if (bitDepth == 8)
+                     same = ((byte[]) pixels)[from] == bytePixels[i][at];
+                  else
+                     same = Float.floatToIntBits(((float[]) pixels)[from])
+                            == Float.floatToIntBits(floatPixels[i][at]);
+                  if (!same)
+                     return false;
+               }
+            }
+         }
+         return true;
+      }
+
+      // Copy the part of the boxes of frame f in rows y0..y1-1, held by rows
+      void copyRows(Object rows, int y0, int y1, int f) {
+         int block = (f-1)*side*side;
+         for (int i = 0; i < nTargets; i++) {
+            int x0 = xpoints[i] - radius;
+            int top = Math.max(ypoints[i] - radius, y0), bottom = Math.min(ypoints[i] + radius, y1-1);
+            if (top > bottom)
+               continue;
+            for (int k = Math.max(x0, 0); k <= Math.min(xpoints[i] + radius, width-1); k++) {
+               int to = block + (k-x0)*side + (top - (ypoints[i] - radius));
+               int from = (top-y0)*width + k;
+               if (bitDepth == 16) {
+                  short[] p = (short[]) rows, block16 = shortPixels[i];
+                  for (int l = top; l <= bottom; l++, from += width)
+                     block16[to++] = p[from];
+               } else if (bitDepth == 8) {
+                  byte[] p = (byte[]) rows, block8 = bytePixels[i];
+                  for (int l = top; l <= bottom; l++, from += width)
+                     block8[to++] = p[from];
+               } else {
+                  float[] p = (float[]) rows, block32 = floatPixels[i];
+                  for (int l = top; l <= bottom; l++, from += width)
+                     block32[to++] = p[from];
+               }
+            }
+         }
+      }
+   }
+
+   // The boxes of one radius within the boxes of an entry. Pixels come out in the
+   // same order as from RoiIndex, so reducing them gives the same results.
+   public static class View {
+      private final Entry entry;
+      private final int radius, boxSize;
+      // The pixels of target i are positions[start[i]] .. positions[start[i+1]-1]
+      // within its box in the entry
+      private final int[] start, positions;
+
+      private View(Entry entry, int radius) {
+         this.entry = entry;
+         this.radius = radius;
+         this.boxSize = (radius*2 + 1)*(radius*2 + 1);
+         int side = entry.side, r0 = entry.radius;
+         start = new int[entry.nTargets+1];
+         int[] all = new int[entry.nTargets*boxSize];
+         int j = 0;
+         for (int i = 0; i < entry.nTargets; i++) {
+            int x = entry.xpoints[i], y = entry.ypoints[i];
+            for (int k = x-radius; k <= x+radius; k++) {
+               for (int l = y-radius; l <= y+radius; l++) {
+                  if (k < entry.width && k >= 0 && l < entry.height && l >= 0)
+                     all[j++] = (k-x+r0)*side + (l-y+r0);
+               }
+            }
+            start[i+1] = j;
+         }
+         positions = Arrays.copyOf(all, j);
+      }
+
+      public int getTargets() {
+         return entry.nTargets;
+      }
+
+      public int getFrames() {
+         return entry.nFrames;
+      }
+
+      public int getRadius() {
+         return radius;
+      }
+
+      public int getBitDepth() {
+         return entry.bitDepth;
+      }
+
+      // Length of a full box, including pixels that fall outside of the image
+      public int getBoxSize() {
+         return boxSize;
+      }
+
+      // Copy the pixels around target i in frame f (1-based) of an 8 or 16-bit
+      // stack into box, as RoiIndex.gather does, and return how many there are
+      public int gather(int i, int f, int[] box) {
+         int first = start[i], n = start[i+1] - first;
+         int block = (f-1)*entry.side*entry.side;
+         if (entry.bitDepth == 16) {
+            short[] p = entry.shortPixels[i];
+            for (int j = 0; j < n; j++)
+               box[j] = p[block + positions[first+j]] & 0xffff;
+         } else {
+            byte[] p = entry.bytePixels[i];
+            for (int j = 0; j < n; j++)
+               box[j] = p[block + positions[first+j]] & 0xff;
+         }
+         for (int j = n; j < boxSize; j++)
+            box[j] = 0;
+         return n;
+      }
+
+      // The same for a 32-bit stack
+      public int gather(int i, int f, float[] box) {
+         int first = start[i], n = start[i+1] - first;
+         int block = (f-1)*entry.side*entry.side;
+         float[] p = entry.floatPixels[i];
+         for (int j = 0; j < n; j++)
+            box[j] = p[block + positions[first+j]];
+         for (int j = n; j < boxSize; j++)
+            box[j] = 0;
+         return n;
+      }
+   }
+}
@@ -0,0 +1,350 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import ij.*;
+
+/**
+* Runs extraction as three stages joined by bounded queues, so that reading
+* frames overlaps extracting them. A decode thread reads frames in order, a pool
+* of workers extracts them (see TraceExtractor.FrameExtractor) and a write
+* thread stores their traces and data matrix, and appends them in order to the
+* extractor's trace file if it has one. Frames travel in a fixed set of
+* buffers that are handed back once written, so a stage that falls behind holds
+* up the ones before it instead of letting frames pile up in memory. A TIFF file
+* is decoded into the pixels of these buffers; a stack hands over its own pixel
+* arrays instead, which a virtual stack reads into a new array for every frame.
+*
+* This suits sources that have to be read frame by frame, such as a TIFF file
+* that is streamed or a virtual stack. Each stage keeps the time it spends
+* working and the queues are sampled as frames go by, so after (or during) a run
+* it can be seen which stage limits it: a busy decode stage means the run is I/O
+* bound, busy workers that it is CPU bound.
+*/
+
+public class ExtractionPipeline {
+
+   // Stages and the queues after the first two of them
+   public static final int DECODE = 0, EXTRACT = 1, WRITE = 2;
+   public static final String[] STAGES = {"decode", "extract", "write"};
+   public static final int DECODED = 0, EXTRACTED = 1;
+
+   // Frame number of the marker that ends a stream of frames
+   private static final int END = 0;
+
+   private final TraceExtractor extractor;
+   private final int nWorkers, queueSize;
+
+   private volatile BlockingQueue<Frame> decoded, extracted;
+   private final AtomicLong[] busy = new AtomicLong[3];
+   private final AtomicLong[] done = new AtomicLong[3];
+   private final AtomicLong[] depthSum = new AtomicLong[2];
+   private final AtomicLong[] depthSamples = new AtomicLong[2];
+   private final AtomicInteger[] depthMax = new AtomicInteger[2];
+   private volatile long started, elapsed;
+
+   // nWorkers: threads extracting frames; queueSize: frames each queue holds
+   public ExtractionPipeline(TraceExtractor extractor, int nWorkers, int queueSize) {
+      this.extractor = extractor;
+      this.nWorkers = Math.max(1, nWorkers);
+      this.queueSize = Math.max(1, queueSize);
+      for (int s = 0; s < 3; s++) {
+         busy[s] = new AtomicLong();
+         done[s] = new AtomicLong();
+      }
+      for (int q = 0; q < 2; q++) {
+         depthSum[q] = new AtomicLong();
+         depthSamples[q] = new AtomicLong();
+         depthMax[q] = new AtomicInteger();
+      }
+   }
+
+   // Extract every frame of a stack, typically a virtual one. The results are the
+   // same as those of TraceExtractor.extract, which also provides dF/F and shifts.
+   public double[][] run(final ImageStack stack, DataMatrixStore matrix) throws IOException {
+      return run(new Source() {
+         int f = 0;
+
+         public int getFrames() {
+            return stack.getSize();
+         }
+
+         public boolean read(Frame frame) {
+            if (f == stack.getSize())
+               return false;
+            // Not pooled: a virtual stack has no way to read into a given array
+            frame.pixels = stack.getPixels(++f);
+            return true;
+         }
+      }, stack.getWidth(), stack.getHeight(), matrix);
+   }
+
+   // Extract every frame of a TIFF file, read one whole frame at a time
+   public double[][] run(final TiffStreamReader reader, DataMatrixStore matrix) throws IOException {
+      final int nPixels = reader.getWidth()*reader.getHeight();
+      return run(new Source() {
+         public int getFrames() {
+            return reader.getFrames();
+         }
+
+         public boolean read(Frame frame) throws IOException {
+            if (!reader.nextFrame())
+               return false;
+            // The reader reuses its array, so each buffer gets a copy
+            Object rows = reader.readRows(0, reader.getHeight());
+            if (frame.pixels == null) {
+               if (rows instanceof byte[]) frame.pixels = new byte[nPixels];
+               else if (rows instanceof short[]) frame.pixels = new short[nPixels];
+               else frame.pixels = new float[nPixels];
+            }
+            System.arraycopy(rows, 0, frame.pixels, 0, nPixels);
+            return true;
+         }
+      }, reader.getWidth(), reader.getHeight(), matrix);
+   }
+
+   private double[][] run(final Source source, final int width, final int height,
+                          final DataMatrixStore matrix) throws IOException {
+      final int nTargets = extractor.getTargets();
+      final int nFrames = source.getFrames();
+      final double[][] dPoints = new double[nTargets][nFrames];
+      final int[][] shifts = extractor.isCorrectingMotion() ? new int[2][nFrames] : null;
+
+      // Every frame in flight has its buffer: one in each queue slot, one being
+      // decoded, one being written and one with each worker
+      final BlockingQueue<Frame> free = new ArrayBlockingQueue<Frame>(2*queueSize + nWorkers + 2);
+      while (free.remainingCapacity() > 0)
+         free.add(new Frame(nTargets, matrix));
+      decoded = new ArrayBlockingQueue<Frame>(queueSize);
+      extracted = new ArrayBlockingQueue<Frame>(queueSize);
+      for (int s = 0; s < 3; s++) {
+         busy[s].set(0);
+         done[s].set(0);
+      }
+      for (int q = 0; q < 2; q++) {
+         depthSum[q].set(0);
+         depthSamples[q].set(0);
+         depthMax[q].set(0);
+      }
+      started = System.nanoTime();
+      elapsed = 0;
+
+      ExecutorService pool = Executors.newFixedThreadPool(nWorkers + 2);
+      CompletionService<Void> stages = new ExecutorCompletionService<Void>(pool);
+      try {
+         // Decode frames in order until the source runs out
+         stages.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+               int f = 0;
+               while (f < nFrames) {
+                  Frame frame = free.take();
+                  long start = System.nanoTime();
+                  boolean read = source.read(frame);
+                  busy[DECODE].addAndGet(System.nanoTime() - start);
+                  // A file with fewer frames than its header claims would leave
+                  // the rest of the traces zero
+                  if (!read)
+                     throw new IOException("Frame " + (f+1) + " of " + nFrames + " could not be read");
+                  frame.f = ++f;
+                  done[DECODE].incrementAndGet();
+                  decoded.put(frame);
+               }
+               for (int w = 0; w < nWorkers; w++)
+                  decoded.put(new Frame(END));
+               return null;
+            }
+         });
+
+         // Extract them in any order
+         for (int w = 0; w < nWorkers; w++) {
+            stages.submit(new Callable<Void>() {
+               public Void call() throws Exception {
+                  TraceExtractor.FrameExtractor frames = extractor.newFrameExtractor(width, height);
+                  while (true) {
+                     Frame frame = take(decoded, DECODED);
+                     if (frame.f == END) {
+                        extracted.put(frame);
+                        return null;
+                     }
+                     long start = System.nanoTime();
+                     frames.extract(frame.pixels, frame.values, frame.framePoints, frame.shift);
+                     busy[EXTRACT].addAndGet(System.nanoTime() - start);
+                     done[EXTRACT].incrementAndGet();
+                     extracted.put(frame);
+                  }
+               }
+            });
+         }
+
+         // Write them into the traces and the data matrix, and hand the buffers back
+         stages.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+               // The trace file takes frames in order, from the finished traces
+               TraceFile.Writer writer = extractor.getWriter();
+               boolean[] ready = writer != null ? new boolean[nFrames] : null;
+               int next = 1;
+               int running = nWorkers;
+               while (running > 0) {
+                  Frame frame = take(extracted, EXTRACTED);
+                  if (frame.f == END) {
+                     running--;
+                     continue;
+                  }
+                  long start = System.nanoTime();
+                  int f = frame.f;
+                  for (int i = 0; i < nTargets; i++)
+                     dPoints[i][f-1] = frame.values[i];
+                  if (shifts != null) {
+                     shifts[0][f-1] = frame.shift[0];
+                     shifts[1][f-1] = frame.shift[1];
+                  }
+                  if (matrix != null)
+                     matrix.putFrame(f, frame.framePoints);
+                  if (writer != null) {
+                     ready[f-1] = true;
+                     int first = next;
+                     while (next <= nFrames && ready[next-1])
+                        next++;
+                     if (next > first)
+                        writer.addFrames(dPoints, matrix, first, next-1);
+                  }
+                  busy[WRITE].addAndGet(System.nanoTime() - start);
+                  done[WRITE].incrementAndGet();
+                  free.put(frame);
+               }
+               return null;
+            }
+         });
+
+         // Wait for all stages, giving up on the others as soon as one fails
+         for (int s = 0; s < nWorkers + 2; s++)
+            stages.take().get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Extraction interrupted", e);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof IOException)
+            throw (IOException) e.getCause();
+         throw new RuntimeException("Extraction failed", e.getCause());
+      } finally {
+         pool.shutdownNow();
+         elapsed = System.nanoTime() - started;
+      }
+
+      extractor.finish(dPoints, shifts);
+      return dPoints;
+   }
+
+   // Take the next frame from a queue, noting how full it was
+   private Frame take(BlockingQueue<Frame> queue, int q) throws InterruptedException {
+      int depth = queue.size();
+      depthSum[q].addAndGet(depth);
+      depthSamples[q].incrementAndGet();
+      int max = depthMax[q].get();
+      while (depth > max && !depthMax[q].compareAndSet(max, depth))
+         max = depthMax[q].get();
+      return queue.take();
+   }
+
+   // Frames that have passed through a stage so far
+   public long getFrames(int stage) {
+      return done[stage].get();
+   }
+
+   // Time since the start of the run, or the length of the last run (seconds)
+   public double getElapsed() {
+      return (elapsed > 0 ? elapsed : System.nanoTime() - started)/1e9;
+   }
+
+   // Frames per second a stage managed over the whole run
+   public double getThroughput(int stage) {
+      double time = getElapsed();
+      return time > 0 ? done[stage].get()/time : 0;
+   }
+
+   // Frames per second a stage could keep up if it never had to wait for the
+   // others (with all its threads)
+   public double getCapacity(int stage) {
+      double time = busy[stage].get()/1e9;
+      return time > 0 ? done[stage].get()/time*threads(stage) : 0;
+   }
+
+   // Fraction of the run the threads of a stage spent working (0-1)
+   public double getUtilization(int stage) {
+      double time = getElapsed();
+      return time > 0 ? busy[stage].get()/1e9/(time*threads(stage)) : 0;
+   }
+
+   // Frames waiting in a queue right now
+   public int getQueueDepth(int queue) {
+      BlockingQueue<Frame> q = queue == DECODED ? decoded : extracted;
+      return q != null ? q.size() : 0;
+   }
+
+   // Frames waiting in a queue on average, as seen by the stage after it
+   public double getMeanQueueDepth(int queue) {
+      long samples = depthSamples[queue].get();
+      return samples > 0 ? (double) depthSum[queue].get()/samples : 0;
+   }
+
+   public int getMaxQueueDepth(int queue) {
+      return depthMax[queue].get();
+   }
+
+   // The stage that limits the run: the one that is busy the largest part of it
+   public int getBottleneck() {
+      int slowest = DECODE;
+      for (int s = 1; s < 3; s++)
+         if (getUtilization(s) > getUtilization(slowest))
+            slowest = s;
+      return slowest;
+   }
+
+   // One line per stage and queue, for the log
+   public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("Pipeline: %d frames in %.2f s, %.1f frames/s, %s bound%n",
+                              done[WRITE].get(), getElapsed(), getThroughput(WRITE),
+                              getBottleneck() == DECODE ? "I/O" : "CPU (" + STAGES[getBottleneck()] + ")"));
+      for (int s = 0; s < 3; s++)
+         sb.append(String.format("  %-8s %2d thread(s), %5.1f%% busy, up to %.1f frames/s%n",
+                                 STAGES[s], threads(s), 100*getUtilization(s), getCapacity(s)));
+      for (int q = 0; q < 2; q++)
+         sb.append(String.format("  queue after %s: %.1f frames on average, %d at most (of %d)%n",
+                                 STAGES[q], getMeanQueueDepth(q), getMaxQueueDepth(q), queueSize));
+      return sb.toString();
+   }
+
+   private int threads(int stage) {
+      return stage == EXTRACT ? nWorkers : 1;
+   }
+
+   // Where the decode stage gets its frames
+   private interface Source {
+      int getFrames();
+
+      // Read the next frame into frame.pixels, or return false after the last one
+      boolean read(Frame frame) throws IOException;
+   }
+
+   // A frame on its way through the stages, with the buffers it is extracted into
+   private static class Frame {
+      int f;
+      Object pixels;
+      final double[] values;
+      final Object framePoints;
+      final int[] shift = new int[2];
+
+      Frame(int nTargets, DataMatrixStore matrix) {
+         values = new double[nTargets];
+         framePoints = matrix != null ? matrix.newFrame() : null;
+      }
+
+      // The marker that ends the frames
+      Frame(int f) {
+         this.f = f;
+         values = null;
+         framePoints = null;
+      }
+   }
+}
@@ -0,0 +1,198 @@
+/**
+* Radix-2 complex FFT of a fixed power-of-two length, in one or two dimensions,
+* on double or float arrays. Twiddle factors and the bit-reversal permutation
+* are computed once, and all scratch space belongs to the instance, so a
+* transform allocates nothing. An instance must therefore only be used by one
+* thread at a time; to split a 2D transform among threads, give each its own
+* instance and a range of rows, then, once all rows are done, of columns.
+*/
+
+public class FFT {
+
+   private final int n, logN;
+   private final int[] reverse;
+   private final double[] cos, sin;
+   private final float[] cosF, sinF;
+   // One column of a 2D transform
+   private final double[] columnRe, columnIm;
+   // COLUMNS columns of a float 2D transform, one after the other
+   private final float[] columnsRe, columnsIm;
+
+   // Columns gathered at a time, so each row is read a cache line at a time
+   private static final int COLUMNS = 8;
+
+   // n must be a power of two
+   public FFT(int n) {
+      if (n < 1 || (n & (n-1)) != 0)
+         throw new IllegalArgumentException("FFT length must be a power of two: " + n);
+      this.n = n;
+      logN = Integer.numberOfTrailingZeros(n);
+      reverse = new int[n];
+      for (int k = 0; k < n; k++)
+         reverse[k] = logN == 0 ? 0 : Integer.reverse(k) >>> (32 - logN);
+      cos = new double[n/2];
+      sin = new double[n/2];
+      cosF = new float[n/2];
+      sinF = new float[n/2];
+      for (int k = 0; k < n/2; k++) {
+         cos[k] = Math.cos(2*Math.PI*k/n);
+         sin[k] = Math.sin(2*Math.PI*k/n);
+         cosF[k] = (float) cos[k];
+         sinF[k] = (float) sin[k];
+      }
+      columnRe = new double[n];
+      columnIm = new double[n];
+      columnsRe = new float[COLUMNS*n];
+      columnsIm = new float[COLUMNS*n];
+   }
+
+   public int getLength() {
+      return n;
+   }
+
+   // Largest power of two that is not larger than size
+   public static int floorPowerOf2(int size) {
+      return Integer.highestOneBit(Math.max(1, size));
+   }
+
+   // Smallest power of two that is not smaller than size
+   public static int ceilPowerOf2(int size) {
+      int power = floorPowerOf2(size);
+      return power < size ? 2*power : power;
+   }
+
+   // Transform n values in place. The inverse transform is scaled by 1/n, so it
+   // undoes the forward transform.
+   public void transform(double[] re, double[] im, boolean inverse) {
+      transform(re, im, 0, inverse);
+   }
+
+   // Transform an n x n array in place, stored row by row
+   public void transform2D(double[] re, double[] im, boolean inverse) {
+      for (int y = 0; y < n; y++)
+         transform(re, im, y*n, inverse);
+      for (int x = 0; x < n; x++) {
+         for (int y = 0; y < n; y++) {
+            columnRe[y] = re[y*n + x];
+            columnIm[y] = im[y*n + x];
+         }
+         transform(columnRe, columnIm, 0, inverse);
+         for (int y = 0; y < n; y++) {
+            re[y*n + x] = columnRe[y];
+            im[y*n + x] = columnIm[y];
+         }
+      }
+   }
+
+   // Transform re[offset..offset+n-1], im[offset..offset+n-1]
+   private void transform(double[] re, double[] im, int offset, boolean inverse) {
+      for (int k = 0; k < n; k++) {
+         int r = reverse[k];
+         if (r > k) {
+            double t = re[offset+k]; re[offset+k] = re[offset+r]; re[offset+r] = t;
+            t = im[offset+k]; im[offset+k] = im[offset+r]; im[offset+r] = t;
+         }
+      }
+
+      double sign = inverse ? 1 : -1;
+      for (int size = 2; size <= n; size *= 2) {
+         int half = size/2, step = n/size;
+         for (int start = offset; start < offset + n; start += size) {
+            for (int k = 0; k < half; k++) {
+               double wr = cos[k*step], wi = sign*sin[k*step];
+               int a = start + k, b = a + half;
+               double tr = re[b]*wr - im[b]*wi;
+               double ti = re[b]*wi + im[b]*wr;
+               re[b] = re[a] - tr;
+               im[b] = im[a] - ti;
+               re[a] += tr;
+               im[a] += ti;
+            }
+         }
+      }
+
+      if (inverse) {
+         double scale = 1.0/n;
+         for (int k = offset; k < offset + n; k++) {
+            re[k] *= scale;
+            im[k] *= scale;
+         }
+      }
+   }
+
+   // Transform n float values in place
+   public void transform(float[] re, float[] im, boolean inverse) {
+      transform(re, im, 0, inverse);
+   }
+
+   // Transform an n x n float array in place, stored row by row
+   public void transform2D(float[] re, float[] im, boolean inverse) {
+      transformRows(re, im, 0, n, inverse);
+      transformColumns(re, im, 0, n, inverse);
+   }
+
+   // Transform rows first..last-1 of an n x n float array
+   public void transformRows(float[] re, float[] im, int first, int last, boolean inverse) {
+      for (int y = first; y < last; y++)
+         transform(re, im, y*n, inverse);
+   }
+
+   // Transform columns first..last-1 of an n x n float array
+   public void transformColumns(float[] re, float[] im, int first, int last, boolean inverse) {
+      for (int x0 = first; x0 < last; x0 += COLUMNS) {
+         int count = Math.min(COLUMNS, last - x0);
+         for (int y = 0; y < n; y++) {
+            int row = y*n + x0;
+            for (int c = 0; c < count; c++) {
+               columnsRe[c*n + y] = re[row + c];
+               columnsIm[c*n + y] = im[row + c];
+            }
+         }
+         for (int c = 0; c < count; c++)
+            transform(columnsRe, columnsIm, c*n, inverse);
+         for (int y = 0; y < n; y++) {
+            int row = y*n + x0;
+            for (int c = 0; c < count; c++) {
+               re[row + c] = columnsRe[c*n + y];
+               im[row + c] = columnsIm[c*n + y];
+            }
+         }
+      }
+   }
+
+   // Transform re[offset..offset+n-1], im[offset..offset+n-1]
+   private void transform(float[] re, float[] im, int offset, boolean inverse) {
+      for (int k = 0; k < n; k++) {
+         int r = reverse[k];
+         if (r > k) {
+            float t = re[offset+k]; re[offset+k] = re[offset+r]; re[offset+r] = t;
+            t = im[offset+k]; im[offset+k] = im[offset+r]; im[offset+r] = t;
+         }
+      }
+
+      float sign = inverse ? 1 : -1;
+      for (int size = 2; size <= n; size *= 2) {
+         int half = size/2, step = n/size;
+         for (int start = offset; start < offset + n; start += size) {
+            for (int k = 0; k < half; k++) {
+               float wr = cosF[k*step], wi = sign*sinF[k*step];
+               int a = start + k, b = a + half;
+               float tr = re[b]*wr - im[b]*wi;
+               float ti = re[b]*wi + im[b]*wr;
+               re[b] = re[a] - tr;
+               im[b] = im[a] - ti;
+               re[a] += tr;
+               im[a] += ti;
+            }
+         }
+      }
+
+      if (inverse) {
+         float scale = 1.0f/n;
+         for (int k = offset; k < offset + n; k++) {
+            re[k] *= scale;
+            im[k] *= scale;
+         }
+      }
+   }
+}
@@ -0,0 +1,131 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+* Frames written one TIFF file at a time into a folder by an acquisition
+* program. Files already in the folder are read first, in order of their names,
+* and new files are picked up as the file system reports them, so the folder is
+* only listed again if the file system lost track of some of them (it reports
+* an overflow when too many files are created at once). A file is only read
+* once a newer file has appeared or it has not been modified for a while, so
+* frames are not read while being written.
+*/
+
+public class FolderSource implements FrameSource {
+
+   // Time a file has to be left alone before it is considered complete (ms)
+   private static final long SETTLE_TIME = 250;
+
+   private final File folder;
+   private final WatchService watcher;
+   private final LinkedList<File> pending = new LinkedList<File>();
+   // Names of the files queued so far, so none is read twice
+   private final Set<String> queued = new HashSet<String>();
+   private TiffStreamReader current;
+   private long frameTime;
+   private int width, height, rowBytes;
+
+   public FolderSource(String path) throws IOException {
+      folder = new File(path);
+      if (!folder.isDirectory())
+         throw new IOException("Not a folder: " + path);
+      watcher = FileSystems.getDefault().newWatchService();
+      folder.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+
+      // Frames that were written before we started watching. One written in
+      // between is also reported by the watcher, and queued only once.
+      scan();
+   }
+
+   public int getWidth() {
+      return width;
+   }
+
+   public int getHeight() {
+      return height;
+   }
+
+   public int getRowBytes() {
+      return rowBytes;
+   }
+
+   public boolean nextFrame() throws IOException {
+      // Collect the files created since the last call
+      WatchKey key = watcher.poll();
+      if (key != null) {
+         for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+               scan();
+            else if (context instanceof Path)
+               add(context.toString());
+         }
+         if (!key.reset())
+            throw new IOException("Folder can no longer be watched: " + folder);
+      }
+      if (pending.isEmpty())
+         return false;
+
+      // The newest file may still be being written
+      File next = pending.getFirst();
+      if (pending.size() == 1 && System.currentTimeMillis() - next.lastModified() < SETTLE_TIME)
+         return false;
+      pending.removeFirst();
+      // The file was complete when it was last written to
+      frameTime = TiffStreamReader.modifiedAt(next);
+
+      TiffStreamReader previous = current;
+      current = new TiffStreamReader(next.getPath());
+      if (previous != null) {
+         current.reuseBuffers(previous);
+         previous.close();
+      }
+      if (width == 0) {
+         width = current.getWidth();
+         height = current.getHeight();
+         rowBytes = current.getRowBytes();
+      } else if (current.getWidth() != width || current.getHeight() != height
+                 || current.getRowBytes() != rowBytes) {
+         throw new IOException(next.getName() + " has a different size or type");
+      }
+      return current.nextFrame();
+   }
+
+   // When the file of the current frame was last modified, before it had to
+   // settle or a newer one appear
+   public long getFrameTime() {
+      return frameTime;
+   }
+
+   public Object readRows(int y0, int y1) throws IOException {
+      return current.readRows(y0, y1);
+   }
+
+   public void close() throws IOException {
+      if (current != null)
+         current.close();
+      watcher.close();
+   }
+
+   // Queue the frames in the folder that have not been queued yet, in order of
+   // their names
+   private void scan() throws IOException {
+      String[] names = folder.list();
+      if (names == null)
+         throw new IOException("Folder can not be read: " + folder);
+      Arrays.sort(names);
+      for (String name : names)
+         add(name);
+   }
+
+   private void add(String name) {
+      if (isTiff(name) && queued.add(name))
+         pending.add(new File(folder, name));
+   }
+
+   private static boolean isTiff(String name) {
+      String lower = name.toLowerCase();
+      return lower.endsWith(".tif") || lower.endsWith(".tiff");
+   }
+}
@@ -0,0 +1,128 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import ij.*;
+
+/**
+* Extracts traces from arbitrarily shaped, weighted cell footprints (see
+* FootprintMatrix) instead of the square boxes of TraceExtractor. Each frame is a
+* sparse matrix-vector product of the footprints with its pixel array, for the
+* cells and, if there is one, for the neuropil around them.
+*
+* As in TraceExtractor, the stack is split into chunks of frames that are
+* extracted in parallel, and recordings that do not fit in memory can be
+* streamed one frame at a time. There is no data matrix.
+*/
+
+public class FootprintExtractor {
+
+   // Number of chunks handed to each thread, so that slow frames even out
+   private static final int CHUNKS_PER_THREAD = 4;
+
+   private final FootprintMatrix cells, neuropil;
+   private int nThreads = 1;
+   private double[][] neuropilTraces;
+
+   // neuropil may be null
+   public FootprintExtractor(FootprintMatrix cells, FootprintMatrix neuropil) {
+      this.cells = cells;
+      this.neuropil = neuropil;
+   }
+
+   public void setThreads(int nThreads) {
+      this.nThreads = Math.max(1, nThreads);
+   }
+
+   // Neuropil traces of the last extraction, [cell][frame], or null without neuropil
+   public double[][] getNeuropil() {
+      return neuropilTraces;
+   }
+
+   // Extract the traces of all cells across the stack, [cell][frame]
+   public double[][] extract(final ImageStack input) {
+      checkSize(input.getWidth(), input.getHeight());
+      final int nFrames = input.getSize();
+      final double[][] traces = new double[cells.getRows()][nFrames];
+      neuropilTraces = neuropil != null ? new double[neuropil.getRows()][nFrames] : null;
+
+      int nChunks = Math.min(nFrames, nThreads*CHUNKS_PER_THREAD);
+      if (nThreads == 1 || nChunks < 2) {
+         extractFrames(input, 1, nFrames, traces);
+         return traces;
+      }
+
+      ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+      try {
+         java.util.List<Future<?>> futures = new ArrayList<Future<?>>();
+         for (int c = 0; c < nChunks; c++) {
+            final int first = 1 + (int)((long)nFrames*c/nChunks);
+            final int last  = (int)((long)nFrames*(c+1)/nChunks);
+            futures.add(pool.submit(new Runnable() {
+                public void run() {
+                   extractFrames(input, first, last, traces);
+                }
+            }));
+         }
+         for (Future<?> future : futures)
+            future.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Extraction interrupted", e);
+      } catch (ExecutionException e) {
+         throw new RuntimeException("Extraction failed", e.getCause());
+      } finally {
+         pool.shutdownNow();
+      }
+      return traces;
+   }
+
+   // Extract frames first..last (1-based, inclusive)
+   private void extractFrames(ImageStack input, int first, int last, double[][] traces) {
+      double[] values = new double[cells.getRows()];
+      double[] around = neuropil != null ? new double[neuropil.getRows()] : null;
+      for (int f = first; f <= last; f++) {
+         // Virtual stacks are not safe to read from several threads
+         Object pixels;
+         if (input.isVirtual()) {
+            synchronized (input) {
+               pixels = input.getPixels(f);
+            }
+         } else {
+            pixels = input.getPixels(f);
+         }
+         store(pixels, f-1, values, around, traces);
+      }
+   }
+
+   // Extract the traces of all cells from a TIFF file read one frame at a time
+   public double[][] extract(TiffStreamReader reader) throws IOException {
+      checkSize(reader.getWidth(), reader.getHeight());
+      int nFrames = reader.getFrames();
+      double[][] traces = new double[cells.getRows()][nFrames];
+      neuropilTraces = neuropil != null ? new double[neuropil.getRows()][nFrames] : null;
+      double[] values = new double[cells.getRows()];
+      double[] around = neuropil != null ? new double[neuropil.getRows()] : null;
+      for (int f = 0; f < nFrames; f++) {
+         if (!reader.nextFrame())
+            throw new IOException("Frame " + (f+1) + " of " + nFrames + " could not be read: " + reader.getPath());
+         store(reader.readRows(0, reader.getHeight()), f, values, around, traces);
+      }
+      return traces;
+   }
+
+   private void store(Object pixels, int f, double[] values, double[] around, double[][] traces) {
+      cells.multiply(pixels, values);
+      for (int i = 0; i < values.length; i++)
+         traces[i][f] = values[i];
+      if (neuropil != null) {
+         neuropil.multiply(pixels, around);
+         for (int i = 0; i < around.length; i++)
+            neuropilTraces[i][f] = around[i];
+      }
+   }
+
+   private void checkSize(int width, int height) {
+      if (width != cells.getWidth() || height != cells.getHeight())
+         throw new IllegalArgumentException("Frames must be the same size as the footprints");
+   }
+}
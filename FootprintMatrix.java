@@ -0,0 +1,273 @@
+import java.awt.*;
+import java.util.*;
+import ij.gui.*;
+import ij.process.*;
+
+/**
+* The footprints of all cells compiled into one sparse weight matrix, one row per
+* cell and one column per pixel, stored row by row (CSR): the pixels of row r are
+* offsets[start[r]] .. offsets[start[r+1]-1] with their weights alongside. The
+* trace values of a frame are then a single sparse matrix-vector product over
+* its pixel array, which costs as much as there are footprint pixels, however
+* the footprints are shaped and however much they overlap.
+*
+* Footprints are added to a Builder as disks, ImageJ selections (polygons,
+* ovals, ...) or images of weights. The builder can also make the neuropil
+* annulus around each cell, leaving out the pixels of every cell.
+*/
+
+public class FootprintMatrix {
+
+   private final int width, height;
+   private final int[] start, offsets;
+   private final float[] weights;
+
+   private FootprintMatrix(int width, int height, int[] start, int[] offsets, float[] weights) {
+      this.width = width;
+      this.height = height;
+      this.start = start;
+      this.offsets = offsets;
+      this.weights = weights;
+   }
+
+   public int getWidth() {
+      return width;
+   }
+
+   public int getHeight() {
+      return height;
+   }
+
+   // Number of footprints
+   public int getRows() {
+      return start.length - 1;
+   }
+
+   // Number of pixels in footprint r
+   public int getCount(int r) {
+      return start[r+1] - start[r];
+   }
+
+   // Number of pixels in all footprints together
+   public int getNonZeros() {
+      return offsets.length;
+   }
+
+   // Weighted sum of the pixels of each footprint in a frame whose pixels are a
+   // byte[], short[] or float[], stored in values[footprint]
+   public void multiply(Object pixels, double[] values) {
+      int nRows = start.length - 1;
+      if (pixels instanceof short[]) {
+         short[] p = (short[]) pixels;
+         for (int r = 0; r < nRows; r++) {
+            double sum = 0;
+            for (int j = start[r]; j < start[r+1]; j++)
+               sum += weights[j]*(p[offsets[j]] & 0xffff);
+            values[r] = sum;
+         }
+      } else if (pixels instanceof byte[]) {
+         byte[] p = (byte[]) pixels;
+         for (int r = 0; r < nRows; r++) {
+            double sum = 0;
+            for (int j = start[r]; j < start[r+1]; j++)
+               sum += weights[j]*(p[offsets[j]] & 0xff);
+            values[r] = sum;
+         }
+      } else {
+         float[] p = (float[]) pixels;
+         for (int r = 0; r < nRows; r++) {
+            double sum = 0;
+            for (int j = start[r]; j < start[r+1]; j++)
+               sum += weights[j]*p[offsets[j]];
+            values[r] = sum;
+         }
+      }
+   }
+
+   // Collects footprints for a frame of the given size
+   public static class Builder {
+      private final int width, height;
+      // Pixels and weights of each footprint, in the order they were added
+      private final java.util.List<int[]> pixelLists = new ArrayList<int[]>();
+      private final java.util.List<float[]> weightLists = new ArrayList<float[]>();
+
+      public Builder(int width, int height) {
+         this.width = width;
+         this.height = height;
+      }
+
+      // Number of footprints added so far
+      public int size() {
+         return pixelLists.size();
+      }
+
+      // A disk of pixels whose centers are within radius of (x, y), all weighted 1
+      public int addDisk(double x, double y, double radius) {
+         return addAnnulus(x, y, -1, radius, null);
+      }
+
+      // The pixels inside an ImageJ area selection, all weighted 1
+      public int addRoi(Roi roi) {
+         Rectangle bounds = roi.getBounds();
+         ImageProcessor mask = roi.getMask();
+         IntList pixels = new IntList();
+         for (int y = 0; y < bounds.height; y++) {
+            for (int x = 0; x < bounds.width; x++) {
+               if (mask != null && mask.get(x, y) == 0)
+                  continue;
+               int px = bounds.x + x, py = bounds.y + y;
+               if (px >= 0 && py >= 0 && px < width && py < height)
+                  pixels.add(py*width + px);
+            }
+         }
+         return add(pixels.toArray(), null);
+      }
+
+      // The non-zero pixels of an image of weights placed with its top left
+      // corner at (x0, y0)
+      public int addWeights(int x0, int y0, ImageProcessor ip) {
+         IntList pixels = new IntList();
+         java.util.List<Float> values = new ArrayList<Float>();
+         for (int y = 0; y < ip.getHeight(); y++) {
+            for (int x = 0; x < ip.getWidth(); x++) {
+               float weight = ip.getf(x, y);
+               int px = x0 + x, py = y0 + y;
+               if (weight != 0 && px >= 0 && py >= 0 && px < width && py < height) {
+                  pixels.add(py*width + px);
+                  values.add(weight);
+               }
+            }
+         }
+         float[] w = new float[values.size()];
+         for (int j = 0; j < w.length; j++)
+            w[j] = values.get(j);
+         return add(pixels.toArray(), w);
+      }
+
+      // The matrix of the footprints added so far. If normalize is set, the
+      // weights of each footprint add up to 1, so its trace is a weighted mean.
+      public FootprintMatrix build(boolean normalize) {
+         return compile(pixelLists, weightLists, normalize);
+      }
+
+      // The matrix of the neuropil around each footprint added so far: the pixels
+      // between inner and outer radius of its center that belong to no footprint
+      public FootprintMatrix buildNeuropil(double inner, double outer, boolean normalize) {
+         boolean[] cell = new boolean[width*height];
+         for (int[] pixels : pixelLists)
+            for (int p : pixels)
+               cell[p] = true;
+         java.util.List<int[]> rings = new ArrayList<int[]>();
+         for (int r = 0; r < pixelLists.size(); r++) {
+            double[] center = center(pixelLists.get(r), weightLists.get(r));
+            Builder ring = new Builder(width, height);
+            ring.addAnnulus(center[0], center[1], inner, outer, cell);
+            rings.add(ring.pixelLists.get(0));
+         }
+         java.util.List<float[]> ones = new ArrayList<float[]>();
+         for (int r = 0; r < rings.size(); r++)
+            ones.add(null);
+         return compile(rings, ones, normalize);
+      }
+
+      // Pixels whose centers lie in (inner, outer] of (x, y), skipping excluded ones
+      private int addAnnulus(double x, double y, double inner, double outer, boolean[] excluded) {
+         IntList pixels = new IntList();
+         int x0 = (int) Math.floor(x - outer), x1 = (int) Math.ceil(x + outer);
+         int y0 = (int) Math.floor(y - outer), y1 = (int) Math.ceil(y + outer);
+         double in2 = inner < 0 ? -1 : inner*inner, out2 = outer*outer;
+         for (int py = Math.max(0, y0); py <= Math.min(height-1, y1); py++) {
+            for (int px = Math.max(0, x0); px <= Math.min(width-1, x1); px++) {
+               double d2 = (px-x)*(px-x) + (py-y)*(py-y);
+               int p = py*width + px;
+               if (d2 > in2 && d2 <= out2 && (excluded == null || !excluded[p]))
+                  pixels.add(p);
+            }
+         }
+         return add(pixels.toArray(), null);
+      }
+
+      private int add(int[] pixels, float[] weights) {
+         pixelLists.add(pixels);
+         weightLists.add(weights);
+         return pixelLists.size() - 1;
+      }
+
+      // Weighted center of a footprint, x then y
+      private double[] center(int[] pixels, float[] weights) {
+         double sum = 0, sx = 0, sy = 0;
+         for (int j = 0; j < pixels.length; j++) {
+            double w = weights != null ? Math.abs(weights[j]) : 1;
+            sum += w;
+            sx += w*(pixels[j] % width);
+            sy += w*(pixels[j] / width);
+         }
+         return sum > 0 ? new double[] {sx/sum, sy/sum} : new double[] {0, 0};
+      }
+
+      // Sort each footprint by pixel, merging repeated pixels, and pack them all
+      private FootprintMatrix compile(java.util.List<int[]> pixelLists,
+                                      java.util.List<float[]> weightLists, boolean normalize) {
+         int nRows = pixelLists.size();
+         int[] start = new int[nRows+1];
+         int[][] rowPixels = new int[nRows][];
+         float[][] rowWeights = new float[nRows][];
+         for (int r = 0; r < nRows; r++) {
+            int[] pixels = pixelLists.get(r);
+            float[] weights = weightLists.get(r);
+            long[] keyed = new long[pixels.length];
+            for (int j = 0; j < pixels.length; j++)
+               keyed[j] = ((long) pixels[j] << 32) | j;
+            Arrays.sort(keyed);
+            int[] p = new int[pixels.length];
+            float[] w = new float[pixels.length];
+            int n = 0;
+            for (long key : keyed) {
+               int pixel = (int) (key >>> 32), j = (int) key;
+               float weight = weights != null ? weights[j] : 1;
+               if (n > 0 && p[n-1] == pixel) {
+                  w[n-1] += weight;
+               } else {
+                  p[n] = pixel;
+                  w[n++] = weight;
+               }
+            }
+            if (normalize) {
+               double sum = 0;
+               for (int j = 0; j < n; j++)
+                  sum += w[j];
+               if (sum != 0)
+                  for (int j = 0; j < n; j++)
+                     w[j] /= sum;
+            }
+            rowPixels[r] = Arrays.copyOf(p, n);
+            rowWeights[r] = Arrays.copyOf(w, n);
+            start[r+1] = start[r] + n;
+         }
+
+         int[] offsets = new int[start[nRows]];
+         float[] weights = new float[start[nRows]];
+         for (int r = 0; r < nRows; r++) {
+            System.arraycopy(rowPixels[r], 0, offsets, start[r], rowPixels[r].length);
+            System.arraycopy(rowWeights[r], 0, weights, start[r], rowWeights[r].length);
+         }
+         return new FootprintMatrix(width, height, start, offsets, weights);
+      }
+   }
+
+   // Growable int array
+   private static class IntList {
+      private int[] values = new int[64];
+      private int size;
+
+      void add(int value) {
+         if (size == values.length)
+            values = Arrays.copyOf(values, size*2);
+         values[size++] = value;
+      }
+
+      int[] toArray() {
+         return Arrays.copyOf(values, size);
+      }
+   }
+}
@@ -0,0 +1,31 @@
+import java.io.*;
+
+/**
+* A source of frames that are read one at a time, in bands of rows, such as a
+* TIFF file on disk or a folder that an acquisition program writes frames to.
+*/
+
+public interface FrameSource {
+
+   public int getWidth();
+
+   public int getHeight();
+
+   // Bytes needed to hold one row of a frame
+   public int getRowBytes();
+
+   // Move on to the next frame. Returns false if no further frame is available
+   // (yet), in which case it may be called again later.
+   public boolean nextFrame() throws IOException;
+
+   // System.nanoTime() by which the current frame was complete in the source,
+   // e.g. when its file was last modified; at the latest when nextFrame()
+   // returned it
+   public long getFrameTime() throws IOException;
+
+   // Read rows y0..y1-1 of the current frame into a byte[], short[] or float[]
+   // that may be reused by the next call
+   public Object readRows(int y0, int y1) throws IOException;
+
+   public void close() throws IOException;
+}
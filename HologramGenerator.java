@@ -0,0 +1,289 @@
+import java.util.*;
+import java.util.concurrent.*;
+import ij.process.*;
+
+/**
+* Computes the SLM phase pattern that focuses light onto a set of spots, with
+* the Gerchberg-Saxton algorithm or its weighted form (Di Leonardo et al.,
+* 2007), instead of projecting the amplitude mask of MaskGenerator.
+*
+* The far field of the SLM is the Fourier transform of exp(i*phase) over its
+* size x size aperture. Each iteration transforms the SLM field to the far field,
+* keeps the phase at the spots with the wanted amplitude and sets everything
+* else to 0, transforms back and keeps the phase of the SLM field. Weighted GS
+* raises the wanted amplitude of spots that come out weak and lowers that of
+* strong ones, which makes the spots far more uniform for a few iterations
+* more.
+*
+* The transforms are done on a grid of the next power of two, padded around the
+* aperture, in float arrays. Rows and then columns of each 2D transform are
+* split among the threads, as are the steps between the transforms. Spot
+* coordinates are pixels of the size x size pattern with the optical axis at
+* its center; on a larger grid they are scaled to match.
+*
+* Iterations stop after the maximum or once no spot amplitude changes by more
+* than the tolerance (relative to their mean) from one iteration to the next.
+* The time, uniformity and efficiency of each iteration are kept.
+*/
+
+public class HologramGenerator {
+
+   private final int size, n;
+   private int nThreads = 1, maxIterations = 30;
+   private double tolerance = 1e-3;
+   private boolean weighted = true;
+   private long seed = 1;
+
+   // Fields on the grid, row by row, and the aperture of the SLM on it
+   private final float[] re, im;
+   private final int apertureStart;
+   private FFT[] ffts;
+
+   // Per iteration: time (ms), uniformity and efficiency
+   private final ArrayList<double[]> history = new ArrayList<double[]>();
+
+   // size: side of the SLM pattern (pixels)
+   public HologramGenerator(int size) {
+      this.size = size;
+      n = FFT.ceilPowerOf2(size);
+      re = new float[n*n];
+      im = new float[n*n];
+      apertureStart = (n - size)/2;
+   }
+
+   public void setThreads(int nThreads) {
+      this.nThreads = Math.max(1, nThreads);
+   }
+
+   // Largest number of iterations
+   public void setIterations(int maxIterations) {
+      this.maxIterations = Math.max(1, maxIterations);
+   }
+
+   // Largest change of the spot amplitudes, relative to their mean, at which the
+   // iterations stop (0: always do them all)
+   public void setTolerance(double tolerance) {
+      this.tolerance = tolerance;
+   }
+
+   // Weighted GS (true) or plain GS
+   public void setWeighted(boolean weighted) {
+      this.weighted = weighted;
+   }
+
+   // Seed of the random phase the iterations start from
+   public void setSeed(long seed) {
+      this.seed = seed;
+   }
+
+   public int getSize() {
+      return size;
+   }
+
+   // Iterations done by the last compute
+   public int getIterations() {
+      return history.size();
+   }
+
+   // Time taken by iteration k (ms)
+   public double getTime(int k) {
+      return history.get(k)[0];
+   }
+
+   // Uniformity of the spot intensities the phase going into iteration k gives,
+   // 1 - (max-min)/(max+min)
+   public double getUniformity(int k) {
+      return history.get(k)[1];
+   }
+
+   // Fraction of the light in the spots with the phase going into iteration k
+   public double getEfficiency(int k) {
+      return history.get(k)[2];
+   }
+
+   // The phase pattern, 0 to 2*pi, that focuses the light onto the nSpots spots
+   // at xs, ys (pixels of the pattern)
+   public FloatProcessor compute(double[] xs, double[] ys, int nSpots) {
+      history.clear();
+      if (ffts == null || ffts.length != nThreads) {
+         ffts = new FFT[nThreads];
+         for (int t = 0; t < nThreads; t++)
+            ffts[t] = new FFT(n);
+      }
+
+      // Grid index of each spot, the optical axis at 0
+      int[] spots = new int[nSpots];
+      double scale = (double) n/size;
+      for (int s = 0; s < nSpots; s++) {
+         int u = (int) Math.round((xs[s] - size/2)*scale);
+         int v = (int) Math.round((ys[s] - size/2)*scale);
+         spots[s] = ((v % n + n) % n)*n + (u % n + n) % n;
+      }
+      double[] weights = new double[nSpots];
+      Arrays.fill(weights, 1);
+      double[] amplitude = new double[nSpots], previous = new double[nSpots];
+      float[] spotRe = new float[nSpots], spotIm = new float[nSpots];
+
+      // Start from a random phase over the aperture
+      Arrays.fill(re, 0);
+      Arrays.fill(im, 0);
+      Random random = new Random(seed);
+      for (int y = 0; y < size; y++) {
+         for (int x = 0; x < size; x++) {
+            double phase = 2*Math.PI*random.nextDouble();
+            int k = (y + apertureStart)*n + x + apertureStart;
+            re[k] = (float) Math.cos(phase);
+            im[k] = (float) Math.sin(phase);
+         }
+      }
+
+      ExecutorService pool = nThreads > 1 ? Executors.newFixedThreadPool(nThreads) : null;
+      try {
+         for (int k = 0; k < maxIterations; k++) {
+            long start = System.nanoTime();
+            transform(pool, false);
+
+            // Amplitudes at the spots, and how much they changed
+            double sum = 0, min = Double.POSITIVE_INFINITY, max = 0, power = 0;
+            for (int s = 0; s < nSpots; s++) {
+               spotRe[s] = re[spots[s]];
+               spotIm[s] = im[spots[s]];
+               double intensity = spotRe[s]*spotRe[s] + spotIm[s]*spotIm[s];
+               amplitude[s] = Math.sqrt(intensity);
+               sum += amplitude[s];
+               power += intensity;
+               min = Math.min(min, intensity);
+               max = Math.max(max, intensity);
+            }
+            double mean = sum/Math.max(nSpots, 1);
+            double change = 0;
+            for (int s = 0; s < nSpots; s++)
+               change = Math.max(change, Math.abs(amplitude[s] - previous[s])/Math.max(mean, 1e-30));
+            System.arraycopy(amplitude, 0, previous, 0, nSpots);
+
+            // Keep only the spots, with the phase they have, at the wanted amplitude
+            for (int s = 0; s < nSpots; s++) {
+               if (weighted && amplitude[s] > 0)
+                  weights[s] *= mean/amplitude[s];
+               double norm = amplitude[s] > 0 ? weights[s]/amplitude[s] : 0;
+               spotRe[s] = amplitude[s] > 0 ? (float) (spotRe[s]*norm) : (float) weights[s];
+               spotIm[s] = (float) (spotIm[s]*norm);
+            }
+            Arrays.fill(re, 0);
+            Arrays.fill(im, 0);
+            for (int s = 0; s < nSpots; s++) {
+               re[spots[s]] += spotRe[s];
+               im[spots[s]] += spotIm[s];
+            }
+
+            transform(pool, true);
+            constrain(pool);
+
+            // All the light that reaches the far field comes from the aperture
+            // (Parseval), n*n per unit of amplitude on each of its pixels
+            double total = (double) n*n*size*size;
+            history.add(new double[] {(System.nanoTime() - start)/1e6,
+                                      max + min > 0 ? 1 - (max - min)/(max + min) : 0,
+                                      power/total});
+            if (k > 0 && change < tolerance)
+               break;
+         }
+      } finally {
+         if (pool != null)
+            pool.shutdownNow();
+      }
+
+      // The phase over the aperture
+      FloatProcessor phase = new FloatProcessor(size, size);
+      float[] pixels = (float[]) phase.getPixels();
+      for (int y = 0; y < size; y++) {
+         for (int x = 0; x < size; x++) {
+            int k = (y + apertureStart)*n + x + apertureStart;
+            double p = Math.atan2(im[k], re[k]);
+            pixels[y*size + x] = (float) (p < 0 ? p + 2*Math.PI : p);
+         }
+      }
+      phase.resetMinAndMax();
+      return phase;
+   }
+
+   // Phase pattern as gray levels, 0 to 255 for 0 to 2*pi, as an SLM shows it
+   public static ByteProcessor toGrayLevels(FloatProcessor phase) {
+      float[] pixels = (float[]) phase.getPixels();
+      byte[] levels = new byte[pixels.length];
+      for (int k = 0; k < pixels.length; k++)
+         levels[k] = (byte) ((int) Math.floor(pixels[k]/(2*Math.PI)*256) & 0xff);
+      return new ByteProcessor(phase.getWidth(), phase.getHeight(), levels);
+   }
+
+   // 2D transform of the grid, rows and then columns split among the threads
+   private void transform(ExecutorService pool, final boolean inverse) {
+      run(pool, new Part() {
+         public void run(FFT fft, int first, int last) {
+            fft.transformRows(re, im, first, last, inverse);
+         }
+      });
+      run(pool, new Part() {
+         public void run(FFT fft, int first, int last) {
+            fft.transformColumns(re, im, first, last, inverse);
+         }
+      });
+   }
+
+   // Unit amplitude with the phase the field has inside the aperture, nothing
+   // outside it. The phase factor is the field over its magnitude, no angle needed.
+   private void constrain(ExecutorService pool) {
+      run(pool, new Part() {
+         public void run(FFT fft, int first, int last) {
+            for (int y = first; y < last; y++) {
+               boolean inside = y >= apertureStart && y < apertureStart + size;
+               for (int x = 0, k = y*n; x < n; x++, k++) {
+                  if (inside && x >= apertureStart && x < apertureStart + size) {
+                     float magnitude = (float) Math.sqrt(re[k]*re[k] + im[k]*im[k]);
+                     if (magnitude > 0) {
+                        re[k] /= magnitude;
+                        im[k] /= magnitude;
+                     } else {
+                        re[k] = 1;
+                     }
+                  } else {
+                     re[k] = im[k] = 0;
+                  }
+               }
+            }
+         }
+      });
+   }
+
+   // Rows (or columns) of the grid for one thread, with its own FFT
+   private interface Part {
+      void run(FFT fft, int first, int last);
+   }
+
+   // Split the n rows among the threads and wait for all of them
+   private void run(ExecutorService pool, final Part part) {
+      if (pool == null) {
+         part.run(ffts[0], 0, n);
+         return;
+      }
+      java.util.List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int t = 0; t < nThreads; t++) {
+         final FFT fft = ffts[t];
+         final int first = n*t/nThreads, last = n*(t+1)/nThreads;
+         futures.add(pool.submit(new Runnable() {
+            public void run() {
+               part.run(fft, first, last);
+            }
+         }));
+      }
+      try {
+         for (Future<?> future : futures)
+            future.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Hologram interrupted", e);
+      } catch (ExecutionException e) {
+         throw new RuntimeException("Hologram failed", e.getCause());
+      }
+   }
+}
@@ -0,0 +1,79 @@
+/**
+* Counts of durations in nanoseconds, for latencies measured on every frame. The
+* bins are exact up to 64 ns and then 32 per power of two, so any duration is
+* kept to within about 3% in a fixed array of under 2000 counts. Recording
+* allocates nothing and costs a few instructions.
+*
+* A histogram is written by one thread; others may read it while it is
+* written, which gives figures that are at most a frame behind.
+*/
+
+public class LatencyHistogram {
+
+   // Bins per power of two (as bits) above 2*SUB nanoseconds
+   private static final int SUB_BITS = 5, SUB = 1 << SUB_BITS;
+
+   private final long[] counts = new long[2*SUB + (62 - SUB_BITS)*SUB];
+   private long count, sum, max;
+
+   // Add a duration (ns); negative ones count as 0
+   public void record(long nanos) {
+      if (nanos < 0)
+         nanos = 0;
+      counts[bin(nanos)]++;
+      count++;
+      sum += nanos;
+      if (nanos > max)
+         max = nanos;
+   }
+
+   public void reset() {
+      java.util.Arrays.fill(counts, 0);
+      count = sum = max = 0;
+   }
+
+   public long getCount() {
+      return count;
+   }
+
+   // Mean and largest duration (ns)
+   public double getMean() {
+      return count > 0 ? (double) sum/count : 0;
+   }
+
+   public long getMax() {
+      return max;
+   }
+
+   // The duration (ns) that fraction p (0 to 1) of those recorded do not
+   // exceed, to the precision of its bin
+   public double getPercentile(double p) {
+      if (count == 0)
+         return 0;
+      long rank = (long) Math.ceil(Math.max(0, Math.min(1, p))*count);
+      long seen = 0;
+      for (int b = 0; b < counts.length; b++) {
+         seen += counts[b];
+         if (seen >= Math.max(1, rank))
+            return Math.min(max, middle(b));
+      }
+      return max;
+   }
+
+   private static int bin(long v) {
+      if (v < 2*SUB)
+         return (int) v;
+      int e = 63 - Long.numberOfLeadingZeros(v);
+      int shift = e - SUB_BITS;
+      return 2*SUB + (shift - 1)*SUB + (int) (v >>> shift) - SUB;
+   }
+
+   // Middle of the durations of bin b
+   private static double middle(int b) {
+      if (b < 2*SUB)
+         return b;
+      int k = b - 2*SUB, shift = k/SUB + 1;
+      long low = (long) (SUB + k % SUB) << shift;
+      return low + (1L << shift)/2.0;
+   }
+}
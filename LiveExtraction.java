@@ -0,0 +1,318 @@
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import ij.*;
+import ij.process.*;
+
+/**
+* Extracts traces from frames as they arrive during an acquisition. Only the new
+* frames are read; their trace values are appended to the traces extracted so
+* far. The trace viewer follows the most recent frames and is redrawn at a bounded
+* rate, independent of how fast frames come in. Every frame costs the same no
+* matter how long the session has been running: buffers are reused, traces grow
+* by doubling, and the min/max pyramid the viewer draws from is updated as
+* values come in, so zooming out to the whole session stays fast.
+*
+* Frames are read and extracted (and their dF/F computed) on a thread of their
+* own, which hands the values of each frame to the calling thread through a
+* queue of reused buffers. The calling thread appends them to the traces and
+* does everything else, including the redraws, so those never hold up the
+* next frame. Only if it falls QUEUE_FRAMES frames behind does extraction wait
+* for it.
+*
+* If the extractor has a trace file, each frame is appended to it as it comes in,
+* so the traces of a session are on disk even before it is stopped.
+*
+* If the extractor computes dF/F, the viewer shows the dF/F traces instead of
+* the raw ones. With an EventDetector, events are inferred from the traces
+* shown as they come in, and a second viewer shows them as a raster, getLag()
+* frames behind the traces. With a CorrelationMatrix, the correlations between
+* the traces shown are updated with each frame and redrawn, in cluster order,
+* along with the traces.
+*
+* With a ClosedLoop, each frame's mask is made and sent on the extraction
+* thread as soon as its values (and dF/F) are known, before the frame is handed
+* on. Its latency is timed from the source's frame time, so the time a frame
+* waited to be picked up counts as well, and the source is polled every
+* POLL_LOOP_NANOS instead of every POLL_TIME. Reading a growing TIFF file, the
+* extraction thread allocates nothing per frame while it keeps up (a folder
+* opens a file for each), but a collection caused by the other thread still
+* pauses it.
+*
+* Extraction stops when the viewer window is closed or escape is pressed, after
+* which the viewer shows the whole session.
+*/
+
+public class LiveExtraction {
+
+   // Time to wait before checking the source again when no frame is ready (ms)
+   private static final long POLL_TIME = 5;
+   // The same with a closed loop (ns)
+   private static final long POLL_LOOP_NANOS = 100000;
+   // Extracted frames that may wait for the calling thread
+   private static final int QUEUE_FRAMES = 256;
+
+   private final TraceExtractor extractor;
+   private final int nTargets, plotFrames;
+   private final double nScale;
+   private final long refreshTime, bandBytes;
+
+   private EventDetector events;
+   private CorrelationMatrix correlations;
+   private ClosedLoop loop;
+   private ImagePlus correlationImage;
+   private TracePyramid traces, deltaTraces, eventTraces;
+   private volatile boolean stopped;
+   private volatile Throwable failure;
+
+   // nScale: height of each trace (pixels); plotFrames: number of recent frames
+   // shown; refreshRate: plot redraws per second
+   public LiveExtraction(TraceExtractor extractor, int nTargets, double nScale,
+                         int plotFrames, double refreshRate, long bandBytes) {
+      this.extractor = extractor;
+      this.nTargets = nTargets;
+      this.nScale = nScale;
+      this.plotFrames = Math.max(2, plotFrames);
+      this.refreshTime = (long) (1000/Math.max(refreshRate, 0.01));
+      this.bandBytes = bandBytes;
+   }
+
+   // Infer events from the traces (null turns it off)
+   public void setEventDetector(EventDetector events) {
+      this.events = events;
+   }
+
+   // Correlate the traces (null turns it off)
+   public void setCorrelations(CorrelationMatrix correlations) {
+      this.correlations = correlations;
+   }
+
+   // Send a mask for every frame (null turns it off)
+   public void setClosedLoop(ClosedLoop loop) {
+      this.loop = loop;
+   }
+
+   // Extract frames from source until stopped and return the traces of all
+   // frames seen, [target][frame]
+   public double[][] run(final FrameSource source) throws IOException {
+      traces = new TracePyramid(nTargets);
+      final DeltaF delta = extractor.newDeltaF();
+      deltaTraces = delta != null ? new TracePyramid(nTargets) : null;
+      TraceViewer viewer = new TraceViewer(delta != null ? deltaTraces : traces, (int) nScale);
+      viewer.setFollow(plotFrames);
+      eventTraces = events != null ? new TracePyramid(nTargets) : null;
+      TraceViewer raster = null;
+      if (events != null) {
+         raster = new TraceViewer(eventTraces, (int) nScale);
+         raster.setRaster(true);
+         raster.setFollow(plotFrames);
+      }
+
+      // Buffers go to the extraction thread through free and come back with a
+      // frame's values through ready
+      final BlockingQueue<Frame> free = new ArrayBlockingQueue<Frame>(QUEUE_FRAMES);
+      final BlockingQueue<Frame> ready = new ArrayBlockingQueue<Frame>(QUEUE_FRAMES);
+      while (free.remainingCapacity() > 0)
+         free.add(new Frame(nTargets));
+      stopped = false;
+      failure = null;
+      Thread thread = new Thread(new Runnable() {
+         public void run() {
+            try {
+               extract(source, delta, free, ready);
+            } catch (Throwable e) {
+               failure = e;
+            }
+         }
+      }, "Live extraction");
+      thread.setPriority(Thread.MAX_PRIORITY);
+      thread.start();
+
+      double[] found = new double[nTargets];
+      TraceFile.Writer writer = extractor.getWriter();
+      boolean shown = false;
+      long lastRefresh = 0;
+      IJ.resetEscape();
+
+      try {
+         while (!IJ.escapePressed() && (thread.isAlive() || !ready.isEmpty())) {
+            // All frames extracted since the last redraw
+            Frame frame = ready.poll(POLL_TIME, TimeUnit.MILLISECONDS);
+            while (frame != null) {
+               append(frame, writer, found);
+               free.add(frame);
+               frame = ready.poll();
+            }
+
+            // Redraw the traces at a bounded rate
+            long now = System.currentTimeMillis();
+            if (traces.getFrames() > 1 && now - lastRefresh >= refreshTime) {
+               if (viewer.isClosed())
+                  break;
+               if (shown) {
+                  viewer.refresh();
+                  if (raster != null && !raster.isClosed())
+                     raster.refresh();
+                  if (correlations != null)
+                     showCorrelations();
+               } else {
+                  viewer.show(delta != null ? "Live dF/F" : "Live Traces");
+                  if (raster != null)
+                     raster.show("Live Events");
+                  shown = true;
+               }
+               lastRefresh = now;
+               if (loop != null)
+                  IJ.showStatus("Live extraction: " + traces.getFrames() + " frames, mask latency 99% "
+                                + IJ.d2s(loop.getLatency(ClosedLoop.TOTAL).getPercentile(0.99)/1e3, 0)
+                                + " us (press Esc to stop)");
+               else
+                  IJ.showStatus("Live extraction: " + traces.getFrames() + " frames (press Esc to stop)");
+            }
+         }
+
+         // Frames extracted until the extraction thread stops are part of the
+         // session. It is not interrupted, which would close the source's file.
+         stopped = true;
+         while (thread.isAlive() || !ready.isEmpty()) {
+            Frame frame = ready.poll(POLL_TIME, TimeUnit.MILLISECONDS);
+            if (frame != null) {
+               append(frame, writer, found);
+               free.add(frame);
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Live extraction interrupted", e);
+      } finally {
+         // The source is closed once this returns, so the extraction thread has
+         // to be done with it, however this ends
+         stopped = true;
+         boolean interrupted = false;
+         while (thread.isAlive()) {
+            try {
+               thread.join();
+            } catch (InterruptedException e) {
+               interrupted = true;
+            }
+         }
+         if (interrupted)
+            Thread.currentThread().interrupt();
+      }
+      if (failure instanceof IOException)
+         throw (IOException) failure;
+      if (failure != null)
+         throw new RuntimeException("Live extraction failed", failure);
+
+      // The last frames' events are only known now
+      if (events != null)
+         while (events.flush(found))
+            eventTraces.append(found);
+
+      // Leave the whole session on screen
+      if (shown && !viewer.isClosed()) {
+         viewer.setShowAll();
+         viewer.refresh();
+      }
+      if (shown && raster != null && !raster.isClosed()) {
+         raster.setShowAll();
+         raster.refresh();
+      }
+      if (shown && correlations != null)
+         showCorrelations();
+      return traces.toArray();
+   }
+
+   // Add an extracted frame to the traces, the trace file, events and correlations
+   private void append(Frame frame, TraceFile.Writer writer, double[] found) throws IOException {
+      traces.append(frame.values);
+      if (writer != null)
+         writer.addFrame(frame.values, null);
+      double[] shown = frame.values;
+      if (deltaTraces != null) {
+         deltaTraces.append(frame.dff);
+         shown = frame.dff;
+      }
+      if (events != null && events.addFrame(shown, found))
+         eventTraces.append(found);
+      if (correlations != null)
+         correlations.addFrame(shown);
+   }
+
+   // Draw the correlations so far, until their window is closed
+   private void showCorrelations() {
+      if (correlationImage != null && correlationImage.getWindow() == null)
+         return;
+      double[][] r = correlations.getCorrelations();
+      ImageProcessor ip = CorrelationMatrix.toImage(r, CorrelationMatrix.clusterOrder(r));
+      if (correlationImage == null) {
+         correlationImage = new ImagePlus("Live Correlations", ip);
+         correlationImage.show();
+      } else {
+         correlationImage.setProcessor(ip);
+      }
+   }
+
+   // Read, extract and (with a closed loop) stimulate frames until stopped,
+   // on the extraction thread
+   private void extract(FrameSource source, DeltaF delta, BlockingQueue<Frame> free,
+                        BlockingQueue<Frame> ready) throws IOException, InterruptedException {
+      TraceExtractor.Stream stream = null;
+      while (!stopped) {
+         if (!source.nextFrame()) {
+            if (loop != null)
+               LockSupport.parkNanos(POLL_LOOP_NANOS);
+            else
+               Thread.sleep(POLL_TIME);
+            continue;
+         }
+         long frameTime = source.getFrameTime();
+         // The size of the frames is only known once the first one is there
+         if (stream == null)
+            stream = extractor.openStream(source, bandBytes);
+         // All buffers are taken only if the calling thread is far behind
+         Frame frame;
+         while ((frame = free.poll(POLL_TIME, TimeUnit.MILLISECONDS)) == null)
+            if (stopped)
+               return;
+         if (loop != null)
+            loop.startFrame(frameTime);
+         stream.extractFrame(source, frame.values, null);
+         if (loop != null)
+            loop.mark(ClosedLoop.EXTRACT);
+         if (delta != null)
+            delta.addFrame(frame.values, frame.dff);
+         if (loop != null) {
+            loop.mark(ClosedLoop.DETECT);
+            loop.process(delta != null ? frame.dff : frame.values);
+         }
+         while (!ready.offer(frame, POLL_TIME, TimeUnit.MILLISECONDS))
+            if (stopped)
+               return;
+      }
+   }
+
+   // The values (and dF/F) of one frame, on their way to the calling thread
+   private static class Frame {
+      final double[] values, dff;
+
+      Frame(int nTargets) {
+         values = new double[nTargets];
+         dff = new double[nTargets];
+      }
+   }
+
+   // Events of all frames seen, [target][frame], or null without an event detector
+   public double[][] getEvents() {
+      return eventTraces != null ? eventTraces.toArray() : null;
+   }
+
+   // dF/F traces of all frames seen, [target][frame], or null if dF/F is off
+   public double[][] getDeltaF() {
+      return deltaTraces != null ? deltaTraces.toArray() : null;
+   }
+
+   public int getFrames() {
+      return traces == null ? 0 : traces.getFrames();
+   }
+}
@@ -0,0 +1,246 @@
+import java.awt.*;
+import java.io.*;
+import java.util.*;
+import ij.gui.*;
+import ij.process.*;
+
+/**
+* Turns targets chosen in a camera image into an SLM excitation pattern, using the
+* calibration written by calibrate_slm_. This is the part of choose_targets_ that
+* does not need a GUI, so it can also be used by batch jobs.
+*
+* A calibration fitted to more than two points (see CalibrationFit) maps with
+* affine or quadratic terms instead of the scale and offset. Mapping many
+* targets at once goes through a table of where every pixel of the calibration
+* image lands in the pattern, made on first use and again if the calibration
+* changes.
+*/
+
+public class MaskGenerator {
+
+   //////////////////////////////
+   // Default Calibration Values
+   //////////////////////////////
+
+   // fat 20x, 0.95 NA (4/16/10)
+   public double xScale  = -0.7576;
+   public double yScale  =  0.7937;
+   public double xOffset = 199.2424;
+   public double yOffset = -1.5873;
+   // How large was the calibration image   (pixels squared)
+   public int calSize = 256;
+   // How large was the calibration pattern (pixels squared)
+   public int outSize = 213;
+   // Flip image if desired
+   public boolean flipVertical   = true;
+   public boolean flipHorizontal = true;
+   // Coefficients of 1, x, y (and x*x, x*y, y*y) giving the pattern x and y of
+   // camera pixel x, y, or null to use the scale and offset
+   public double[] xTerms, yTerms;
+
+   // Number of comment lines at the top of a calibration file
+   private static final int N_COMMENT = 5;
+   // Targets mapped at once from which the lookup table is worth making
+   private static final int LOOKUP_TARGETS = 1000;
+   // Unmapped pixel in the lookup table
+   private static final int NONE = Integer.MIN_VALUE;
+
+   // Pattern pixel of each calSize x calSize camera pixel, x in the high and y
+   // in the low 16 bits, and the calibration it was made for
+   private int[] lookup;
+   private double[] lookupKey;
+
+   // Read a calibration file written by calibrate_slm_
+   public static MaskGenerator read(String path) throws IOException {
+      MaskGenerator generator = new MaskGenerator();
+      BufferedReader dis = new BufferedReader(new FileReader(path));
+      try {
+         // Skip the first five lines
+         for (int i = 0; i < N_COMMENT; i++)
+            dis.readLine();
+         // Read in the calibration data on the following lines
+         generator.xScale   = Double.parseDouble(dis.readLine());
+         generator.yScale   = Double.parseDouble(dis.readLine());
+         generator.xOffset  = Double.parseDouble(dis.readLine());
+         generator.yOffset  = Double.parseDouble(dis.readLine());
+         generator.calSize  = (int) Double.parseDouble(dis.readLine());
+         generator.outSize  = (int) Double.parseDouble(dis.readLine());
+         generator.flipVertical = Boolean.parseBoolean(dis.readLine());
+         generator.flipHorizontal = Boolean.parseBoolean(dis.readLine());
+         // Then, for a fit to more than two points, its terms
+         String line = dis.readLine();
+         if (line != null && line.trim().length() > 0) {
+            int nTerms = Integer.parseInt(line.trim());
+            if (nTerms != 3 && nTerms != 6)
+               throw new IOException("Unknown calibration terms: " + nTerms);
+            generator.xTerms = new double[nTerms];
+            generator.yTerms = new double[nTerms];
+            for (int i = 0; i < nTerms; i++)
+               generator.xTerms[i] = Double.parseDouble(dis.readLine());
+            for (int i = 0; i < nTerms; i++)
+               generator.yTerms[i] = Double.parseDouble(dis.readLine());
+         }
+      } catch (NumberFormatException e) {
+         throw new IOException("Error parsing calibration file: " + path);
+      } catch (NullPointerException e) {
+         throw new IOException("Calibration file is too short: " + path);
+      } finally {
+         dis.close();
+      }
+      return generator;
+   }
+
+   // Write the calibration as read reads it. Files of two-point calibrations are
+   // the same as before; fits to more points add their terms at the end.
+   public void write(String path, String date) throws IOException {
+      PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(path)));
+      try {
+         out.println("SLM calibration file -- " + date);
+         out.println("-------------------------------------------------------------");
+         out.println("1. xScale, 2. yScale, 3. xOffset, 4. yOffset");
+         out.println("5. calSize, 6. outputSize, 7. flipVertical, 8. flipHorizontal" +
+                     (xTerms != null ? ", 9. terms, x and y coefficients" : ""));
+         out.println("-------------------------------------------------------------");
+         out.println(xScale);
+         out.println(yScale);
+         out.println(xOffset);
+         out.println(yOffset);
+         out.println((double) calSize);
+         out.println((double) outSize);
+         out.println(flipVertical);
+         out.println(flipHorizontal);
+         if (xTerms != null) {
+            out.println(xTerms.length);
+            for (double t : xTerms)
+               out.println(t);
+            for (double t : yTerms)
+               out.println(t);
+         }
+      } finally {
+         out.close();
+      }
+      if (out.checkError())
+         throw new IOException("Could not write " + path);
+   }
+
+   // Ratio between the calibration image and an image of the given size
+   public int getScaleOffset(int imageSize) {
+      return calSize/imageSize;
+   }
+
+   // The terms 1, x, y (and x*x, x*y, y*y) of a fit at x, y
+   static double[] terms(double x, double y, int nTerms) {
+      if (nTerms == 3)
+         return new double[] {1, x, y};
+      return new double[] {1, x, y, x*x, x*y, y*y};
+   }
+
+   private static double evaluate(double[] a, double x, double y) {
+      double v = a[0] + a[1]*x + a[2]*y;
+      if (a.length > 3)
+         v += a[3]*x*x + a[4]*x*y + a[5]*y*y;
+      return v;
+   }
+
+   // Pattern position (before flipping) of camera position x, y in the
+   // calibration image
+   public double mapX(double x, double y) {
+      return xTerms != null ? evaluate(xTerms, x, y) : xScale*x + xOffset;
+   }
+
+   public double mapY(double x, double y) {
+      return yTerms != null ? evaluate(yTerms, x, y) : yScale*y + yOffset;
+   }
+
+   // Pattern pixels (before flipping) of the first n targets, into xs and ys.
+   // Targets in an image sOffset times smaller than the calibration image are
+   // scaled up to it first.
+   public void transform(int sOffset, int[] xpoints, int[] ypoints, int n, int[] xs, int[] ys) {
+      int[] table = getLookup(n >= LOOKUP_TARGETS);
+      for (int i = 0; i < n; i++) {
+         int x = sOffset*xpoints[i], y = sOffset*ypoints[i];
+         int p = table != null && x >= 0 && x < calSize && y >= 0 && y < calSize
+                                          ? table[y*calSize + x] : NONE;
+         if (p != NONE) {
+            xs[i] = p >> 16;
+            ys[i] = (short) p;
+         } else {
+            xs[i] = (int) Math.round(mapX(x, y));
+            ys[i] = (int) Math.round(mapY(x, y));
+         }
+      }
+   }
+
+   // The lookup table for the current calibration: made if there is none and
+   // make is true, otherwise null if there is none
+   private int[] getLookup(boolean make) {
+      double[] key = new double[] {xScale, yScale, xOffset, yOffset, calSize};
+      if (xTerms != null) {
+         key = Arrays.copyOf(key, 5 + xTerms.length + yTerms.length);
+         System.arraycopy(xTerms, 0, key, 5, xTerms.length);
+         System.arraycopy(yTerms, 0, key, 5 + xTerms.length, yTerms.length);
+      }
+      if (lookup != null && Arrays.equals(key, lookupKey))
+         return lookup;
+      lookup = null;
+      if (!make || calSize <= 0)
+         return null;
+
+      int[] table = new int[calSize*calSize];
+      for (int y = 0, k = 0; y < calSize; y++) {
+         for (int x = 0; x < calSize; x++, k++) {
+            long px = Math.round(mapX(x, y)), py = Math.round(mapY(x, y));
+            // Pixels too far out to pack are mapped when asked for
+            table[k] = Math.abs(px) < Short.MAX_VALUE && Math.abs(py) < Short.MAX_VALUE
+                       ? (int) (px << 16 | (py & 0xffff)) : NONE;
+         }
+      }
+      lookup = table;
+      lookupKey = key;
+      return lookup;
+   }
+
+   // Iterate over all targets and transform them to the calibrated space
+   public PointRoi generateMask(int sOffset, int[] xpoints, int[] ypoints) {
+      int n = Math.min(xpoints.length, ypoints.length);
+      int[] nxpoints = new int[n];
+      int[] nypoints = new int[n];
+      transform(sOffset, xpoints, ypoints, n, nxpoints, nypoints);
+      return new PointRoi(nxpoints,nypoints,n);
+   }
+
+   // Draw the mask for the given targets: one white pixel per target on a black
+   // outSize x outSize image, flipped as the calibration requires
+   public ImageProcessor createMask(int sOffset, int[] xpoints, int[] ypoints) {
+      PointRoi maskRoi = generateMask(sOffset, xpoints, ypoints);
+
+      // Draw the targets in black on white and invert, as ImageJ would
+      ImageProcessor ip = new ByteProcessor(outSize, outSize);
+      ip.setColor(Color.white);
+      ip.fill();
+      ip.setColor(Color.black);
+      maskRoi.drawPixels(ip);
+      ip.invert();
+      if (flipHorizontal)
+         ip.flipHorizontal();
+      if (flipVertical)
+         ip.flipVertical();
+      return ip;
+   }
+
+   // The SLM phase pattern (0 to 2*pi) that focuses light onto the targets, made
+   // by hologram, which must be outSize pixels wide. The targets are flipped as
+   // they are on the mask.
+   public FloatProcessor createHologram(HologramGenerator hologram, int sOffset,
+                                        int[] xpoints, int[] ypoints) {
+      if (hologram.getSize() != outSize)
+         throw new IllegalArgumentException("Hologram must be " + outSize + " pixels wide");
+      Polygon targets = generateMask(sOffset, xpoints, ypoints).getPolygon();
+      double[] xs = new double[targets.npoints], ys = new double[targets.npoints];
+      for (int i = 0; i < targets.npoints; i++) {
+         xs[i] = flipHorizontal ? outSize-1 - targets.xpoints[i] : targets.xpoints[i];
+         ys[i] = flipVertical ? outSize-1 - targets.ypoints[i] : targets.ypoints[i];
+      }
+      return hologram.compute(xs, ys, targets.npoints);
+   }
+}
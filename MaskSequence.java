@@ -0,0 +1,173 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import ij.*;
+import ij.io.*;
+import ij.process.*;
+
+/**
+* Makes many masks for the same targets, one for each group of them, e.g. one
+* per target for sequential stimulation. The calibration and flips of the
+* MaskGenerator are applied to the target coordinates once, which gives the
+* pixel each target lights up in the pattern; a mask is then just those pixels
+* of its group set in a byte array, as createMask would draw them.
+*
+* A sequence can be written as a multi-frame TIFF, whose frames are drawn one
+* at a time into the same buffer as they are written, or as a raw file of
+* outSize x outSize 8-bit frames one after the other with no header, written
+* through a memory map so that only the pixels of the targets are touched.
+* Neither holds more than one mask in memory.
+*/
+
+public class MaskSequence {
+
+   private final int size;
+   // Pixel (y*size + x) of each target in the pattern, -1 if it falls outside
+   private final int[] pixels;
+
+   public MaskSequence(MaskGenerator generator, int sOffset, int[] xpoints, int[] ypoints) {
+      size = generator.outSize;
+      int n = Math.min(xpoints.length, ypoints.length);
+      pixels = new int[n];
+      int[] xs = new int[n], ys = new int[n];
+      generator.transform(sOffset, xpoints, ypoints, n, xs, ys);
+      for (int i = 0; i < n; i++) {
+         int x = xs[i], y = ys[i];
+         if (generator.flipHorizontal)
+            x = size-1 - x;
+         if (generator.flipVertical)
+            y = size-1 - y;
+         pixels[i] = x >= 0 && x < size && y >= 0 && y < size ? y*size + x : -1;
+      }
+   }
+
+   // Width and height of each mask
+   public int getSize() {
+      return size;
+   }
+
+   public int getTargets() {
+      return pixels.length;
+   }
+
+   // Draw the mask of the targets in group (indices of the targets) into mask,
+   // size*size pixels, which can be reused from mask to mask
+   public void render(int[] group, byte[] mask) {
+      render(group, group.length, mask);
+   }
+
+   // The same for the first n targets of group
+   public void render(int[] group, int n, byte[] mask) {
+      Arrays.fill(mask, 0, size*size, (byte) 0);
+      for (int k = 0; k < n; k++)
+         if (pixels[group[k]] >= 0)
+            mask[pixels[group[k]]] = (byte) 255;
+   }
+
+   // The masks of all groups as a virtual stack, each drawn when it is read.
+   // The processor of a slice is reused for the next one, so copy it to keep it.
+   public ImageStack toStack(int[][] groups) {
+      return new Masks(groups);
+   }
+
+   // Write the masks of all groups as one multi-frame TIFF, one frame at a time
+   public void writeTiff(String path, int[][] groups) throws IOException {
+      ImagePlus imp = new ImagePlus("masks", toStack(groups));
+      if (!new FileSaver(imp).saveAsTiffStack(path))
+         throw new IOException("Could not write " + path);
+   }
+
+   // Write the masks of all groups to a raw file, frame g at offset g*size*size.
+   // The file starts out as zeros, so only the targets are written.
+   public void writeRaw(File file, int[][] groups) throws IOException {
+      long frameBytes = (long) size*size;
+      int framesPerSegment = (int) Math.max(1, Integer.MAX_VALUE/frameBytes);
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+         raf.setLength(0);
+         raf.setLength(frameBytes*groups.length);
+         FileChannel channel = raf.getChannel();
+         for (int first = 0; first < groups.length; first += framesPerSegment) {
+            int frames = Math.min(framesPerSegment, groups.length - first);
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE,
+                                                   first*frameBytes, frames*frameBytes);
+            for (int g = 0; g < frames; g++) {
+               int offset = (int) (g*frameBytes);
+               for (int i : groups[first + g])
+                  if (pixels[i] >= 0)
+                     segment.put(offset + pixels[i], (byte) 255);
+            }
+            segment.force();
+         }
+      } finally {
+         raf.close();
+      }
+   }
+
+   // Draws the mask of a group into the same processor whenever a slice is read
+   private class Masks extends VirtualStack {
+      private final int[][] groups;
+      private final ByteProcessor ip = new ByteProcessor(size, size);
+
+      Masks(int[][] groups) {
+         super(size, size, null, null);
+         this.groups = groups;
+         setBitDepth(8);
+      }
+
+      public ImageProcessor getProcessor(int n) {
+         render(groups[n-1], (byte[]) ip.getPixels());
+         return ip;
+      }
+
+      public int getSize() {
+         return groups.length;
+      }
+
+      public String getSliceLabel(int n) {
+         return "group " + n;
+      }
+   }
+
+   // One group per target, in order
+   public static int[][] singles(int nTargets) {
+      int[][] groups = new int[nTargets][];
+      for (int i = 0; i < nTargets; i++)
+         groups[i] = new int[] {i};
+      return groups;
+   }
+
+   // Groups from a text file, one per line: the indices of its targets (as
+   // shown by compress stack's cell IDs), separated by spaces, tabs or commas.
+   // Blank lines and lines starting with # are skipped.
+   public static int[][] readGroups(String path, int nTargets) throws IOException {
+      java.util.List<int[]> groups = new ArrayList<int[]>();
+      BufferedReader in = new BufferedReader(new FileReader(path));
+      try {
+         String line;
+         int number = 0;
+         while ((line = in.readLine()) != null) {
+            number++;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#"))
+               continue;
+            String[] tokens = line.split("[\\s,]+");
+            int[] group = new int[tokens.length];
+            for (int t = 0; t < tokens.length; t++) {
+               try {
+                  group[t] = Integer.parseInt(tokens[t]);
+               } catch (NumberFormatException e) {
+                  throw new IOException("Bad target on line " + number + ": " + tokens[t]);
+               }
+               if (group[t] < 0 || group[t] >= nTargets)
+                  throw new IOException("No target " + group[t] + " (line " + number + ")");
+            }
+            groups.add(group);
+         }
+      } finally {
+         in.close();
+      }
+      return groups.toArray(new int[groups.size()][]);
+   }
+}
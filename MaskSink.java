@@ -0,0 +1,106 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.zip.CRC32;
+
+/**
+* Where the masks of a ClosedLoop go: the program that drives the SLM, or
+* SlmStandIn in its place. Each mask is sent with the frame it was made for and
+* the System.nanoTime() it was sent at, so a receiver on the same machine can
+* tell how long it took to arrive. Numbers are little-endian.
+*
+* FileSink keeps the latest mask in a memory-mapped file: a sequence number
+* (odd while a mask is being written, so a reader knows to try again), the
+* frame, the time sent, the size and a CRC-32 of the mask followed by the 16
+* bytes of frame and time sent, in FILE_HEADER bytes, then the size x size
+* mask. Plain writes to a mapped file are not ordered, so the sequence number
+* alone does not tell a reader that the mask it copied is whole; a reader
+* should only take a mask whose CRC matches. SocketSink writes each mask to a
+* TCP connection as the frame, time sent and size, in MESSAGE_HEADER bytes,
+* then the mask.
+*/
+
+public interface MaskSink {
+
+   public static final int FILE_HEADER = 32, MESSAGE_HEADER = 20;
+
+   // Send the size x size mask made for frame
+   public void send(byte[] mask, int size, long frame) throws IOException;
+
+   public void close() throws IOException;
+
+   public static class FileSink implements MaskSink {
+
+      private final RandomAccessFile file;
+      private final MappedByteBuffer buffer;
+      private final int size;
+      private long sequence;
+      private final CRC32 crc = new CRC32();
+      private final ByteBuffer stamp = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+
+      public FileSink(File path, int size) throws IOException {
+         this.size = size;
+         file = new RandomAccessFile(path, "rw");
+         try {
+            file.setLength(FILE_HEADER + (long) size*size);
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER + (long) size*size);
+         } catch (IOException e) {
+            file.close();
+            throw e;
+         }
+         buffer.order(ByteOrder.LITTLE_ENDIAN);
+         buffer.putLong(0, 0);
+         buffer.putInt(24, size);
+      }
+
+      public void send(byte[] mask, int size, long frame) throws IOException {
+         if (size != this.size)
+            throw new IOException("Mask must be " + this.size + " pixels wide");
+         buffer.putLong(0, ++sequence);
+         buffer.putLong(8, frame);
+         buffer.position(FILE_HEADER);
+         buffer.put(mask, 0, size*size);
+         crc.reset();
+         crc.update(mask, 0, size*size);
+         long sent = System.nanoTime();
+         buffer.putLong(16, sent);
+         stamp.putLong(0, frame).putLong(8, sent);
+         crc.update(stamp.array(), 0, 16);
+         buffer.putInt(28, (int) crc.getValue());
+         buffer.putLong(0, ++sequence);
+      }
+
+      public void close() throws IOException {
+         file.close();
+      }
+   }
+
+   public static class SocketSink implements MaskSink {
+
+      private final SocketChannel channel;
+      private final ByteBuffer buffer;
+
+      // Connect to a receiver listening on host:port
+      public SocketSink(String host, int port, int size) throws IOException {
+         channel = SocketChannel.open(new InetSocketAddress(host, port));
+         channel.socket().setTcpNoDelay(true);
+         buffer = ByteBuffer.allocateDirect(MESSAGE_HEADER + size*size).order(ByteOrder.LITTLE_ENDIAN);
+      }
+
+      public void send(byte[] mask, int size, long frame) throws IOException {
+         buffer.clear();
+         buffer.putLong(frame);
+         buffer.putLong(System.nanoTime());
+         buffer.putInt(size);
+         buffer.put(mask, 0, size*size);
+         buffer.flip();
+         while (buffer.hasRemaining())
+            channel.write(buffer);
+      }
+
+      public void close() throws IOException {
+         channel.close();
+      }
+   }
+}
@@ -0,0 +1,240 @@
+import java.util.*;
+import java.util.concurrent.*;
+import ij.gui.*;
+import ij.process.*;
+
+/**
+* Finds bright spots (cells, calibration dots) in an image and returns them as a
+* point selection, without going through ImageJ's Find Maxima command.
+*
+* A pixel is a maximum if it is the largest within separation pixels in x and y
+* and rises at least threshold above the smallest pixel in that square, which
+* keeps flat background and noise out. Maxima closer than separation to a
+* brighter one are dropped, brightest first. Optionally each maximum is moved to
+* the top of a Gaussian fitted through it and its neighbours in x and in y,
+* using their height above that local minimum. Points are returned brightest
+* first.
+*
+* The image is split into bands of rows that are filtered in parallel.
+*/
+
+public class MaximaDetector {
+
+   // Bands of rows handed to each thread
+   private static final int BANDS_PER_THREAD = 4;
+
+   private final double threshold;
+   private final int separation;
+   private boolean subPixel;
+   private int nThreads = 1;
+
+   // threshold: least height above the local minimum; separation: least
+   // distance between maxima (pixels)
+   public MaximaDetector(double threshold, int separation) {
+      this.threshold = threshold;
+      this.separation = Math.max(1, separation);
+   }
+
+   public void setSubPixel(boolean subPixel) {
+      this.subPixel = subPixel;
+   }
+
+   public void setThreads(int nThreads) {
+      this.nThreads = Math.max(1, nThreads);
+   }
+
+   // The maxima of an 8-bit, 16-bit or float image as a point selection, or null
+   // if there are none
+   public PointRoi detect(ImageProcessor ip) {
+      final int width = ip.getWidth(), height = ip.getHeight();
+      final float[] pixels = toFloat(ip);
+      final float[] rowMax = new float[width*height], rowMin = new float[width*height];
+      final float[] localMin = new float[width*height];
+      final int r = separation;
+
+      int nBands = nThreads == 1 ? 1 : Math.min(height, nThreads*BANDS_PER_THREAD);
+      final int[] bands = new int[nBands+1];
+      for (int b = 0; b <= nBands; b++)
+         bands[b] = height*b/nBands;
+
+      // Range over each row, then over each column of that
+      run(nBands, new Band() {
+         public void run(int b) {
+            for (int y = bands[b]; y < bands[b+1]; y++) {
+               int row = y*width;
+               for (int x = 0; x < width; x++) {
+                  float hi = Float.NEGATIVE_INFINITY, lo = Float.POSITIVE_INFINITY;
+                  for (int k = Math.max(0, x-r); k <= Math.min(width-1, x+r); k++) {
+                     float v = pixels[row+k];
+                     if (v > hi) hi = v;
+                     if (v < lo) lo = v;
+                  }
+                  rowMax[row+x] = hi;
+                  rowMin[row+x] = lo;
+               }
+            }
+         }
+      });
+      final java.util.List<java.util.List<int[]>> found = new ArrayList<java.util.List<int[]>>();
+      for (int b = 0; b < nBands; b++)
+         found.add(new ArrayList<int[]>());
+      run(nBands, new Band() {
+         public void run(int b) {
+            java.util.List<int[]> candidates = found.get(b);
+            for (int y = bands[b]; y < bands[b+1]; y++) {
+               for (int x = 0; x < width; x++) {
+                  float hi = Float.NEGATIVE_INFINITY, lo = Float.POSITIVE_INFINITY;
+                  for (int k = Math.max(0, y-r); k <= Math.min(height-1, y+r); k++) {
+                     int p = k*width + x;
+                     if (rowMax[p] > hi) hi = rowMax[p];
+                     if (rowMin[p] < lo) lo = rowMin[p];
+                  }
+                  int p = y*width + x;
+                  localMin[p] = lo;
+                  if (pixels[p] == hi && hi - lo >= threshold && hi > lo)
+                     candidates.add(new int[] {x, y});
+               }
+            }
+         }
+      });
+
+      // Keep the brightest of maxima that are too close, including plateaus
+      java.util.List<int[]> candidates = new ArrayList<int[]>();
+      for (java.util.List<int[]> band : found)
+         candidates.addAll(band);
+      final int w = width;
+      Collections.sort(candidates, new Comparator<int[]>() {
+         public int compare(int[] a, int[] b) {
+            int c = Float.compare(pixels[b[1]*w + b[0]], pixels[a[1]*w + a[0]]);
+            if (c != 0)
+               return c;
+            return a[1] != b[1] ? a[1] - b[1] : a[0] - b[0];
+         }
+      });
+      java.util.List<int[]> maxima = suppress(candidates, width, height);
+      if (maxima.isEmpty())
+         return null;
+
+      int n = maxima.size();
+      if (!subPixel) {
+         int[] xs = new int[n], ys = new int[n];
+         for (int i = 0; i < n; i++) {
+            xs[i] = maxima.get(i)[0];
+            ys[i] = maxima.get(i)[1];
+         }
+         return new PointRoi(xs, ys, n);
+      }
+      float[] xs = new float[n], ys = new float[n];
+      for (int i = 0; i < n; i++) {
+         int x = maxima.get(i)[0], y = maxima.get(i)[1], p = y*width + x;
+         double base = localMin[p];
+         xs[i] = (float) (x + (x > 0 && x < width-1 ?
+            peakOffset(pixels[p-1] - base, pixels[p] - base, pixels[p+1] - base) : 0));
+         ys[i] = (float) (y + (y > 0 && y < height-1 ?
+            peakOffset(pixels[p-width] - base, pixels[p] - base, pixels[p+width] - base) : 0));
+      }
+      return new PointRoi(xs, ys, n);
+   }
+
+   // Offset of the top of a Gaussian through three neighbouring heights, from a
+   // parabola through their logarithms; a plain parabola if one is not positive
+   private static double peakOffset(double left, double center, double right) {
+      if (left > 0 && center > 0 && right > 0) {
+         left = Math.log(left);
+         center = Math.log(center);
+         right = Math.log(right);
+      }
+      double curvature = left - 2*center + right;
+      if (curvature >= 0)
+         return 0;
+      return Math.max(-0.5, Math.min(0.5, 0.5*(left - right)/curvature));
+   }
+
+   // Accept candidates in order unless an accepted one lies within separation,
+   // looking only at nearby cells of a grid of accepted points
+   private java.util.List<int[]> suppress(java.util.List<int[]> candidates, int width, int height) {
+      int cell = separation + 1;
+      int gw = width/cell + 1, gh = height/cell + 1;
+      java.util.List<java.util.List<int[]>> grid = new ArrayList<java.util.List<int[]>>(gw*gh);
+      for (int g = 0; g < gw*gh; g++)
+         grid.add(null);
+      java.util.List<int[]> maxima = new ArrayList<int[]>();
+      for (int[] c : candidates) {
+         int gx = c[0]/cell, gy = c[1]/cell;
+         boolean keep = true;
+         for (int j = Math.max(0, gy-1); j <= Math.min(gh-1, gy+1) && keep; j++) {
+            for (int i = Math.max(0, gx-1); i <= Math.min(gw-1, gx+1) && keep; i++) {
+               java.util.List<int[]> accepted = grid.get(j*gw + i);
+               if (accepted == null)
+                  continue;
+               for (int[] a : accepted) {
+                  if (Math.abs(a[0]-c[0]) <= separation && Math.abs(a[1]-c[1]) <= separation) {
+                     keep = false;
+                     break;
+                  }
+               }
+            }
+         }
+         if (keep) {
+            maxima.add(c);
+            if (grid.get(gy*gw + gx) == null)
+               grid.set(gy*gw + gx, new ArrayList<int[]>());
+            grid.get(gy*gw + gx).add(c);
+         }
+      }
+      return maxima;
+   }
+
+   private static float[] toFloat(ImageProcessor ip) {
+      Object pixels = ip.getPixels();
+      if (pixels instanceof float[])
+         return (float[]) pixels;
+      int n = ip.getWidth()*ip.getHeight();
+      float[] values = new float[n];
+      if (pixels instanceof short[]) {
+         short[] p = (short[]) pixels;
+         for (int k = 0; k < n; k++)
+            values[k] = p[k] & 0xffff;
+      } else if (pixels instanceof byte[]) {
+         byte[] p = (byte[]) pixels;
+         for (int k = 0; k < n; k++)
+            values[k] = p[k] & 0xff;
+      } else {
+         for (int k = 0; k < n; k++)
+            values[k] = ip.getPixelValue(k % ip.getWidth(), k / ip.getWidth());
+      }
+      return values;
+   }
+
+   private interface Band {
+      void run(int b);
+   }
+
+   private void run(int nBands, final Band band) {
+      if (nBands == 1) {
+         band.run(0);
+         return;
+      }
+      ExecutorService pool = Executors.newFixedThreadPool(Math.min(nThreads, nBands));
+      try {
+         java.util.List<Future<?>> futures = new ArrayList<Future<?>>();
+         for (int b = 0; b < nBands; b++) {
+            final int index = b;
+            futures.add(pool.submit(new Runnable() {
+               public void run() {
+                  band.run(index);
+               }
+            }));
+         }
+         for (Future<?> future : futures)
+            future.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Detection interrupted", e);
+      } catch (ExecutionException e) {
+         throw new RuntimeException("Detection failed", e.getCause());
+      } finally {
+         pool.shutdownNow();
+      }
+   }
+}
@@ -0,0 +1,135 @@
+import ij.process.*;
+
+/**
+* Estimates how far each frame has moved against a reference image, by phase
+* correlation: the normalized cross-power spectrum of the two images transforms
+* back to a peak at their relative shift. A centered, power-of-two square of up
+* to MAX_SIZE pixels is used, tapered with a Hann window so the image edges do
+* not count as structure.
+*
+* Shifts are whole pixels, since they are applied by moving the box of each
+* target (see TraceExtractor) rather than by resampling the frame. A frame
+* shifted by (dx, dy) shows the reference pixel (x, y) at (x + dx, y + dy).
+*/
+
+public class MotionCorrector {
+
+   // Largest side of the square that is correlated (pixels)
+   public static final int MAX_SIZE = 256;
+
+   private final int width, height, size, x0, y0, maxShift;
+   private final double[] window;
+   // Complex conjugate of the spectrum of the reference
+   private final double[] refRe, refIm;
+
+   // Shifts larger than maxShift in either direction are not considered
+   public MotionCorrector(ImageProcessor reference, int maxShift) {
+      width = reference.getWidth();
+      height = reference.getHeight();
+      size = Math.min(MAX_SIZE, FFT.floorPowerOf2(Math.min(width, height)));
+      x0 = (width - size)/2;
+      y0 = (height - size)/2;
+      this.maxShift = Math.max(0, Math.min(maxShift, size/2 - 1));
+
+      window = new double[size];
+      for (int k = 0; k < size; k++)
+         window[k] = 0.5 - 0.5*Math.cos(2*Math.PI*(k + 0.5)/size);
+
+      refRe = new double[size*size];
+      refIm = new double[size*size];
+      load(reference.getPixels(), reference, refRe, refIm);
+      new FFT(size).transform2D(refRe, refIm, false);
+      for (int k = 0; k < refIm.length; k++)
+         refIm[k] = -refIm[k];
+   }
+
+   public int getWidth() {
+      return width;
+   }
+
+   public int getHeight() {
+      return height;
+   }
+
+   public int getMaxShift() {
+      return maxShift;
+   }
+
+   // Workspace for estimating shifts, one per thread
+   public Estimator newEstimator() {
+      return new Estimator();
+   }
+
+   public class Estimator {
+      private final FFT fft = new FFT(size);
+      private final double[] re = new double[size*size], im = new double[size*size];
+
+      private Estimator() {
+      }
+
+      // Shift of a frame of the reference's size, whose pixels are a byte[],
+      // short[] or float[] (or those of ip, if given), stored in shift[0], shift[1]
+      public void estimate(Object pixels, ImageProcessor ip, int[] shift) {
+         load(pixels, ip, re, im);
+         fft.transform2D(re, im, false);
+
+         // Normalized cross-power spectrum of frame and reference
+         for (int k = 0; k < re.length; k++) {
+            double r = re[k]*refRe[k] - im[k]*refIm[k];
+            double i = re[k]*refIm[k] + im[k]*refRe[k];
+            double magnitude = Math.sqrt(r*r + i*i);
+            if (magnitude > 0) {
+               re[k] = r/magnitude;
+               im[k] = i/magnitude;
+            } else {
+               re[k] = im[k] = 0;
+            }
+         }
+         fft.transform2D(re, im, true);
+
+         // The peak within maxShift, with negative shifts wrapped around
+         double best = Double.NEGATIVE_INFINITY;
+         shift[0] = shift[1] = 0;
+         for (int dy = -maxShift; dy <= maxShift; dy++) {
+            int row = ((dy + size) % size)*size;
+            for (int dx = -maxShift; dx <= maxShift; dx++) {
+               double value = re[row + (dx + size) % size];
+               if (value > best) {
+                  best = value;
+                  shift[0] = dx;
+                  shift[1] = dy;
+               }
+            }
+         }
+      }
+   }
+
+   // Copy the windowed, mean-free central square of a frame into re, clearing im
+   private void load(Object pixels, ImageProcessor ip, double[] re, double[] im) {
+      double sum = 0;
+      for (int y = 0; y < size; y++) {
+         int row = (y0 + y)*width + x0;
+         for (int x = 0; x < size; x++) {
+            double value;
+            if (pixels instanceof short[])
+               value = ((short[]) pixels)[row + x] & 0xffff;
+            else if (pixels instanceof byte[])
+               value = ((byte[]) pixels)[row + x] & 0xff;
+            else if (pixels instanceof float[])
+               value = ((float[]) pixels)[row + x];
+            else
+               value = ip.getPixelValue(x0 + x, y0 + y);
+            re[y*size + x] = value;
+            sum += value;
+         }
+      }
+      double mean = sum/(size*size);
+      for (int y = 0; y < size; y++) {
+         for (int x = 0; x < size; x++) {
+            int k = y*size + x;
+            re[k] = (re[k] - mean)*window[x]*window[y];
+            im[k] = 0;
+         }
+      }
+   }
+}
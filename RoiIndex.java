@@ -0,0 +1,166 @@
+import ij.process.*;
+
+/**
+* Flat pixel-offset index of the box around each target. The in-bounds pixels
+* of every (cRadius*2 + 1)^2 box are compiled once into offsets into the pixel
+* array of a frame, so extraction can read straight from the processor's own
+* byte[], short[] or float[] pixels without copying the frame or checking
+* bounds for every pixel. There is a gather method for each pixel type, so each
+* loop only ever sees one type of array; 8 and 16-bit pixels are gathered as
+* unsigned ints and 32-bit pixels keep their float values.
+*
+* Pixels are listed in the same order as the original extraction loop, which
+* walks x in the outer loop and y in the inner loop.
+*/
+
+public class RoiIndex {
+
+   private final int width, height, boxSize, nTargets;
+   // The pixels of target i are offsets[start[i]] .. offsets[start[i+1]-1]
+   private final int[] start;
+   private final int[] offsets;
+   // First and last row covered by the box of each target
+   private final int[] top, bottom;
+
+   public RoiIndex(int[] xpoints, int[] ypoints, int nTargets, int cRadius,
+                   int width, int height) {
+      this.width = width;
+      this.height = height;
+      this.nTargets = nTargets;
+      this.boxSize = ((cRadius*2)+1)*((cRadius*2)+1);
+
+      // Count the in-bounds pixels of each box
+      start = new int[nTargets+1];
+      top = new int[nTargets];
+      bottom = new int[nTargets];
+      for (int i = 0; i < nTargets; i++) {
+         top[i] = Math.max(ypoints[i]-cRadius, 0);
+         bottom[i] = Math.min(ypoints[i]+cRadius, height-1);
+         int nx = Math.min(xpoints[i]+cRadius, width-1) - Math.max(xpoints[i]-cRadius, 0) + 1;
+         int ny = Math.min(ypoints[i]+cRadius, height-1) - Math.max(ypoints[i]-cRadius, 0) + 1;
+         start[i+1] = start[i] + Math.max(nx, 0)*Math.max(ny, 0);
+      }
+
+      // Store their offsets into the pixel array
+      offsets = new int[start[nTargets]];
+      for (int i = 0; i < nTargets; i++) {
+         int j = start[i];
+         for (int k = xpoints[i]-cRadius; k <= xpoints[i]+cRadius; k++) {
+            for (int l = ypoints[i]-cRadius; l <= ypoints[i]+cRadius; l++) {
+               if (k < width && k >= 0 && l < height && l >= 0)
+                  offsets[j++] = l*width + k;
+            }
+         }
+      }
+   }
+
+   public int getWidth() {
+      return width;
+   }
+
+   public int getHeight() {
+      return height;
+   }
+
+   public int getTargets() {
+      return nTargets;
+   }
+
+   // Length of a full box, including pixels that fall outside of the image
+   public int getBoxSize() {
+      return boxSize;
+   }
+
+   // Number of pixels of the box around target i that lie inside the image
+   public int getCount(int i) {
+      return start[i+1] - start[i];
+   }
+
+   // Copy the pixels around target i of a 16-bit frame into box (of length
+   // getBoxSize()), as unsigned values. Pixels outside of the image are left as
+   // zeros at the end of the box. Returns the number of in-bounds pixels.
+   public int gather(short[] pixels, int i, int[] box) {
+      int first = start[i], n = start[i+1] - first;
+      for (int j = 0; j < n; j++)
+         box[j] = pixels[offsets[first+j]] & 0xffff;
+      for (int j = n; j < boxSize; j++)
+         box[j] = 0;
+      return n;
+   }
+
+   // The same for an 8-bit frame
+   public int gather(byte[] pixels, int i, int[] box) {
+      int first = start[i], n = start[i+1] - first;
+      for (int j = 0; j < n; j++)
+         box[j] = pixels[offsets[first+j]] & 0xff;
+      for (int j = n; j < boxSize; j++)
+         box[j] = 0;
+      return n;
+   }
+
+   // The same for a 32-bit frame, keeping the float values
+   public int gather(float[] pixels, int i, float[] box) {
+      int first = start[i], n = start[i+1] - first;
+      for (int j = 0; j < n; j++)
+         box[j] = pixels[offsets[first+j]];
+      for (int j = n; j < boxSize; j++)
+         box[j] = 0;
+      return n;
+   }
+
+   // The same for any other type of processor (RGB), with the values returned
+   // by ImageProcessor.getPixel()
+   public int gather(ImageProcessor ip, int i, int[] box) {
+      int first = start[i], n = start[i+1] - first;
+      for (int j = 0; j < n; j++) {
+         int offset = offsets[first+j];
+         box[j] = ip.getPixel(offset % width, offset / width);
+      }
+      for (int j = n; j < boxSize; j++)
+         box[j] = 0;
+      return n;
+   }
+
+   // Copy the pixels around target i that lie in rows y0..y1-1 into box, where
+   // rows holds just those rows of a 16-bit frame (as read by TiffStreamReader).
+   // Pixels keep the position they have in a full box, so a box is filled by
+   // calling this once for each band of rows of a frame. Positions past the
+   // in-bounds pixels are not touched.
+   public void gatherRows(short[] rows, int y0, int y1, int i, int[] box) {
+      if (bottom[i] < y0 || top[i] >= y1)
+         return;
+      int first = start[i], n = start[i+1] - first;
+      int lo = y0*width, hi = y1*width;
+      for (int j = 0; j < n; j++) {
+         int offset = offsets[first+j];
+         if (offset >= lo && offset < hi)
+            box[j] = rows[offset-lo] & 0xffff;
+      }
+   }
+
+   // The same for the rows of an 8-bit frame
+   public void gatherRows(byte[] rows, int y0, int y1, int i, int[] box) {
+      if (bottom[i] < y0 || top[i] >= y1)
+         return;
+      int first = start[i], n = start[i+1] - first;
+      int lo = y0*width, hi = y1*width;
+      for (int j = 0; j < n; j++) {
+         int offset = offsets[first+j];
+         if (offset >= lo && offset < hi)
+            box[j] = rows[offset-lo] & 0xff;
+      }
+   }
+
+   // The same for the rows of a 32-bit frame
+   public void gatherRows(float[] rows, int y0, int y1, int i, float[] box) {
+      if (bottom[i] < y0 || top[i] >= y1)
+         return;
+      int first = start[i], n = start[i+1] - first;
+      int lo = y0*width, hi = y1*width;
+      for (int j = 0; j < n; j++) {
+         int offset = offsets[first+j];
+         if (offset >= lo && offset < hi)
+            box[j] = rows[offset-lo];
+      }
+   }
+}
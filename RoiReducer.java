@@ -0,0 +1,252 @@
+import java.util.*;
+
+/**
+* Reduces the box of pixels around one target to the pixels kept in the data
+* matrix and to the value of its trace in one frame.
+*
+* The kept pixels are either the nMaxima brightest pixels of the box, in
+* descending order (when sorting is on), or the last nMaxima pixels of the box
+* in reverse order (when it is off). The brightest pixels are found by partial
+* selection, so only the nMaxima kept values get sorted and the result is the
+* same as sorting the whole box.
+*
+* 8 and 16-bit boxes are reduced as ints and 32-bit boxes as floats, each with
+* its own copy of the loops, so float stacks keep their fractional values.
+*
+* Reducers keep their own scratch space and never allocate while reducing, so
+* each thread has to work with its own copy().
+*/
+
+public abstract class RoiReducer {
+
+   // Kinds of trace value, in the order shown in the dialog
+   public static final int SUM = 0, MEAN = 1, MEDIAN = 2, PERCENTILE = 3;
+   public static final String[] NAMES = {"Sum of Saved Pixels", "Mean of ROI",
+                                         "Median of ROI", "Percentile of ROI"};
+
+   protected final boolean sorted;
+
+   protected RoiReducer(boolean sorted) {
+      this.sorted = sorted;
+   }
+
+   // Create a reducer of the given kind. The percentile (0-100) is only used
+   // by PERCENTILE.
+   public static RoiReducer create(int kind, boolean sorted, double percentile) {
+      switch (kind) {
+         case MEAN:       return new Mean(sorted);
+         case MEDIAN:     return new Percentile(sorted, 50);
+         case PERCENTILE: return new Percentile(sorted, percentile);
+         default:         return new Sum(sorted);
+      }
+   }
+
+   // A new reducer of the same kind, with its own scratch space
+   public abstract RoiReducer copy();
+
+   // Reduce a box. The first n values of box are the in-bounds pixels of the
+   // target, the rest are zeros. The kept pixels are written to column[0..nMaxima)
+   // and the trace value is returned. The contents of box may be reordered.
+   public abstract double reduce(int[] box, int n, int[] column, int nMaxima);
+
+   // The same for a box of float pixels
+   public abstract double reduce(float[] box, int n, float[] column, int nMaxima);
+
+   // Fill the column of the data matrix from the box
+   protected final void keep(int[] box, int[] column, int nMaxima) {
+      int last = box.length-1;
+      if (sorted) {
+         // Move the nMaxima largest values to the end of the box and sort only those
+         if (nMaxima*4 < box.length) {
+            select(box, 0, last, box.length-nMaxima);
+            Arrays.sort(box, box.length-nMaxima, box.length);
+         } else {
+            Arrays.sort(box);
+         }
+      }
+      for (int m = 0; m < nMaxima; m++)
+         column[m] = box[last-m];
+   }
+
+   // Partially sort a[lo..hi] so that a[k] holds the value it would have after
+   // sorting, with smaller or equal values before it and larger or equal after it
+   protected static void select(int[] a, int lo, int hi, int k) {
+      while (hi > lo) {
+         // Median of three pivot
+         int mid = (lo+hi) >>> 1;
+         if (a[mid] < a[lo]) swap(a, mid, lo);
+         if (a[hi] < a[lo]) swap(a, hi, lo);
+         if (a[hi] < a[mid]) swap(a, hi, mid);
+         int pivot = a[mid];
+
+         // Hoare partition
+         int i = lo, j = hi;
+         while (i <= j) {
+            while (a[i] < pivot) i++;
+            while (a[j] > pivot) j--;
+            if (i <= j) swap(a, i++, j--);
+         }
+         if (k <= j) hi = j;
+         else if (k >= i) lo = i;
+         else return;
+      }
+   }
+
+   private static void swap(int[] a, int i, int j) {
+      int t = a[i]; a[i] = a[j]; a[j] = t;
+   }
+
+   protected final void keep(float[] box, float[] column, int nMaxima) {
+      int last = box.length-1;
+      if (sorted) {
+         if (nMaxima*4 < box.length) {
+            select(box, 0, last, box.length-nMaxima);
+            Arrays.sort(box, box.length-nMaxima, box.length);
+         } else {
+            Arrays.sort(box);
+         }
+      }
+      for (int m = 0; m < nMaxima; m++)
+         column[m] = box[last-m];
+   }
+
+   protected static void select(float[] a, int lo, int hi, int k) {
+      while (hi > lo) {
+         int mid = (lo+hi) >>> 1;
+         if (a[mid] < a[lo]) swap(a, mid, lo);
+         if (a[hi] < a[lo]) swap(a, hi, lo);
+         if (a[hi] < a[mid]) swap(a, hi, mid);
+         float pivot = a[mid];
+
+         int i = lo, j = hi;
+         while (i <= j) {
+            while (a[i] < pivot) i++;
+            while (a[j] > pivot) j--;
+            if (i <= j) swap(a, i++, j--);
+         }
+         if (k <= j) hi = j;
+         else if (k >= i) lo = i;
+         else return;
+      }
+   }
+
+   private static void swap(float[] a, int i, int j) {
+      float t = a[i]; a[i] = a[j]; a[j] = t;
+   }
+
+   // Sum of the kept pixels (the original trace value)
+   static class Sum extends RoiReducer {
+      Sum(boolean sorted) {
+         super(sorted);
+      }
+
+      public RoiReducer copy() {
+         return new Sum(sorted);
+      }
+
+      public double reduce(int[] box, int n, int[] column, int nMaxima) {
+         keep(box, column, nMaxima);
+         double total = 0;
+         for (int m = 0; m < nMaxima; m++)
+            total = total + column[m];
+         return total;
+      }
+
+      public double reduce(float[] box, int n, float[] column, int nMaxima) {
+         keep(box, column, nMaxima);
+         double total = 0;
+         for (int m = 0; m < nMaxima; m++)
+            total = total + column[m];
+         return total;
+      }
+   }
+
+   // Mean of all in-bounds pixels of the box
+   static class Mean extends RoiReducer {
+      Mean(boolean sorted) {
+         super(sorted);
+      }
+
+      public RoiReducer copy() {
+         return new Mean(sorted);
+      }
+
+      public double reduce(int[] box, int n, int[] column, int nMaxima) {
+         double total = 0;
+         for (int j = 0; j < n; j++)
+            total = total + box[j];
+         keep(box, column, nMaxima);
+         return n > 0 ? total/n : 0;
+      }
+
+      public double reduce(float[] box, int n, float[] column, int nMaxima) {
+         double total = 0;
+         for (int j = 0; j < n; j++)
+            total = total + box[j];
+         keep(box, column, nMaxima);
+         return n > 0 ? total/n : 0;
+      }
+   }
+
+   // Percentile of all in-bounds pixels of the box, interpolated linearly
+   // between the two closest ranks. The 50th percentile is the median.
+   static class Percentile extends RoiReducer {
+      private final double percentile;
+      private int[] scratch = new int[0];
+      private float[] floatScratch = new float[0];
+
+      Percentile(boolean sorted, double percentile) {
+         super(sorted);
+         this.percentile = Math.max(0, Math.min(100, percentile));
+      }
+
+      public RoiReducer copy() {
+         return new Percentile(sorted, percentile);
+      }
+
+      public double reduce(int[] box, int n, int[] column, int nMaxima) {
+         double value = 0;
+         if (n > 0) {
+            if (scratch.length < n)
+               scratch = new int[box.length];
+            System.arraycopy(box, 0, scratch, 0, n);
+
+            // Select the lower of the two ranks, the upper one is the smallest value above it
+            double h = (n-1)*percentile/100;
+            int rank = (int) Math.floor(h);
+            select(scratch, 0, n-1, rank);
+            value = scratch[rank];
+            if (h > rank) {
+               int next = scratch[rank+1];
+               for (int j = rank+2; j < n; j++)
+                  next = Math.min(next, scratch[j]);
+               value = value + (h-rank)*(next-value);
+            }
+         }
+         keep(box, column, nMaxima);
+         return value;
+      }
+
+      public double reduce(float[] box, int n, float[] column, int nMaxima) {
+         double value = 0;
+         if (n > 0) {
+            if (floatScratch.length < n)
+               floatScratch = new float[box.length];
+            System.arraycopy(box, 0, floatScratch, 0, n);
+
+            double h = (n-1)*percentile/100;
+            int rank = (int) Math.floor(h);
+            select(floatScratch, 0, n-1, rank);
+            value = floatScratch[rank];
+            if (h > rank) {
+               float next = floatScratch[rank+1];
+               for (int j = rank+2; j < n; j++)
+                  next = Math.min(next, floatScratch[j]);
+               value = value + (h-rank)*(next-value);
+            }
+         }
+         keep(box, column, nMaxima);
+         return value;
+      }
+   }
+}
@@ -0,0 +1,190 @@
+/**
+* A percentile of the last window values of a series, updated in O(log window)
+* per value. The values in the window are split between a max-heap holding the
+* lowest ones and a min-heap holding the rest, so the percentile sits at the top
+* of the two heaps. The window is a circular buffer; the heaps hold slots of it,
+* and each slot knows where it is in its heap, so the value that drops out of
+* the window can be removed directly. The percentile is interpolated between
+* closest ranks, as in RoiReducer.
+*/
+
+public class RollingPercentile {
+
+   private final int window;
+   private final double percentile;
+   // The last window values, oldest at next once full
+   private final double[] values;
+   private int count, next;
+   // Slots of the lowest values (max-heap) and of the others (min-heap)
+   private final int[] lower, upper;
+   private int nLower, nUpper;
+   // Position of each slot in its heap, ~position if it is in upper
+   private final int[] position;
+
+   // window: number of values kept (at least 1); percentile: 0 to 100
+   public RollingPercentile(int window, double percentile) {
+      this.window = Math.max(1, window);
+      this.percentile = Math.max(0, Math.min(100, percentile));
+      values = new double[this.window];
+      lower = new int[this.window];
+      upper = new int[this.window];
+      position = new int[this.window];
+   }
+
+   // Add a value, dropping the oldest one once the window is full, and return
+   // the percentile of the values now in the window
+   public double add(double value) {
+      int slot = next;
+      if (count == window)
+         remove(slot);
+      else
+         count++;
+      next = (next + 1) % window;
+
+      values[slot] = value;
+      if (nLower > 0 && value <= values[lower[0]])
+         pushLower(slot);
+      else
+         pushUpper(slot);
+
+      // The lower heap holds the values up to and including the closest rank below
+      double h = (count - 1)*percentile/100;
+      int rank = (int) h;
+      while (nLower > rank + 1)
+         pushUpper(popLower());
+      while (nLower < rank + 1)
+         pushLower(popUpper());
+
+      double below = values[lower[0]];
+      if (nUpper == 0 || h == rank)
+         return below;
+      return below + (h - rank)*(values[upper[0]] - below);
+   }
+
+   // Number of values in the window
+   public int getCount() {
+      return count;
+   }
+
+   // Forget all values
+   public void clear() {
+      count = next = nLower = nUpper = 0;
+   }
+
+   // Take a slot out of whichever heap holds it
+   private void remove(int slot) {
+      int p = position[slot];
+      if (p >= 0) {
+         int last = lower[--nLower];
+         if (last != slot) {
+            setLower(p, last);
+            siftUpLower(p);
+            siftDownLower(position[last]);
+         }
+      } else {
+         p = ~p;
+         int last = upper[--nUpper];
+         if (last != slot) {
+            setUpper(p, last);
+            siftUpUpper(p);
+            siftDownUpper(~position[last]);
+         }
+      }
+   }
+
+   private void pushLower(int slot) {
+      setLower(nLower, slot);
+      siftUpLower(nLower++);
+   }
+
+   private void pushUpper(int slot) {
+      setUpper(nUpper, slot);
+      siftUpUpper(nUpper++);
+   }
+
+   private int popLower() {
+      int top = lower[0];
+      int last = lower[--nLower];
+      if (nLower > 0) {
+         setLower(0, last);
+         siftDownLower(0);
+      }
+      return top;
+   }
+
+   private int popUpper() {
+      int top = upper[0];
+      int last = upper[--nUpper];
+      if (nUpper > 0) {
+         setUpper(0, last);
+         siftDownUpper(0);
+      }
+      return top;
+   }
+
+   private void setLower(int p, int slot) {
+      lower[p] = slot;
+      position[slot] = p;
+   }
+
+   private void setUpper(int p, int slot) {
+      upper[p] = slot;
+      position[slot] = ~p;
+   }
+
+   private void siftUpLower(int p) {
+      int slot = lower[p];
+      while (p > 0) {
+         int parent = (p - 1)/2;
+         if (values[lower[parent]] >= values[slot])
+            break;
+         setLower(p, lower[parent]);
+         p = parent;
+      }
+      setLower(p, slot);
+   }
+
+   private void siftDownLower(int p) {
+      int slot = lower[p];
+      while (true) {
+         int child = 2*p + 1;
+         if (child >= nLower)
+            break;
+         if (child + 1 < nLower && values[lower[child+1]] > values[lower[child]])
+            child++;
+         if (values[lower[child]] <= values[slot])
+            break;
+         setLower(p, lower[child]);
+         p = child;
+      }
+      setLower(p, slot);
+   }
+
+   private void siftUpUpper(int p) {
+      int slot = upper[p];
+      while (p > 0) {
+         int parent = (p - 1)/2;
+         if (values[upper[parent]] <= values[slot])
+            break;
+         setUpper(p, upper[parent]);
+         p = parent;
+      }
+      setUpper(p, slot);
+   }
+
+   private void siftDownUpper(int p) {
+      int slot = upper[p];
+      while (true) {
+         int child = 2*p + 1;
+         if (child >= nUpper)
+            break;
+         if (child + 1 < nUpper && values[upper[child+1]] < values[upper[child]])
+            child++;
+         if (values[upper[child]] >= values[slot])
+            break;
+         setUpper(p, upper[child]);
+         p = child;
+      }
+      setUpper(p, slot);
+   }
+}
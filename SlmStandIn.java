@@ -0,0 +1,233 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+* Takes the place of the program that drives the SLM, to try out a ClosedLoop
+* without one. It receives masks from a MaskSink, either over a TCP connection
+* it listens for or by watching the file of a FileSink, keeps the latest one
+* and counts how long each took to arrive (on the same machine, whose
+* System.nanoTime() both sides share).
+*
+* Usage: java -cp ij.jar:slm-imaging.jar SlmStandIn -port 5000
+*        java -cp ij.jar:slm-imaging.jar SlmStandIn -file masks.slm
+*
+* It reports once a second until stopped. It can also be run on a thread of
+* its own, e.g. inside ImageJ or a test.
+*/
+
+public class SlmStandIn implements Runnable {
+
+   // Time to wait before looking at the file again (ns)
+   private static final long POLL_NANOS = 20000;
+   // The same while waiting for the sink to make the file (ns)
+   private static final long WAIT_NANOS = 10000000;
+
+   private final ServerSocketChannel server;
+   private final File file;
+   private final LatencyHistogram latency = new LatencyHistogram();
+   private volatile boolean stopped;
+   private volatile long frame = -1, received;
+   private byte[] mask = new byte[0];
+   private int size;
+
+   // Listen for a SocketSink on port (0 picks a free one, see getPort())
+   public SlmStandIn(int port) throws IOException {
+      server = ServerSocketChannel.open();
+      server.socket().bind(new InetSocketAddress("localhost", port));
+      file = null;
+   }
+
+   // Watch the file of a FileSink
+   public SlmStandIn(File file) {
+      this.file = file;
+      server = null;
+   }
+
+   public int getPort() {
+      return server != null ? server.socket().getLocalPort() : -1;
+   }
+
+   // Receive masks until stopped or the sender closes the connection
+   public void run() {
+      try {
+         if (server != null)
+            receive();
+         else
+            watch();
+      } catch (IOException e) {
+         if (!stopped)
+            System.err.println("SlmStandIn: " + e.getMessage());
+      }
+   }
+
+   public void stop() {
+      stopped = true;
+      try {
+         if (server != null)
+            server.close();
+      } catch (IOException e) {
+         // Closing anyway
+      }
+   }
+
+   // Masks received, and the frame of the latest one (-1 before the first)
+   public long getReceived() {
+      return received;
+   }
+
+   public long getFrame() {
+      return frame;
+   }
+
+   // A copy of the latest mask, size x size
+   public synchronized byte[] getMask() {
+      return mask.clone();
+   }
+
+   public synchronized int getSize() {
+      return size;
+   }
+
+   // Time from sending to receiving each mask
+   public LatencyHistogram getLatency() {
+      return latency;
+   }
+
+   private void receive() throws IOException {
+      SocketChannel channel = server.accept();
+      try {
+         channel.socket().setTcpNoDelay(true);
+         ByteBuffer header = ByteBuffer.allocateDirect(MaskSink.MESSAGE_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+         ByteBuffer body = ByteBuffer.allocateDirect(0);
+         while (!stopped) {
+            header.clear();
+            if (!readFully(channel, header))
+               return;
+            long f = header.getLong(0), sent = header.getLong(8);
+            int s = header.getInt(16);
+            if (body.capacity() != s*s)
+               body = ByteBuffer.allocateDirect(s*s);
+            body.clear();
+            if (!readFully(channel, body))
+               return;
+            latency.record(System.nanoTime() - sent);
+            synchronized (this) {
+               if (mask.length != s*s)
+                  mask = new byte[s*s];
+               body.flip();
+               body.get(mask);
+               size = s;
+            }
+            frame = f;
+            received++;
+         }
+      } finally {
+         channel.close();
+      }
+   }
+
+   // Fill buffer from channel; false if it was closed first
+   private static boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining())
+         if (channel.read(buffer) < 0)
+            return false;
+      return true;
+   }
+
+   private void watch() throws IOException {
+      // The stand-in may be started before the sink has made the file
+      int s;
+      while ((s = sizeInFile()) == 0) {
+         if (stopped)
+            return;
+         java.util.concurrent.locks.LockSupport.parkNanos(WAIT_NANOS);
+      }
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                                                        MaskSink.FILE_HEADER + (long) s*s);
+         buffer.order(ByteOrder.LITTLE_ENDIAN);
+         synchronized (this) {
+            size = s;
+            mask = new byte[s*s];
+         }
+         byte[] copy = new byte[s*s];
+         ByteBuffer stamp = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+         java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+         long seen = 0;
+         while (!stopped) {
+            long sequence = buffer.getLong(0);
+            if (sequence == seen || (sequence & 1) != 0) {
+               java.util.concurrent.locks.LockSupport.parkNanos(POLL_NANOS);
+               continue;
+            }
+            buffer.position(8);
+            buffer.get(stamp.array());
+            int check = buffer.getInt(28);
+            buffer.position(MaskSink.FILE_HEADER);
+            buffer.get(copy);
+            // Written over while it was copied: take the next one instead. The
+            // reads are not ordered with the writes, so only the CRC tells for sure.
+            if (buffer.getLong(0) != sequence)
+               continue;
+            crc.reset();
+            crc.update(copy, 0, copy.length);
+            crc.update(stamp.array(), 0, 16);
+            if ((int) crc.getValue() != check)
+               continue;
+            long f = stamp.getLong(0), sent = stamp.getLong(8);
+            latency.record(System.nanoTime() - sent);
+            synchronized (this) {
+               System.arraycopy(copy, 0, mask, 0, copy.length);
+            }
+            seen = sequence;
+            frame = f;
+            received++;
+         }
+      } finally {
+         raf.close();
+      }
+   }
+
+   // The size of the masks, once the file is there with its header and room for
+   // a mask, else 0
+   private int sizeInFile() throws IOException {
+      if (file.length() < MaskSink.FILE_HEADER)
+         return 0;
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         raf.seek(24);
+         int s = Integer.reverseBytes(raf.readInt());
+         return s > 0 && raf.length() >= MaskSink.FILE_HEADER + (long) s*s ? s : 0;
+      } finally {
+         raf.close();
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length != 2 || !(args[0].equals("-port") || args[0].equals("-file"))) {
+         System.err.println("Usage: SlmStandIn -port n | -file masks.slm");
+         System.exit(2);
+      }
+      final SlmStandIn standIn = args[0].equals("-port") ?
+         new SlmStandIn(Integer.parseInt(args[1])) : new SlmStandIn(new File(args[1]));
+      Thread thread = new Thread(standIn, "SlmStandIn");
+      thread.start();
+      System.out.println(args[0].equals("-port") ? "Listening on port " + standIn.getPort()
+                                                : "Watching " + args[1]);
+      long last = 0;
+      while (thread.isAlive()) {
+         thread.join(1000);
+         long received = standIn.getReceived();
+         LatencyHistogram latency = standIn.getLatency();
+         if (received > last)
+            System.out.println(String.format("%d masks (frame %d), %.0f masks/s, latency median %.1f us, 99%% %.1f us, max %.1f us",
+                                             received, standIn.getFrame(), (double) received - last,
+                                             latency.getPercentile(0.5)/1e3, latency.getPercentile(0.99)/1e3,
+                                             latency.getMax()/1e3));
+         last = received;
+      }
+   }
+}
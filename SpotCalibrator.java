@@ -0,0 +1,354 @@
+import java.awt.Polygon;
+import java.util.*;
+import ij.gui.*;
+import ij.process.*;
+
+/**
+* Calibrates the SLM from a dot grid instead of hand-picked points. The grid
+* (makeGrid) is projected through the SLM and imaged; the spots in the camera
+* image are found with MaximaDetector and moved to the centroid of their pixels
+* above half their height, to a fraction of a pixel. The dots of the pattern are
+* read from the pattern image itself.
+*
+* Spots are matched to dots by first lining up the two sets by their mean and
+* spread in x and y, for each of the four ways the axes can be flipped, and
+* then alternately matching every spot to the nearest dot and fitting an affine
+* map to the matches, until they stop changing. The flip that matches the most
+* spots wins; three dots are left out at one corner of the grid so that only
+* the right one matches them all. The matches then go into a CalibrationFit.
+*/
+
+public class SpotCalibrator {
+
+   // Rounds of matching and fitting at most
+   private static final int MAX_ROUNDS = 10;
+
+   private final double threshold;
+   private final int separation;
+   private int nThreads = 1;
+   // Matched spots and dots of the last calibration
+   private double[] camX, camY, calX, calY;
+
+   // threshold and separation: of the spots in the camera image, as for
+   // MaximaDetector
+   public SpotCalibrator(double threshold, int separation) {
+      this.threshold = threshold;
+      this.separation = Math.max(1, separation);
+   }
+
+   public void setThreads(int nThreads) {
+      this.nThreads = Math.max(1, nThreads);
+   }
+
+   // A size x size pattern with single-pixel dots every spacing pixels, a
+   // spacing from the edges, without the three dots at the top left corner
+   public static ByteProcessor makeGrid(int size, int spacing) {
+      ByteProcessor ip = new ByteProcessor(size, size);
+      byte[] pixels = (byte[]) ip.getPixels();
+      for (int j = 0, y = spacing; y < size - spacing/2; j++, y += spacing)
+         for (int i = 0, x = spacing; x < size - spacing/2; i++, x += spacing)
+            if (i + j > 1)
+               pixels[y*size + x] = (byte) 255;
+      return ip;
+   }
+
+   // Positions of the dots of a pattern, its pixels above 0, as {xs, ys}
+   public static double[][] findDots(ImageProcessor pattern) {
+      int width = pattern.getWidth(), height = pattern.getHeight();
+      int n = 0;
+      for (int y = 0; y < height; y++)
+         for (int x = 0; x < width; x++)
+            if (pattern.getPixelValue(x, y) > 0)
+               n++;
+      double[][] dots = new double[2][n];
+      n = 0;
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            if (pattern.getPixelValue(x, y) > 0) {
+               dots[0][n] = x;
+               dots[1][n++] = y;
+            }
+         }
+      }
+      return dots;
+   }
+
+   // Sub-pixel positions of the spots in a camera image, as {xs, ys}
+   public double[][] detect(ImageProcessor camera) {
+      MaximaDetector detector = new MaximaDetector(threshold, separation);
+      detector.setThreads(nThreads);
+      PointRoi maxima = detector.detect(camera);
+      if (maxima == null)
+         return new double[2][0];
+      Polygon peaks = maxima.getPolygon();
+      int n = peaks.npoints, r = Math.max(1, separation/2);
+      int width = camera.getWidth(), height = camera.getHeight();
+      double[][] spots = new double[2][n];
+      for (int s = 0; s < n; s++) {
+         int px = peaks.xpoints[s], py = peaks.ypoints[s];
+         int x0 = Math.max(0, px-r), x1 = Math.min(width-1, px+r);
+         int y0 = Math.max(0, py-r), y1 = Math.min(height-1, py+r);
+         double low = Double.POSITIVE_INFINITY;
+         for (int y = y0; y <= y1; y++)
+            for (int x = x0; x <= x1; x++)
+               low = Math.min(low, camera.getPixelValue(x, y));
+         double level = (low + camera.getPixelValue(px, py))/2;
+         double sum = 0, sx = 0, sy = 0;
+         for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+               double w = camera.getPixelValue(x, y) - level;
+               if (w > 0) {
+                  sum += w;
+                  sx += w*x;
+                  sy += w*y;
+               }
+            }
+         }
+         spots[0][s] = sum > 0 ? sx/sum : px;
+         spots[1][s] = sum > 0 ? sy/sum : py;
+      }
+      return spots;
+   }
+
+   // Find the spots of camera, match them to the dots of pattern and fit the
+   // map between them (order as for CalibrationFit). Null if fewer spots
+   // than the fit needs could be matched.
+   public CalibrationFit calibrate(ImageProcessor camera, ImageProcessor pattern, int order) {
+      double[][] spots = detect(camera);
+      double[][] dots = findDots(pattern);
+      int needed = order > 1 ? 6 : 3;
+      camX = camY = calX = calY = new double[0];
+      if (spots[0].length < needed || dots[0].length < needed)
+         return null;
+      DotIndex index = new DotIndex(dots[0], dots[1]);
+
+      int[] best = null;
+      for (int flip = 0; flip < 4; flip++) {
+         int[] match = align(spots, dots, index, (flip & 1) != 0 ? -1 : 1, (flip & 2) != 0 ? -1 : 1);
+         if (best == null || count(match) > count(best))
+            best = match;
+      }
+      if (count(best) < needed)
+         return null;
+
+      int n = count(best);
+      camX = new double[n];
+      camY = new double[n];
+      calX = new double[n];
+      calY = new double[n];
+      for (int s = 0, k = 0; s < best.length; s++) {
+         if (best[s] >= 0) {
+            camX[k] = spots[0][s];
+            camY[k] = spots[1][s];
+            calX[k] = dots[0][best[s]];
+            calY[k++] = dots[1][best[s]];
+         }
+      }
+      try {
+         return new CalibrationFit(camX, camY, calX, calY, order);
+      } catch (IllegalArgumentException e) {
+         return null;
+      }
+   }
+
+   // The matched spots (camera) and dots (pattern) of the last calibration
+   public double[] getCameraX() {
+      return camX;
+   }
+
+   public double[] getCameraY() {
+      return camY;
+   }
+
+   public double[] getPatternX() {
+      return calX;
+   }
+
+   public double[] getPatternY() {
+      return calY;
+   }
+
+   // Match the spots to the dots, starting from the spots lined up with the
+   // dots by mean and spread with the axes flipped by xSign and ySign. Returns
+   // the dot of each spot, -1 if none.
+   private int[] align(double[][] spots, double[][] dots, DotIndex index, int xSign, int ySign) {
+      int n = spots[0].length;
+      double[] xTerms = lineUp(spots[0], dots[0], xSign);
+      double[] yTerms = lineUp(spots[1], dots[1], ySign);
+      // As the affine terms 1, x, y
+      xTerms = new double[] {xTerms[0], xTerms[1], 0};
+      yTerms = new double[] {yTerms[0], 0, yTerms[1]};
+
+      int[] match = new int[n];
+      int[] previous = null;
+      double[] mx = new double[n], my = new double[n];
+      for (int round = 0; round < MAX_ROUNDS; round++) {
+         for (int s = 0; s < n; s++) {
+            double x = spots[0][s], y = spots[1][s];
+            mx[s] = xTerms[0] + xTerms[1]*x + xTerms[2]*y;
+            my[s] = yTerms[0] + yTerms[1]*x + yTerms[2]*y;
+            match[s] = index.nearest(mx[s], my[s]);
+         }
+         unique(match, mx, my, dots);
+         if (previous != null && Arrays.equals(match, previous))
+            break;
+         previous = match.clone();
+
+         int m = count(match);
+         if (m < 3)
+            break;
+         double[] cx = new double[m], cy = new double[m], px = new double[m], py = new double[m];
+         for (int s = 0, k = 0; s < n; s++) {
+            if (match[s] >= 0) {
+               cx[k] = spots[0][s];
+               cy[k] = spots[1][s];
+               px[k] = dots[0][match[s]];
+               py[k++] = dots[1][match[s]];
+            }
+         }
+         MaskGenerator fit = new MaskGenerator();
+         try {
+            new CalibrationFit(cx, cy, px, py, 1).apply(fit);
+         } catch (IllegalArgumentException e) {
+            break;
+         }
+         xTerms = fit.xTerms;
+         yTerms = fit.yTerms;
+      }
+      return match;
+   }
+
+   // Scale (with the given sign) and offset that give values the mean and
+   // spread of targets, as {offset, scale}
+   private static double[] lineUp(double[] values, double[] targets, int sign) {
+      double[] v = meanAndSpread(values), t = meanAndSpread(targets);
+      double scale = sign*(v[1] > 0 ? t[1]/v[1] : 1);
+      return new double[] {t[0] - scale*v[0], scale};
+   }
+
+   private static double[] meanAndSpread(double[] values) {
+      double sum = 0, squares = 0;
+      for (double v : values)
+         sum += v;
+      double mean = sum/values.length;
+      for (double v : values)
+         squares += (v - mean)*(v - mean);
+      return new double[] {mean, Math.sqrt(squares/values.length)};
+   }
+
+   // Where several spots matched the same dot, keep only the one mapped (to
+   // mx, my) closest to it
+   private static void unique(int[] match, double[] mx, double[] my, double[][] dots) {
+      int[] owner = new int[dots[0].length];
+      Arrays.fill(owner, -1);
+      for (int s = 0; s < match.length; s++) {
+         int d = match[s];
+         if (d < 0)
+            continue;
+         if (owner[d] < 0) {
+            owner[d] = s;
+         } else if (distance(mx, my, s, dots, d) < distance(mx, my, owner[d], dots, d)) {
+            match[owner[d]] = -1;
+            owner[d] = s;
+         } else {
+            match[s] = -1;
+         }
+      }
+   }
+
+   // Squared distance from mapped spot s to dot d
+   private static double distance(double[] mx, double[] my, int s, double[][] dots, int d) {
+      double dx = mx[s] - dots[0][d], dy = my[s] - dots[1][d];
+      return dx*dx + dy*dy;
+   }
+
+   private static int count(int[] match) {
+      int n = 0;
+      for (int m : match)
+         if (m >= 0)
+            n++;
+      return n;
+   }
+
+   // Dots in the cells of a grid, for finding the nearest one to a point within
+   // half the typical distance between dots
+   private static class DotIndex {
+
+      private final double[] xs, ys;
+      private final double cell, reach;
+      private final double minX, minY;
+      private final int columns, rows;
+      private final int[] start, dots;
+
+      DotIndex(double[] xs, double[] ys) {
+         this.xs = xs;
+         this.ys = ys;
+         int n = xs.length;
+         double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+         double lowX = Double.POSITIVE_INFINITY, lowY = Double.POSITIVE_INFINITY;
+         for (int d = 0; d < n; d++) {
+            lowX = Math.min(lowX, xs[d]);
+            lowY = Math.min(lowY, ys[d]);
+            maxX = Math.max(maxX, xs[d]);
+            maxY = Math.max(maxY, ys[d]);
+         }
+         minX = lowX;
+         minY = lowY;
+
+         // Typical spacing: the median distance from a dot to its nearest one
+         double[] nearest = new double[n];
+         for (int d = 0; d < n; d++) {
+            double best = Double.POSITIVE_INFINITY;
+            for (int e = 0; e < n; e++) {
+               if (e != d) {
+                  double dx = xs[e] - xs[d], dy = ys[e] - ys[d];
+                  best = Math.min(best, dx*dx + dy*dy);
+               }
+            }
+            nearest[d] = Math.sqrt(best);
+         }
+         Arrays.sort(nearest);
+         double spacing = Math.max(1, nearest[n/2]);
+         reach = spacing/2;
+         cell = spacing;
+         columns = (int) ((maxX - minX)/cell) + 1;
+         rows = (int) ((maxY - minY)/cell) + 1;
+
+         // Dots sorted by cell, with where each cell starts
+         start = new int[columns*rows + 1];
+         for (int d = 0; d < n; d++)
+            start[cellOf(xs[d], ys[d]) + 1]++;
+         for (int c = 0; c < columns*rows; c++)
+            start[c+1] += start[c];
+         dots = new int[n];
+         int[] fill = start.clone();
+         for (int d = 0; d < n; d++)
+            dots[fill[cellOf(xs[d], ys[d])]++] = d;
+      }
+
+      private int cellOf(double x, double y) {
+         return ((int) ((y - minY)/cell))*columns + (int) ((x - minX)/cell);
+      }
+
+      // The dot nearest to x, y if it is within reach, otherwise -1
+      int nearest(double x, double y) {
+         int cx = (int) Math.floor((x - minX)/cell), cy = (int) Math.floor((y - minY)/cell);
+         int found = -1;
+         double best = reach*reach;
+         for (int j = Math.max(0, cy-1); j <= Math.min(rows-1, cy+1); j++) {
+            for (int i = Math.max(0, cx-1); i <= Math.min(columns-1, cx+1); i++) {
+               int c = j*columns + i;
+               for (int k = start[c]; k < start[c+1]; k++) {
+                  int d = dots[k];
+                  double dx = xs[d] - x, dy = ys[d] - y;
+                  if (dx*dx + dy*dy < best) {
+                     best = dx*dx + dy*dy;
+                     found = d;
+                  }
+               }
+            }
+         }
+         return found;
+      }
+   }
+}
@@ -0,0 +1,255 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import ij.*;
+import ij.process.*;
+
+/**
+* Mean, maximum, standard deviation and local correlation projections of a stack,
+* all from a single read of it. The local correlation image shows, for every
+* pixel, the mean correlation of its time course with those of its four
+* neighbours, which makes active cells stand out even when they are dim in the
+* mean. The projections are meant for finding targets.
+*
+* Mean and variance use Welford's update, and the covariance of neighbouring
+* pixels the matching pairwise update, so long stacks with a large offset do not
+* lose precision. The frame is split into bands of rows (tiles) that are
+* updated in parallel. Each tile also tracks the mean of the row below it, which
+* its covariances need, so tiles never read each other's state.
+*/
+
+public class StackProjector {
+
+   public static final int MEAN = 0, MAX = 1, STD = 2, CORRELATION = 3;
+   public static final String[] NAMES = {"Mean", "Max", "Std", "Correlation"};
+
+   // Number of tiles handed to each thread
+   private static final int TILES_PER_THREAD = 4;
+
+   private final int width, height;
+   private int nThreads = 1;
+   private int nFrames;
+
+   public StackProjector(int width, int height) {
+      this.width = width;
+      this.height = height;
+   }
+
+   // Set how many threads are used (1 runs on the calling thread)
+   public void setThreads(int nThreads) {
+      this.nThreads = Math.max(1, nThreads);
+   }
+
+   // Number of frames in the last projection
+   public int getFrames() {
+      return nFrames;
+   }
+
+   // Project a stack. Stacks in memory are split into tiles once, each tile
+   // going through all frames; virtual stacks are read one frame at a time.
+   public ImageStack project(final ImageStack input) {
+      final Tile[] tiles = createTiles();
+      final int n = input.getSize();
+      ExecutorService pool = newPool(tiles);
+      try {
+         if (!input.isVirtual()) {
+            run(pool, tiles, new TileTask() {
+               public void run(Tile tile) {
+                  for (int f = 1; f <= n; f++)
+                     tile.add(input.getPixels(f));
+               }
+            });
+         } else {
+            for (int f = 1; f <= n; f++)
+               addFrame(pool, tiles, input.getPixels(f));
+         }
+      } finally {
+         if (pool != null)
+            pool.shutdownNow();
+      }
+      return result(tiles, n);
+   }
+
+   // Project all frames of a source, read whole one at a time
+   public ImageStack project(FrameSource source) throws IOException {
+      Tile[] tiles = createTiles();
+      int n = 0;
+      ExecutorService pool = newPool(tiles);
+      try {
+         while (source.nextFrame()) {
+            addFrame(pool, tiles, source.readRows(0, height));
+            n++;
+         }
+      } finally {
+         if (pool != null)
+            pool.shutdownNow();
+      }
+      return result(tiles, n);
+   }
+
+   private Tile[] createTiles() {
+      int nTiles = nThreads == 1 ? 1 : Math.min(height, nThreads*TILES_PER_THREAD);
+      Tile[] tiles = new Tile[nTiles];
+      for (int t = 0; t < nTiles; t++)
+         tiles[t] = new Tile(height*t/nTiles, height*(t+1)/nTiles);
+      return tiles;
+   }
+
+   // Threads for the tiles, shared by all frames of a projection; null if there
+   // is a single tile, which runs on the calling thread
+   private ExecutorService newPool(Tile[] tiles) {
+      return tiles.length > 1 ? Executors.newFixedThreadPool(Math.min(nThreads, tiles.length)) : null;
+   }
+
+   // Add one frame to all tiles in parallel
+   private void addFrame(ExecutorService pool, Tile[] tiles, final Object pixels) {
+      run(pool, tiles, new TileTask() {
+         public void run(Tile tile) {
+            tile.add(pixels);
+         }
+      });
+   }
+
+   private interface TileTask {
+      void run(Tile tile);
+   }
+
+   private void run(ExecutorService pool, Tile[] tiles, final TileTask task) {
+      if (pool == null) {
+         task.run(tiles[0]);
+         return;
+      }
+      try {
+         java.util.List<Future<?>> futures = new ArrayList<Future<?>>();
+         for (final Tile tile : tiles) {
+            futures.add(pool.submit(new Runnable() {
+               public void run() {
+                  task.run(tile);
+               }
+            }));
+         }
+         for (Future<?> future : futures)
+            future.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Projection interrupted", e);
+      } catch (ExecutionException e) {
+         throw new RuntimeException("Projection failed", e.getCause());
+      }
+   }
+
+   // Put the tiles together into a stack with one float slice per projection
+   private ImageStack result(Tile[] tiles, int n) {
+      nFrames = n;
+      int size = width*height;
+      float[] mean = new float[size], max = new float[size], std = new float[size];
+      double[] m2 = new double[size], right = new double[size], down = new double[size];
+      for (Tile tile : tiles) {
+         int offset = tile.y0*width, length = (tile.y1 - tile.y0)*width;
+         for (int k = 0; k < length; k++) {
+            mean[offset+k] = (float) tile.mean[k];
+            max[offset+k] = n > 0 ? tile.max[k] : 0;
+         }
+         System.arraycopy(tile.m2, 0, m2, offset, length);
+         System.arraycopy(tile.right, 0, right, offset, length);
+         System.arraycopy(tile.down, 0, down, offset, length);
+      }
+      for (int k = 0; k < size; k++)
+         std[k] = n > 1 ? (float) Math.sqrt(m2[k]/(n-1)) : 0;
+
+      // Mean correlation with the four neighbours
+      float[] correlation = new float[size];
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            int k = y*width + x;
+            double sum = 0;
+            int count = 0;
+            if (x+1 < width) { sum += correlate(right[k], m2[k], m2[k+1]); count++; }
+            if (x > 0) { sum += correlate(right[k-1], m2[k], m2[k-1]); count++; }
+            if (y+1 < height) { sum += correlate(down[k], m2[k], m2[k+width]); count++; }
+            if (y > 0) { sum += correlate(down[k-width], m2[k], m2[k-width]); count++; }
+            correlation[k] = count > 0 ? (float) (sum/count) : 0;
+         }
+      }
+
+      ImageStack stack = new ImageStack(width, height);
+      stack.addSlice(NAMES[MEAN], new FloatProcessor(width, height, mean, null));
+      stack.addSlice(NAMES[MAX], new FloatProcessor(width, height, max, null));
+      stack.addSlice(NAMES[STD], new FloatProcessor(width, height, std, null));
+      stack.addSlice(NAMES[CORRELATION], new FloatProcessor(width, height, correlation, null));
+      return stack;
+   }
+
+   private static double correlate(double covariance, double m2a, double m2b) {
+      double norm = Math.sqrt(m2a*m2b);
+      return norm > 0 ? covariance/norm : 0;
+   }
+
+   // Rows y0..y1-1 of the projections, updated frame by frame
+   private class Tile {
+      final int y0, y1, rows;
+      // Rows whose mean is tracked: the tile's own and, if there is one, the row below
+      final int tracked;
+      int n;
+      final double[] values, mean, m2, right, down, delta;
+      final float[] max;
+
+      Tile(int y0, int y1) {
+         this.y0 = y0;
+         this.y1 = y1;
+         rows = y1 - y0;
+         tracked = y1 < height ? rows + 1 : rows;
+         values = new double[tracked*width];
+         mean = new double[tracked*width];
+         delta = new double[tracked*width];
+         m2 = new double[rows*width];
+         right = new double[rows*width];
+         down = new double[rows*width];
+         max = new float[rows*width];
+         Arrays.fill(max, Float.NEGATIVE_INFINITY);
+      }
+
+      // Fold in one frame, whose pixels are a byte[], short[] or float[]
+      void add(Object pixels) {
+         n++;
+         int offset = y0*width, length = tracked*width, own = rows*width;
+         if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int k = 0; k < length; k++)
+               values[k] = p[offset+k] & 0xffff;
+         } else if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int k = 0; k < length; k++)
+               values[k] = p[offset+k] & 0xff;
+         } else {
+            float[] p = (float[]) pixels;
+            for (int k = 0; k < length; k++)
+               values[k] = p[offset+k];
+         }
+
+         // Distance of each pixel from its previous mean, then the new mean
+         for (int k = 0; k < length; k++) {
+            double value = values[k];
+            double d = value - mean[k];
+            delta[k] = d;
+            mean[k] += d/n;
+            if (k < own) {
+               m2[k] += d*(value - mean[k]);
+               if (value > max[k]) max[k] = (float) value;
+            }
+         }
+
+         // Co-moments with the right and lower neighbours
+         double scale = (n - 1)/(double) n;
+         for (int r = 0; r < rows; r++) {
+            int row = r*width;
+            for (int x = 0; x < width - 1; x++)
+               right[row+x] += scale*delta[row+x]*delta[row+x+1];
+            if (r + 1 < tracked) {
+               for (int x = 0; x < width; x++)
+                  down[row+x] += scale*delta[row+x]*delta[row+width+x];
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,401 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+* Reads the frames of an uncompressed grayscale TIFF stack one at a time, without
+* opening the whole stack. The IFD chain is followed as frames are read and pixel
+* rows are read straight from the file through a FileChannel into buffers that are
+* reused for every frame, so memory use does not depend on the length of the
+* recording. Rows can be read in bands, so that frames larger than the available
+* buffer are read in several pieces.
+*
+* 8-bit, 16-bit and 32-bit float images are supported, in either byte order, as
+* well as the single-IFD layout ImageJ uses for stacks larger than 4GB (one IFD
+* followed by all frames back to back, with "images=n" in the description).
+*/
+
+public class TiffStreamReader implements FrameSource {
+
+   // TIFF tags
+   private static final int WIDTH = 256, HEIGHT = 257, BITS_PER_SAMPLE = 258,
+      COMPRESSION = 259, DESCRIPTION = 270, STRIP_OFFSETS = 273,
+      SAMPLES_PER_PIXEL = 277, ROWS_PER_STRIP = 278, SAMPLE_FORMAT = 339;
+
+   private final String path;
+   // Kept for its modification time
+   private final File location;
+   private final RandomAccessFile file;
+   private final FileChannel channel;
+   private ByteOrder order;
+
+   // Layout of the current frame
+   private int width, height, bitDepth, rowsPerStrip;
+   private long ifdOffset, firstIfd;
+   private long[] stripOffsets = new long[1];
+   private int nStrips;
+   private int nFrames, frame;
+
+   // Frames stored back to back after a single IFD (ImageJ stacks over 4GB)
+   private int imagesInDescription;
+   private boolean contiguous;
+   // The file is still being written (live acquisition)
+   private boolean growing;
+   // When the current frame was complete, and when nextFrame() last found no
+   // complete frame (System.nanoTime())
+   private long frameTime, lastMiss;
+   // The last call to nextFrame() found no complete frame
+   private boolean missed;
+   private long frameShift;
+
+   // Reused buffers
+   private final ByteBuffer entry = ByteBuffer.allocate(12);
+   private final ByteBuffer word = ByteBuffer.allocate(4);
+   private ByteBuffer offsetBuffer = ByteBuffer.allocate(0);
+   private ByteBuffer buffer;
+   private Object rows;
+
+   public TiffStreamReader(String path) throws IOException {
+      this.path = path;
+      location = new File(path);
+      file = new RandomAccessFile(path, "r");
+      channel = file.getChannel();
+
+      // Read the header
+      ByteBuffer header = ByteBuffer.allocate(8);
+      readFully(header, 0);
+      if (header.get(0) == 'I' && header.get(1) == 'I')
+         order = ByteOrder.LITTLE_ENDIAN;
+      else if (header.get(0) == 'M' && header.get(1) == 'M')
+         order = ByteOrder.BIG_ENDIAN;
+      else
+         throw new IOException("Not a TIFF file: " + path);
+      header.order(order);
+      entry.order(order);
+      word.order(order);
+      if (header.getShort(2) != 42)
+         throw new IOException("Only classic (non-BigTIFF) TIFF files are supported");
+      firstIfd = header.getInt(4) & 0xffffffffL;
+
+      // The first IFD describes the layout of every frame
+      readIfd(firstIfd);
+      int expected = imagesInDescription;
+      contiguous = expected > 1 && readNextIfd(firstIfd) == 0;
+      if (contiguous) {
+         nFrames = expected;
+      } else {
+         nFrames = countIfds();
+      }
+      frame = 0;
+   }
+
+   public String getPath() {
+      return path;
+   }
+
+   public int getWidth() {
+      return width;
+   }
+
+   public int getHeight() {
+      return height;
+   }
+
+   public int getBitDepth() {
+      return bitDepth;
+   }
+
+   // Number of frames found when the file was opened
+   public int getFrames() {
+      return nFrames;
+   }
+
+   // Current frame (1-based), 0 before the first call to nextFrame()
+   public int getFrame() {
+      return frame;
+   }
+
+   // Bytes needed to hold one row of a frame
+   public int getRowBytes() {
+      return width*(bitDepth/8);
+   }
+
+   // The file is still being written: a frame whose IFD or pixels are not all
+   // in the file yet is not there yet, rather than an error
+   public void setGrowing(boolean growing) {
+      this.growing = growing;
+   }
+
+   // Move on to the next frame. Returns false if there are no frames left.
+   public boolean nextFrame() throws IOException {
+      long now = System.nanoTime();
+      if (!advance()) {
+         lastMiss = now;
+         missed = true;
+         return false;
+      }
+      // While the file is being written, a frame that was not there when last
+      // looked for arrived since then. One that was already waiting was complete
+      // by the time the file was last modified, which is only looked up then, as
+      // it allocates.
+      if (!growing)
+         frameTime = now;
+      else if (missed)
+         frameTime = lastMiss;
+      else
+         frameTime = Math.min(now, modifiedAt(location));
+      missed = false;
+      return true;
+   }
+
+   // When the current frame was complete (at the latest), or when nextFrame()
+   // returned it if the file is not being written
+   public long getFrameTime() {
+      return frameTime;
+   }
+
+   // The System.nanoTime() at which a file was last modified, to the millisecond
+   static long modifiedAt(File file) throws IOException {
+      long now = System.nanoTime();
+      long modified = file.lastModified();
+      if (modified == 0)
+         throw new IOException("Can not be read: " + file);
+      return now - Math.max(0, System.currentTimeMillis() - modified)*1000000L;
+   }
+
+   // Move to the next frame if it is there
+   private boolean advance() throws IOException {
+      if (frame == 0) {
+         if (growing && !isComplete())
+            return false;
+         frame = 1;
+         return true;
+      }
+      if (contiguous) {
+         if (frame >= nFrames)
+            return false;
+         frame++;
+         frameShift = (long)(frame-1)*height*getRowBytes();
+         return true;
+      }
+
+      // Follow the chain of IFDs, the next pointer is read again in case the file
+      // grew. While it is being written, what is not in it yet is not read, as
+      // that would throw (and allocate) on every look.
+      if (growing && !isWritten(ifdOffset))
+         return false;
+      long next;
+      try {
+         next = readNextIfd(ifdOffset);
+      } catch (EOFException e) {
+         if (!growing)
+            throw e;
+         next = 0;
+      }
+      if (next == 0 || growing && !isWritten(next))
+         return false;
+      long previous = ifdOffset;
+      int w = width, h = height, b = bitDepth;
+      boolean parsed = true;
+      try {
+         readIfd(next);
+      } catch (EOFException e) {
+         if (!growing)
+            throw e;
+         parsed = false;
+      }
+      if (growing && (!parsed || !isComplete())) {
+         // Written part way: stay on the current frame and try again later
+         readIfd(previous);
+         return false;
+      }
+      if (width != w || height != h || bitDepth != b)
+         throw new IOException("Frame " + (frame+1) + " has a different size or type");
+      frame++;
+      return true;
+   }
+
+   // Read rows y0..y1-1 of the current frame. The returned byte[], short[] or
+   // float[] is reused by the next call and holds (y1-y0)*width pixels.
+   public Object readRows(int y0, int y1) throws IOException {
+      int rowBytes = getRowBytes();
+      int nBytes = (y1-y0)*rowBytes;
+      if (buffer == null || buffer.capacity() < nBytes) {
+         buffer = ByteBuffer.allocateDirect(nBytes).order(order);
+         int length = (y1-y0)*width;
+         if (bitDepth == 8) rows = new byte[length];
+         else if (bitDepth == 16) rows = new short[length];
+         else rows = new float[length];
+      }
+
+      // Read the rows strip by strip
+      int y = y0;
+      while (y < y1) {
+         int strip = y / rowsPerStrip;
+         int last = Math.min(y1, (strip+1)*rowsPerStrip);
+         buffer.limit((last-y0)*rowBytes);
+         buffer.position((y-y0)*rowBytes);
+         readFully(buffer, stripOffsets[strip] + frameShift + (long)(y - strip*rowsPerStrip)*rowBytes);
+         y = last;
+      }
+
+      // Convert the raw bytes into pixels
+      buffer.position(0);
+      buffer.limit(nBytes);
+      int n = (y1-y0)*width;
+      if (bitDepth == 8)
+         buffer.get((byte[])rows, 0, n);
+      else if (bitDepth == 16)
+         buffer.asShortBuffer().get((short[])rows, 0, n);
+      else
+         buffer.asFloatBuffer().get((float[])rows, 0, n);
+      return rows;
+   }
+
+   public void close() throws IOException {
+      file.close();
+   }
+
+   // Take over the pixel buffers of a reader that is no longer used, so that
+   // reading many single-frame files does not allocate new buffers for each one
+   public void reuseBuffers(TiffStreamReader previous) {
+      if (previous.bitDepth == bitDepth && previous.buffer != null) {
+         buffer = previous.buffer.order(order);
+         rows = previous.rows;
+      }
+   }
+
+   // Parse the IFD at the given offset
+   private void readIfd(long offset) throws IOException {
+      ifdOffset = offset;
+      word.clear().limit(2);
+      readFully(word, offset);
+      int nEntries = word.getShort(0) & 0xffff;
+
+      int compression = 1, samples = 1, format = 1;
+      long stripsAt = 0;
+      int stripsType = 0;
+      rowsPerStrip = Integer.MAX_VALUE;
+      bitDepth = 8;
+      for (int e = 0; e < nEntries; e++) {
+         entry.clear();
+         readFully(entry, offset + 2 + 12L*e);
+         int tag = entry.getShort(0) & 0xffff;
+         int type = entry.getShort(2) & 0xffff;
+         long n = entry.getInt(4) & 0xffffffffL;
+         long value = type == 3 ? (entry.getShort(8) & 0xffff) : (entry.getInt(8) & 0xffffffffL);
+         switch (tag) {
+            case WIDTH:             width = (int) value; break;
+            case HEIGHT:            height = (int) value; break;
+            case BITS_PER_SAMPLE:   bitDepth = (int) value; break;
+            case COMPRESSION:       compression = (int) value; break;
+            case SAMPLES_PER_PIXEL: samples = (int) value; break;
+            case ROWS_PER_STRIP:    rowsPerStrip = (int) value; break;
+            case SAMPLE_FORMAT:     format = (int) value; break;
+            case STRIP_OFFSETS:
+               nStrips = (int) n;
+               stripsType = type;
+               stripsAt = value;
+               break;
+            case DESCRIPTION:
+               if (offset == firstIfd)
+                  imagesInDescription = parseImages(n, value);
+               break;
+         }
+      }
+
+      if (compression != 1)
+         throw new IOException("Compressed TIFF files can not be streamed");
+      if (samples != 1 || !(bitDepth == 8 || bitDepth == 16 || (bitDepth == 32 && format == 3)))
+         throw new IOException("Only 8-bit, 16-bit and 32-bit float grayscale TIFF files are supported");
+      if (rowsPerStrip > height)
+         rowsPerStrip = height;
+
+      // Read the strip offsets, which are stored in the entry itself if there is only one
+      if (stripOffsets.length < nStrips)
+         stripOffsets = new long[nStrips];
+      if (nStrips == 1) {
+         stripOffsets[0] = stripsAt;
+      } else {
+         int size = stripsType == 3 ? 2 : 4;
+         if (offsetBuffer.capacity() < nStrips*size)
+            offsetBuffer = ByteBuffer.allocate(nStrips*size).order(order);
+         offsetBuffer.clear().limit(nStrips*size);
+         readFully(offsetBuffer, stripsAt);
+         for (int s = 0; s < nStrips; s++)
+            stripOffsets[s] = size == 2 ? (offsetBuffer.getShort(s*2) & 0xffff)
+                                        : (offsetBuffer.getInt(s*4) & 0xffffffffL);
+      }
+   }
+
+   // Whether the IFD just read was parsed to the end and the pixels it points
+   // to are all in the file
+   private boolean isComplete() throws IOException {
+      long end = 0;
+      for (int s = 0; s < nStrips; s++) {
+         int rows = Math.min(rowsPerStrip, height - s*rowsPerStrip);
+         end = Math.max(end, stripOffsets[s] + (long) rows*getRowBytes());
+      }
+      return end <= channel.size();
+   }
+
+   // Whether the IFD at the given offset, up to the pointer to the next one, is
+   // in the file
+   private boolean isWritten(long offset) throws IOException {
+      long size = channel.size();
+      if (offset + 2 > size)
+         return false;
+      word.clear().limit(2);
+      readFully(word, offset);
+      int nEntries = word.getShort(0) & 0xffff;
+      return offset + 2 + 12L*nEntries + 4 <= size;
+   }
+
+   // Read the pointer to the IFD that follows the one at the given offset
+   private long readNextIfd(long offset) throws IOException {
+      word.clear().limit(2);
+      readFully(word, offset);
+      int nEntries = word.getShort(0) & 0xffff;
+      word.clear();
+      readFully(word, offset + 2 + 12L*nEntries);
+      return word.getInt(0) & 0xffffffffL;
+   }
+
+   // Count the frames by walking the IFD chain without parsing it
+   private int countIfds() throws IOException {
+      int n = 0;
+      for (long offset = firstIfd; offset != 0 && offset < channel.size(); offset = readNextIfd(offset))
+         n++;
+      return n;
+   }
+
+   // Get the number of images from an ImageJ description ("images=n")
+   private int parseImages(long length, long offset) throws IOException {
+      if (length <= 4 || length > 8192)
+         return 0;
+      ByteBuffer text = ByteBuffer.allocate((int) length);
+      readFully(text, offset);
+      String description = new String(text.array(), "ISO-8859-1");
+      int start = description.indexOf("images=");
+      if (!description.startsWith("ImageJ") || start < 0)
+         return 0;
+      int end = start + 7;
+      while (end < description.length() && Character.isDigit(description.charAt(end)))
+         end++;
+      try {
+         return Integer.parseInt(description.substring(start+7, end));
+      } catch (NumberFormatException e) {
+         return 0;
+      }
+   }
+
+   // Fill the remaining space of a buffer from the file, starting at position
+   private void readFully(ByteBuffer dst, long position) throws IOException {
+      while (dst.hasRemaining()) {
+         int n = channel.read(dst, position);
+         if (n < 0)
+            throw new EOFException("Unexpected end of file: " + path);
+         position += n;
+      }
+   }
+}
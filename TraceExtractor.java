@@ -0,0 +1,608 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import ij.*;
+import ij.process.*;
+
+/**
+* Extraction engine used by compress_stack_. For every frame of a stack, a box of
+* size (cRadius*2 + 1)^2 is taken around each target and the nMaxima pixels kept
+* from it become one column of the data matrix. A RoiReducer picks those pixels
+* and computes the trace value of that target in that frame. The boxes are
+* compiled once into a RoiIndex, so pixels are read straight from the pixel
+* array of each frame.
+*
+* Each pixel type has its own loop over the targets of a frame (see Kernel), so
+* the type is looked at once per frame rather than once per pixel: 8 and 16-bit
+* pixels are reduced as unsigned ints, 32-bit pixels as floats. The data matrix
+* has the type of the stack.
+*
+* Frames are independent of each other, so the stack is split into chunks of
+* frames that are handed to a pool of worker threads. Every frame is computed by
+* exactly the same code as in the serial case, which means the traces and the
+* data matrix do not depend on the number of threads used.
+*
+* Recordings that do not fit in memory can be streamed from a TIFF file instead,
+* one frame (or one band of rows of a frame) at a time.
+*
+* If a dF/F window is set, dF/F traces against a rolling percentile baseline are
+* computed along with the traces (see DeltaF) and can be picked up afterwards
+* with getDeltaF.
+*
+* If a TraceFile writer is set, every frame is also appended to it: streamed
+* frames as they are extracted, the frames of a stack (which are extracted out
+* of order) once they are all done.
+*
+* If a MotionCorrector is set, the shift of every frame against its reference is
+* estimated first and the boxes are moved along with the frame, so targets stay
+* in their boxes when the brain moves. The frame itself is not resampled; an
+* index is compiled once for each shift that occurs. The shifts can be picked
+* up afterwards with getShifts.
+*/
+
+public class TraceExtractor {
+
+   // Number of chunks handed to each thread, so that slow frames even out
+   private static final int CHUNKS_PER_THREAD = 4;
+
+   private final int[] xpoints, ypoints;
+   private final int nTargets, cRadius, nMaxima;
+   private final RoiReducer reducer;
+   private int nThreads = 1;
+   // dF/F baseline, off if the window is 0, and the dF/F of the last extraction
+   private int deltaWindow;
+   private double deltaPercentile;
+   private double[][] deltaF;
+   // Trace file the frames are appended to, off if null
+   private TraceFile.Writer writer;
+   // Motion correction, off if null, and the shifts of the last extraction
+   private MotionCorrector motion;
+   private int[][] shifts;
+
+   public TraceExtractor(int[] xpoints, int[] ypoints, int nTargets,
+                         int cRadius, int nMaxima, RoiReducer reducer) {
+      this.xpoints = xpoints;
+      this.ypoints = ypoints;
+      this.nTargets = nTargets;
+      this.cRadius = cRadius;
+      this.nMaxima = nMaxima;
+      this.reducer = reducer;
+   }
+
+   // Set how many threads are used for extraction (1 runs on the calling thread)
+   public void setThreads(int nThreads) {
+      this.nThreads = Math.max(1, nThreads);
+   }
+
+   public int getThreads() {
+      return nThreads;
+   }
+
+   public int getTargets() {
+      return nTargets;
+   }
+
+   // Also compute dF/F against the given percentile of the preceding window
+   // frames of each trace (a window of 0 turns it off)
+   public void setDeltaF(int window, double percentile) {
+      deltaWindow = Math.max(0, window);
+      deltaPercentile = percentile;
+   }
+
+   // dF/F traces of the last extraction, [target][frame], or null if it is off
+   public double[][] getDeltaF() {
+      return deltaF;
+   }
+
+   // A dF/F stage to feed frames to as they are extracted, or null if it is off
+   public DeltaF newDeltaF() {
+      return deltaWindow > 0 ? new DeltaF(nTargets, deltaWindow, deltaPercentile) : null;
+   }
+
+   // Move the boxes with each frame by its shift against the reference of motion
+   // (null turns it off)
+   public void setMotionCorrection(MotionCorrector motion) {
+      this.motion = motion;
+   }
+
+   // Append the traces (and data matrix) of every frame extracted to writer
+   // (null turns it off)
+   public void setWriter(TraceFile.Writer writer) {
+      this.writer = writer;
+   }
+
+   public TraceFile.Writer getWriter() {
+      return writer;
+   }
+
+   public boolean isCorrectingMotion() {
+      return motion != null;
+   }
+
+   // Shifts of the frames of the last extraction, x in [0][frame] and y in
+   // [1][frame], or null if motion correction is off
+   public int[][] getShifts() {
+      return shifts;
+   }
+
+   // Extract the traces of all targets across the stack. The trace of target i
+   // in frame f ends up in dPoints[i][f-1]. If matrix is not null, the data matrix
+   // of each frame is stored in it; it must be made for the bit depth of the stack.
+   public double[][] extract(final ImageStack input, final DataMatrixStore matrix) {
+      int nFrames = input.getSize();
+      final double[][] dPoints = new double[nTargets][nFrames];
+      final RoiIndex index = new RoiIndex(xpoints, ypoints, nTargets, cRadius,
+                                          input.getWidth(), input.getHeight());
+      deltaF = null;
+      shifts = null;
+      if (motion != null) {
+         checkSize(input.getWidth(), input.getHeight());
+         shifts = new int[2][nFrames];
+      }
+      final Map<Long, RoiIndex> shifted = motion != null ? new ConcurrentHashMap<Long, RoiIndex>() : null;
+
+      runChunks(nFrames, new Chunk() {
+         public void run(int first, int last) {
+            extractFrames(input, index, shifted, first, last, dPoints, matrix);
+         }
+      });
+
+      // Frames were done out of order, so dF/F and the trace file follow from
+      // the finished traces
+      if (deltaWindow > 0)
+         deltaF = DeltaF.compute(dPoints, deltaWindow, deltaPercentile, nThreads);
+      writeAll(dPoints, matrix);
+      return dPoints;
+   }
+
+   // Extract the traces of all targets from the pixels kept by an ExtractionCache,
+   // the same as from the stack they were read from. The view must have the radius
+   // and targets of this extractor; motion correction is not applied.
+   public double[][] extract(final ExtractionCache.View view, final DataMatrixStore matrix) {
+      if (view.getRadius() != cRadius || view.getTargets() != nTargets)
+         throw new IllegalArgumentException("The cached boxes do not match the targets");
+      int nFrames = view.getFrames();
+      final double[][] dPoints = new double[nTargets][nFrames];
+      deltaF = null;
+      shifts = null;
+      runChunks(nFrames, new Chunk() {
+         public void run(int first, int last) {
+            extractFrames(view, first, last, dPoints, matrix);
+         }
+      });
+      if (deltaWindow > 0)
+         deltaF = DeltaF.compute(dPoints, deltaWindow, deltaPercentile, nThreads);
+      writeAll(dPoints, matrix);
+      return dPoints;
+   }
+
+   private void writeAll(double[][] dPoints, DataMatrixStore matrix) {
+      if (writer == null || dPoints[0].length == 0)
+         return;
+      try {
+         writer.addFrames(dPoints, matrix, 1, dPoints[0].length);
+      } catch (IOException e) {
+         throw new RuntimeException("Writing the trace file failed", e);
+      }
+   }
+
+   private void extractFrames(ExtractionCache.View view, int first, int last,
+                              double[][] dPoints, DataMatrixStore matrix) {
+      Kernel kernel = new Kernel(view.getBoxSize());
+      double[] values = new double[nTargets];
+      Object framePoints = matrix != null ? matrix.newFrame() : null;
+      int bitDepth = view.getBitDepth();
+      for (int f = first; f <= last; f++) {
+         if (bitDepth == 16)
+            kernel.extract(view, f, values, (short[]) framePoints);
+         else if (bitDepth == 8)
+            kernel.extract(view, f, values, (byte[]) framePoints);
+         else
+            kernel.extract(view, f, values, (float[]) framePoints);
+         for (int i = 0; i < nTargets; i++)
+            dPoints[i][f-1] = values[i];
+         if (matrix != null)
+            matrix.putFrame(f, framePoints);
+      }
+   }
+
+   // Extracts whole frames that are handed to it one at a time and in any order,
+   // as by the workers of an ExtractionPipeline. Each thread needs its own.
+   public FrameExtractor newFrameExtractor(int width, int height) {
+      if (motion != null)
+         checkSize(width, height);
+      return new FrameExtractor(width, height);
+   }
+
+   // Take over the results of an extraction driven from outside, so getDeltaF
+   // and getShifts work as after extract (shifts is null without motion correction)
+   void finish(double[][] dPoints, int[][] shifts) {
+      this.shifts = shifts;
+      deltaF = deltaWindow > 0 ? DeltaF.compute(dPoints, deltaWindow, deltaPercentile, nThreads) : null;
+   }
+
+   // Frames first..last (1-based, inclusive) of a chunk
+   private interface Chunk {
+      void run(int first, int last);
+   }
+
+   // Split the frames into contiguous chunks and run them in parallel, or all on
+   // the calling thread if there is only one
+   private void runChunks(int nFrames, final Chunk chunk) {
+      int nChunks = Math.min(nFrames, nThreads*CHUNKS_PER_THREAD);
+      if (nThreads == 1 || nChunks < 2) {
+         chunk.run(1, nFrames);
+         return;
+      }
+      ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+      try {
+         java.util.List<Future<?>> futures = new ArrayList<Future<?>>();
+         for (int c = 0; c < nChunks; c++) {
+            final int first = 1 + (int)((long)nFrames*c/nChunks);
+            final int last  = (int)((long)nFrames*(c+1)/nChunks);
+            futures.add(pool.submit(new Runnable() {
+                public void run() {
+                   chunk.run(first, last);
+                }
+            }));
+         }
+         for (Future<?> future : futures)
+            future.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Extraction interrupted", e);
+      } catch (ExecutionException e) {
+         throw new RuntimeException("Extraction failed", e.getCause());
+      } finally {
+         pool.shutdownNow();
+      }
+   }
+
+   // Extract frames first..last (1-based, inclusive). With motion correction,
+   // shifted holds the index for each shift seen so far.
+   private void extractFrames(ImageStack input, RoiIndex unshifted, Map<Long, RoiIndex> shifted,
+                              int first, int last, double[][] dPoints, DataMatrixStore matrix) {
+      RoiIndex index = unshifted;
+      MotionCorrector.Estimator estimator = motion != null ? motion.newEstimator() : null;
+      int[] shift = new int[2];
+      Kernel kernel = new Kernel(index.getBoxSize());
+      double[] values = new double[nTargets];
+      // The data matrix of the current frame, one column per target
+      Object framePoints = matrix != null ? matrix.newFrame() : null;
+      for (int f = first; f <= last; f++) {
+         // Get the current image processor. Virtual stacks decode from disk and
+         // are not safe to read from several threads, so only one may do so at a time.
+         ImageProcessor cip;
+         if (input.isVirtual()) {
+            synchronized (input) {
+               cip = input.getProcessor(f);
+            }
+         } else {
+            cip = input.getProcessor(f);
+         }
+
+         // Follow the frame with the boxes
+         if (estimator != null) {
+            estimator.estimate(cip.getPixels(), cip, shift);
+            shifts[0][f-1] = shift[0];
+            shifts[1][f-1] = shift[1];
+            index = shiftedIndex(shifted, shift, unshifted);
+         }
+
+         // For each target get a square around it of size (cRadius*2 + 1)^2
+         // and save its maxima
+         Object pixels = cip.getPixels();
+         if (pixels instanceof short[])
+            kernel.extract(index, (short[]) pixels, values, (short[]) framePoints);
+         else if (pixels instanceof byte[])
+            kernel.extract(index, (byte[]) pixels, values, (byte[]) framePoints);
+         else if (pixels instanceof float[])
+            kernel.extract(index, (float[]) pixels, values, (float[]) framePoints);
+         else
+            kernel.extract(index, cip, values, (short[]) framePoints);
+         for (int i = 0; i < nTargets; i++)
+            dPoints[i][f-1] = values[i];
+
+         // Save it
+         if (matrix != null)
+            matrix.putFrame(f, framePoints);
+      }
+   }
+
+   // Extract the traces of all targets from a TIFF file that is read one frame at
+   // a time, so only a single frame is ever held in memory. Frames larger than
+   // bandBytes are read in bands of rows. Traces and data matrix are the same as
+   // those extracted from the opened stack.
+   public double[][] extract(TiffStreamReader reader, DataMatrixStore matrix,
+                             long bandBytes) throws IOException {
+      int nFrames = reader.getFrames();
+      double[][] dPoints = new double[nTargets][nFrames];
+      double[] values = new double[nTargets];
+      Object framePoints = matrix != null ? matrix.newFrame() : null;
+      Stream stream = openStream(reader, bandBytes);
+      // Frames come in order, so dF/F is computed as they are extracted
+      DeltaF delta = newDeltaF();
+      double[] dff = new double[nTargets];
+      deltaF = delta != null ? new double[nTargets][nFrames] : null;
+      shifts = motion != null ? new int[2][nFrames] : null;
+
+      for (int f = 1; f <= nFrames; f++) {
+         if (!reader.nextFrame())
+            throw new IOException("Frame " + f + " of " + nFrames + " could not be read: " + reader.getPath());
+         stream.extractFrame(reader, values, framePoints);
+         for (int i = 0; i < nTargets; i++)
+            dPoints[i][f-1] = values[i];
+         if (matrix != null)
+            matrix.putFrame(f, framePoints);
+         if (writer != null)
+            writer.addFrame(values, framePoints);
+         if (shifts != null) {
+            shifts[0][f-1] = stream.getShift()[0];
+            shifts[1][f-1] = stream.getShift()[1];
+         }
+         if (delta != null) {
+            delta.addFrame(values, dff);
+            for (int i = 0; i < nTargets; i++)
+               deltaF[i][f-1] = dff[i];
+         }
+      }
+      return dPoints;
+   }
+
+   // Start extracting frames one at a time from a source of the given size
+   public Stream openStream(FrameSource source, long bandBytes) {
+      if (motion != null)
+         checkSize(source.getWidth(), source.getHeight());
+      return new Stream(source.getWidth(), source.getHeight(), source.getRowBytes(), bandBytes);
+   }
+
+   private void checkSize(int width, int height) {
+      if (width != motion.getWidth() || height != motion.getHeight())
+         throw new IllegalArgumentException("Frames must be the same size as the motion reference");
+   }
+
+   // The index of the boxes moved by shift, compiled the first time that shift is seen
+   private RoiIndex shiftedIndex(Map<Long, RoiIndex> shifted, int[] shift, RoiIndex unshifted) {
+      if (shift[0] == 0 && shift[1] == 0)
+         return unshifted;
+      Long key = ((long) shift[0] << 32) | (shift[1] & 0xffffffffL);
+      RoiIndex index = shifted.get(key);
+      if (index == null) {
+         int[] x = new int[nTargets], y = new int[nTargets];
+         for (int i = 0; i < nTargets; i++) {
+            x[i] = xpoints[i] + shift[0];
+            y[i] = ypoints[i] + shift[1];
+         }
+         index = new RoiIndex(x, y, nTargets, cRadius, unshifted.getWidth(), unshifted.getHeight());
+         shifted.put(key, index);
+      }
+      return index;
+   }
+
+   // Extracts frames that are read one at a time. All buffers are allocated
+   // up front, so the cost of a frame does not depend on how many came before.
+   public class Stream {
+      private final RoiIndex index;
+      private final int height, bandRows, bitDepth;
+      // Motion correction: the shift of the current frame and the index for each shift
+      private final MotionCorrector.Estimator estimator;
+      private final int[] shift = new int[2];
+      private final Map<Long, RoiIndex> shifted = new HashMap<Long, RoiIndex>();
+      // Each target keeps its own box, since it may be filled from several bands;
+      // float boxes are only used for 32-bit frames
+      private final int[][] boxes;
+      private final float[][] floatBoxes;
+      private final Kernel kernel;
+
+      private Stream(int width, int height, int rowBytes, long bandBytes) {
+         this.height = height;
+         bitDepth = 8*rowBytes/width;
+         index = new RoiIndex(xpoints, ypoints, nTargets, cRadius, width, height);
+         boxes = bitDepth != 32 ? new int[nTargets][index.getBoxSize()] : null;
+         floatBoxes = bitDepth == 32 ? new float[nTargets][index.getBoxSize()] : null;
+         kernel = new Kernel(0);
+         estimator = motion != null ? motion.newEstimator() : null;
+         // The shift is found from the whole frame, so it is read in one go
+         if (estimator != null)
+            bandRows = height;
+         else
+            bandRows = (int) Math.max(1, Math.min(height, bandBytes/rowBytes));
+      }
+
+      // Shift of the last frame extracted, x then y (zero without motion correction)
+      public int[] getShift() {
+         return shift;
+      }
+
+      // Extract the current frame of source. The trace value of target i is
+      // stored in values[i] and, if framePoints is not null, the data matrix of
+      // the frame is stored in it (an array made by DataMatrixStore.newFrame()).
+      public void extractFrame(FrameSource source, double[] values,
+                               Object framePoints) throws IOException {
+         RoiIndex index = this.index;
+         Object frame = null;
+         if (estimator != null) {
+            frame = source.readRows(0, height);
+            estimator.estimate(frame, null, shift);
+            index = shiftedIndex(shifted, shift, this.index);
+         }
+
+         if (bitDepth == 32) {
+            for (int i = 0; i < nTargets; i++)
+               Arrays.fill(floatBoxes[i], index.getCount(i), floatBoxes[i].length, 0);
+         } else {
+            for (int i = 0; i < nTargets; i++)
+               Arrays.fill(boxes[i], index.getCount(i), boxes[i].length, 0);
+         }
+
+         // Read the frame band by band and pick out the pixels of each target
+         for (int y0 = 0; y0 < height; y0 += bandRows) {
+            int y1 = Math.min(height, y0 + bandRows);
+            Object rows = frame != null ? frame : source.readRows(y0, y1);
+            if (bitDepth == 16) {
+               short[] p = (short[]) rows;
+               for (int i = 0; i < nTargets; i++)
+                  index.gatherRows(p, y0, y1, i, boxes[i]);
+            } else if (bitDepth == 8) {
+               byte[] p = (byte[]) rows;
+               for (int i = 0; i < nTargets; i++)
+                  index.gatherRows(p, y0, y1, i, boxes[i]);
+            } else {
+               float[] p = (float[]) rows;
+               for (int i = 0; i < nTargets; i++)
+                  index.gatherRows(p, y0, y1, i, floatBoxes[i]);
+            }
+         }
+
+         if (bitDepth == 16) {
+            for (int i = 0; i < nTargets; i++)
+               values[i] = kernel.reduce(boxes[i], index.getCount(i), i, (short[]) framePoints);
+         } else if (bitDepth == 8) {
+            for (int i = 0; i < nTargets; i++)
+               values[i] = kernel.reduce(boxes[i], index.getCount(i), i, (byte[]) framePoints);
+         } else {
+            for (int i = 0; i < nTargets; i++)
+               values[i] = kernel.reduce(floatBoxes[i], index.getCount(i), i, (float[]) framePoints);
+         }
+      }
+   }
+
+   public class FrameExtractor {
+      private final int width, height;
+      private final RoiIndex index;
+      private final Map<Long, RoiIndex> shifted = new HashMap<Long, RoiIndex>();
+      private final MotionCorrector.Estimator estimator;
+      private final Kernel kernel;
+
+      private FrameExtractor(int width, int height) {
+         this.width = width;
+         this.height = height;
+         index = new RoiIndex(xpoints, ypoints, nTargets, cRadius, width, height);
+         estimator = motion != null ? motion.newEstimator() : null;
+         kernel = new Kernel(index.getBoxSize());
+      }
+
+      // Extract a frame given as its byte[], short[], float[] or int[] (RGB)
+      // pixels. The trace value of target i is stored in values[i], the data
+      // matrix in framePoints if it is not null (an array made by
+      // DataMatrixStore.newFrame()) and the shift of the frame in shift.
+      public void extract(Object pixels, double[] values, Object framePoints, int[] shift) {
+         RoiIndex index = this.index;
+         ImageProcessor ip = pixels instanceof int[] ?
+            new ColorProcessor(width, height, (int[]) pixels) : null;
+         if (estimator != null) {
+            estimator.estimate(pixels, ip, shift);
+            index = shiftedIndex(shifted, shift, this.index);
+         } else {
+            shift[0] = 0;
+            shift[1] = 0;
+         }
+         if (pixels instanceof short[])
+            kernel.extract(index, (short[]) pixels, values, (short[]) framePoints);
+         else if (pixels instanceof byte[])
+            kernel.extract(index, (byte[]) pixels, values, (byte[]) framePoints);
+         else if (pixels instanceof float[])
+            kernel.extract(index, (float[]) pixels, values, (float[]) framePoints);
+         else
+            kernel.extract(index, ip, values, (short[]) framePoints);
+      }
+   }
+
+   // The loops over the targets of a frame, one for each type of pixel, with the
+   // scratch space of one thread. Each gathers the box of every target, reduces
+   // it to its trace value in values[i] and, if framePoints is not null, stores
+   // its column of the data matrix there in the type of the frame.
+   private class Kernel {
+      private final RoiReducer reducer = TraceExtractor.this.reducer.copy();
+      private final int[] box;
+      private final float[] floatBox;
+      private final int[] column = new int[nMaxima];
+      private final float[] floatColumn = new float[nMaxima];
+
+      // boxSize may be 0 if the boxes are kept by the caller
+      Kernel(int boxSize) {
+         box = new int[boxSize];
+         floatBox = new float[boxSize];
+      }
+
+      void extract(RoiIndex index, short[] pixels, double[] values, short[] framePoints) {
+         for (int i = 0; i < nTargets; i++) {
+            int n = index.gather(pixels, i, box);
+            values[i] = reduce(box, n, i, framePoints);
+         }
+      }
+
+      void extract(RoiIndex index, byte[] pixels, double[] values, byte[] framePoints) {
+         for (int i = 0; i < nTargets; i++) {
+            int n = index.gather(pixels, i, box);
+            values[i] = reduce(box, n, i, framePoints);
+         }
+      }
+
+      void extract(RoiIndex index, float[] pixels, double[] values, float[] framePoints) {
+         for (int i = 0; i < nTargets; i++) {
+            int n = index.gather(pixels, i, floatBox);
+            values[i] = reduce(floatBox, n, i, framePoints);
+         }
+      }
+
+      // Frame f of the boxes kept by a cache, for each type of stack
+      void extract(ExtractionCache.View view, int f, double[] values, short[] framePoints) {
+         for (int i = 0; i < nTargets; i++) {
+            int n = view.gather(i, f, box);
+            values[i] = reduce(box, n, i, framePoints);
+         }
+      }
+
+      void extract(ExtractionCache.View view, int f, double[] values, byte[] framePoints) {
+         for (int i = 0; i < nTargets; i++) {
+            int n = view.gather(i, f, box);
+            values[i] = reduce(box, n, i, framePoints);
+         }
+      }
+
+      void extract(ExtractionCache.View view, int f, double[] values, float[] framePoints) {
+         for (int i = 0; i < nTargets; i++) {
+            int n = view.gather(i, f, floatBox);
+            values[i] = reduce(floatBox, n, i, framePoints);
+         }
+      }
+
+      // Any other type of processor (RGB), kept in a 16-bit data matrix
+      void extract(RoiIndex index, ImageProcessor ip, double[] values, short[] framePoints) {
+         for (int i = 0; i < nTargets; i++) {
+            int n = index.gather(ip, i, box);
+            values[i] = reduce(box, n, i, framePoints);
+         }
+      }
+
+      // Reduce the box of target i to its column of the data matrix and return
+      // its trace value
+      double reduce(int[] box, int n, int i, short[] framePoints) {
+         double value = reducer.reduce(box, n, column, nMaxima);
+         if (framePoints != null) {
+            for (int m = 0; m < nMaxima; m++)
+               framePoints[m*nTargets + i] = (short) column[m];
+         }
+         return value;
+      }
+
+      double reduce(int[] box, int n, int i, byte[] framePoints) {
+         double value = reducer.reduce(box, n, column, nMaxima);
+         if (framePoints != null) {
+            for (int m = 0; m < nMaxima; m++)
+               framePoints[m*nTargets + i] = (byte) column[m];
+         }
+         return value;
+      }
+
+      double reduce(float[] box, int n, int i, float[] framePoints) {
+         double value = reducer.reduce(box, n, floatColumn, nMaxima);
+         if (framePoints != null) {
+            for (int m = 0; m < nMaxima; m++)
+               framePoints[m*nTargets + i] = floatColumn[m];
+         }
+         return value;
+      }
+   }
+}
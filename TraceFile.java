@@ -0,0 +1,473 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+* Compressed binary file of the traces of a recording and, optionally, its data
+* matrix, written frame by frame while extracting and read back a trace or a
+* range of frames at a time.
+*
+* Frames are grouped into chunks of chunkFrames frames. Each chunk holds one
+* block per target with its trace values for those frames (so the file is
+* columnar), followed by one block with the data matrix of those frames. Every
+* block is byte-shuffled (all first bytes of the values, then all second bytes,
+* ...) and deflated on its own, so reading one target's trace only inflates its
+* blocks, and reading a range of frames only the chunks it covers.
+*
+* The file starts with a header, all little-endian:
+*
+*   0  magic "SLMTRC01"          32  nMaxima (0 without data matrix)
+*   8  format version (1)        36  bits per matrix value (8, 16 or 32 float)
+*   12 header size               40  flags (bit 0: blocks are byte-shuffled)
+*   16 nTargets                  44  offset of the index (long)
+*   20 nFrames                   52  length of the parameters (bytes)
+*   24 chunkFrames               56  parameters, "key=value" lines in UTF-8
+*   28 bits per trace value (64, float)
+*
+* The index at the end of the file, also little-endian, lists, for each chunk,
+* its first frame (0-based) and number of frames as two ints, then the offset
+* (long) and length (int) of the block of each target and, with a data matrix,
+* of the matrix block. nFrames and the index offset are filled in when the
+* writer is closed. A trace block holds its frames in order; a matrix block
+* holds them as DataMatrixStore does, targets varying fastest, then maxima, then
+* frames.
+*/
+
+public class TraceFile {
+
+   public static final int VERSION = 1;
+   public static final int CHUNK_FRAMES = 1024;
+   private static final int FIXED_HEADER = 56;
+   private static final int SHUFFLED = 1;
+   private static final byte[] MAGIC = {'S','L','M','T','R','C','0','1'};
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private TraceFile() {
+   }
+
+   // Writes a trace file frame by frame
+   public static class Writer {
+      private final int nTargets, nMaxima, matrixBits, chunkFrames, matrixBytes;
+      private final RandomAccessFile raf;
+      private final FileChannel channel;
+      private final int headerSize;
+      private final Deflater deflater = new Deflater();
+      // The frames of the current chunk: [target][frame in chunk] and the matrix bytes
+      private final double[][] traces;
+      private final ByteBuffer matrix;
+      private ByteBuffer raw = ByteBuffer.allocate(0), shuffled = ByteBuffer.allocate(0);
+      private byte[] packed = new byte[0];
+      private int nFrames, inChunk;
+      private ByteBuffer index = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+      private boolean closed;
+      // Scratch space of addFrames
+      private double[] values;
+      private Object framePoints;
+
+      // nMaxima: values of the data matrix per target and frame, 0 for none;
+      // matrixBits: their bits (8, 16 or 32); parameters: settings of the run,
+      // kept in the header
+      public Writer(File file, int nTargets, int nMaxima, int matrixBits,
+                    Map<String, String> parameters) throws IOException {
+         this(file, nTargets, nMaxima, matrixBits, parameters, CHUNK_FRAMES);
+      }
+
+      public Writer(File file, int nTargets, int nMaxima, int matrixBits,
+                    Map<String, String> parameters, int chunkFrames) throws IOException {
+         this.nTargets = nTargets;
+         this.nMaxima = nMaxima;
+         this.matrixBits = nMaxima > 0 ? DataMatrixStore.valueBits(matrixBits) : 0;
+         this.chunkFrames = Math.max(1, chunkFrames);
+         this.matrixBytes = nTargets*nMaxima*(this.matrixBits/8);
+         traces = new double[nTargets][this.chunkFrames];
+         matrix = ByteBuffer.allocate(matrixBytes*this.chunkFrames).order(ByteOrder.LITTLE_ENDIAN);
+
+         StringBuilder text = new StringBuilder();
+         if (parameters != null)
+            for (Map.Entry<String, String> entry : parameters.entrySet())
+               text.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+         byte[] params = text.toString().getBytes(UTF8);
+         headerSize = FIXED_HEADER + params.length;
+
+         raf = new RandomAccessFile(file, "rw");
+         raf.setLength(0);
+         channel = raf.getChannel();
+         ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+         header.put(MAGIC);
+         header.putInt(VERSION);
+         header.putInt(headerSize);
+         header.putInt(nTargets);
+         header.putInt(0);
+         header.putInt(this.chunkFrames);
+         header.putInt(64);
+         header.putInt(nMaxima);
+         header.putInt(this.matrixBits);
+         header.putInt(SHUFFLED);
+         header.putLong(0);
+         header.putInt(params.length);
+         header.put(params);
+         header.flip();
+         writeFully(header, 0);
+      }
+
+      public int getFrames() {
+         return nFrames;
+      }
+
+      // Append the next frame: the trace value of each target and, if the file
+      // has a data matrix, its values as made by DataMatrixStore.newFrame()
+      public void addFrame(double[] values, Object framePoints) throws IOException {
+         for (int i = 0; i < nTargets; i++)
+            traces[i][inChunk] = values[i];
+         if (nMaxima > 0) {
+            if (framePoints instanceof byte[])
+               matrix.put((byte[]) framePoints, 0, matrixBytes);
+            else if (framePoints instanceof short[])
+               matrix.asShortBuffer().put((short[]) framePoints, 0, matrixBytes/2);
+            else
+               matrix.asFloatBuffer().put((float[]) framePoints, 0, matrixBytes/4);
+            if (!(framePoints instanceof byte[]))
+               matrix.position(matrix.position() + matrixBytes);
+         }
+         nFrames++;
+         if (++inChunk == chunkFrames)
+            flushChunk();
+      }
+
+      // Append frames first..last (1-based, inclusive) of finished traces,
+      // [target][frame], and of matrix (which may be null if the file has no
+      // data matrix)
+      public void addFrames(double[][] dPoints, DataMatrixStore matrix, int first,
+                            int last) throws IOException {
+         if (nMaxima > 0 && matrix == null)
+            throw new IllegalArgumentException("The data matrix is needed for this file");
+         if (values == null) {
+            values = new double[nTargets];
+            framePoints = matrix != null ? matrix.newFrame() : null;
+         }
+         for (int f = first; f <= last; f++) {
+            for (int i = 0; i < nTargets; i++)
+               values[i] = dPoints[i][f-1];
+            if (nMaxima > 0)
+               matrix.getFrame(f, framePoints);
+            addFrame(values, nMaxima > 0 ? framePoints : null);
+         }
+      }
+
+      // Write what is left, the index and the final header
+      public void close() throws IOException {
+         if (closed)
+            return;
+         closed = true;
+         try {
+            if (inChunk > 0)
+               flushChunk();
+            long indexOffset = channel.size();
+            index.flip();
+            writeFully(index, indexOffset);
+            ByteBuffer patch = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            patch.putInt(nFrames).flip();
+            writeFully(patch, 20);
+            patch = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            patch.putLong(indexOffset).flip();
+            writeFully(patch, 44);
+         } finally {
+            deflater.end();
+            raf.close();
+         }
+      }
+
+      private void flushChunk() throws IOException {
+         growIndex(8);
+         index.putInt(nFrames - inChunk);
+         index.putInt(inChunk);
+         for (int i = 0; i < nTargets; i++) {
+            ensureRaw(8*inChunk);
+            for (int f = 0; f < inChunk; f++)
+               raw.putDouble(traces[i][f]);
+            writeBlock(8);
+         }
+         if (nMaxima > 0) {
+            ensureRaw(matrix.position());
+            matrix.flip();
+            raw.put(matrix);
+            matrix.clear();
+            writeBlock(matrixBits/8);
+         }
+         inChunk = 0;
+      }
+
+      private void ensureRaw(int length) {
+         if (raw.capacity() < length) {
+            raw = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            shuffled = ByteBuffer.allocate(length);
+         }
+         raw.clear();
+      }
+
+      // Shuffle, deflate and append the contents of raw, noting it in the index
+      private void writeBlock(int valueBytes) throws IOException {
+         int length = raw.position();
+         shuffle(raw.array(), shuffled.array(), length, valueBytes);
+         deflater.reset();
+         deflater.setInput(shuffled.array(), 0, length);
+         deflater.finish();
+         if (packed.length < length + length/8 + 64)
+            packed = new byte[length + length/8 + 64];
+         int size = 0;
+         while (!deflater.finished()) {
+            if (size == packed.length)
+               packed = Arrays.copyOf(packed, 2*packed.length);
+            size += deflater.deflate(packed, size, packed.length - size);
+         }
+         long offset = channel.size();
+         writeFully(ByteBuffer.wrap(packed, 0, size), offset);
+         growIndex(12);
+         index.putLong(offset);
+         index.putInt(size);
+      }
+
+      private void growIndex(int bytes) {
+         if (index.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(2*index.capacity() + bytes).order(ByteOrder.LITTLE_ENDIAN);
+            index.flip();
+            larger.put(index);
+            index = larger;
+         }
+      }
+
+      private void writeFully(ByteBuffer buffer, long position) throws IOException {
+         while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+      }
+   }
+
+   // Reads traces and data matrix frames from a trace file
+   public static class Reader {
+      private final RandomAccessFile raf;
+      private final FileChannel channel;
+      private final int nTargets, nFrames, chunkFrames, nMaxima, matrixBits;
+      private final boolean shuffled;
+      private final Map<String, String> parameters = new LinkedHashMap<String, String>();
+      // For each chunk: first frame, frames, then offset and length of each block
+      private final int[] chunkFirst, chunkLength;
+      private final long[][] blockOffset;
+      private final int[][] blockLength;
+      private final Inflater inflater = new Inflater();
+      private byte[] packed = new byte[0], unpacked = new byte[0], values = new byte[0];
+      // The last matrix chunk inflated, so frames read in order inflate it once
+      private int matrixChunk = -1;
+      private ByteBuffer matrixValues;
+
+      public Reader(File file) throws IOException {
+         raf = new RandomAccessFile(file, "r");
+         channel = raf.getChannel();
+         ByteBuffer header = read(0, FIXED_HEADER);
+         byte[] magic = new byte[MAGIC.length];
+         header.get(magic);
+         if (!Arrays.equals(magic, MAGIC))
+            throw new IOException(file.getName() + " is not a trace file");
+         int version = header.getInt();
+         if (version > VERSION)
+            throw new IOException(file.getName() + " has a newer format (" + version + ")");
+         header.getInt();
+         nTargets = header.getInt();
+         nFrames = header.getInt();
+         chunkFrames = header.getInt();
+         header.getInt();
+         nMaxima = header.getInt();
+         matrixBits = header.getInt();
+         shuffled = (header.getInt() & SHUFFLED) != 0;
+         long indexOffset = header.getLong();
+         int paramLength = header.getInt();
+         if (indexOffset == 0)
+            throw new IOException(file.getName() + " was not closed properly");
+
+         ByteBuffer params = read(FIXED_HEADER, paramLength);
+         String text = new String(params.array(), 0, paramLength, UTF8);
+         for (String line : text.split("\n")) {
+            int eq = line.indexOf('=');
+            if (eq > 0)
+               parameters.put(line.substring(0, eq), line.substring(eq+1));
+         }
+
+         int nChunks = (nFrames + chunkFrames - 1)/chunkFrames;
+         int nBlocks = nTargets + (nMaxima > 0 ? 1 : 0);
+         ByteBuffer index = read(indexOffset, (int) (channel.size() - indexOffset));
+         chunkFirst = new int[nChunks];
+         chunkLength = new int[nChunks];
+         blockOffset = new long[nChunks][nBlocks];
+         blockLength = new int[nChunks][nBlocks];
+         for (int c = 0; c < nChunks; c++) {
+            chunkFirst[c] = index.getInt();
+            chunkLength[c] = index.getInt();
+            for (int b = 0; b < nBlocks; b++) {
+               blockOffset[c][b] = index.getLong();
+               blockLength[c][b] = index.getInt();
+            }
+         }
+      }
+
+      public int getTargets() {
+         return nTargets;
+      }
+
+      public int getFrames() {
+         return nFrames;
+      }
+
+      // Values of the data matrix per target and frame, 0 if there is none
+      public int getMaxima() {
+         return nMaxima;
+      }
+
+      public int getMatrixBits() {
+         return matrixBits;
+      }
+
+      // Settings of the run that wrote the file
+      public Map<String, String> getParameters() {
+         return parameters;
+      }
+
+      // The whole trace of target i
+      public double[] readTrace(int i) throws IOException {
+         return readTrace(i, 1, nFrames);
+      }
+
+      // The trace of target i over frames first..last (1-based, inclusive)
+      public double[] readTrace(int i, int first, int last) throws IOException {
+         checkRange(first, last);
+         double[] trace = new double[last-first+1];
+         for (int c = (first-1)/chunkFrames; c <= (last-1)/chunkFrames; c++) {
+            ByteBuffer block = inflate(c, i, 8);
+            int from = Math.max(first-1, chunkFirst[c]), to = Math.min(last, chunkFirst[c] + chunkLength[c]);
+            for (int f = from; f < to; f++)
+               trace[f-first+1] = block.getDouble(8*(f - chunkFirst[c]));
+         }
+         return trace;
+      }
+
+      // The traces of all targets over frames first..last, [target][frame]
+      public double[][] readTraces(int first, int last) throws IOException {
+         double[][] traces = new double[nTargets][];
+         for (int i = 0; i < nTargets; i++)
+            traces[i] = readTrace(i, first, last);
+         return traces;
+      }
+
+      // An array that holds the data matrix of one frame, as DataMatrixStore.newFrame()
+      public Object newFrame() {
+         int n = nTargets*nMaxima;
+         if (matrixBits == 8)
+            return new byte[n];
+         else if (matrixBits == 16)
+            return new short[n];
+         else
+            return new float[n];
+      }
+
+      // Read the data matrix of frame f (1-based) into an array made by newFrame()
+      public void readMatrix(int f, Object frame) throws IOException {
+         if (nMaxima == 0)
+            throw new IOException("The file has no data matrix");
+         checkRange(f, f);
+         int c = (f-1)/chunkFrames;
+         if (c != matrixChunk) {
+            ByteBuffer block = inflate(c, nTargets, matrixBits/8);
+            if (matrixValues == null || matrixValues.capacity() < block.limit())
+               matrixValues = ByteBuffer.allocate(block.limit()).order(ByteOrder.LITTLE_ENDIAN);
+            matrixValues.clear();
+            matrixValues.put(block);
+            matrixChunk = c;
+         }
+         int n = nTargets*nMaxima, frameBytes = n*(matrixBits/8);
+         ByteBuffer buffer = matrixValues.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+         buffer.position((f-1 - chunkFirst[c])*frameBytes);
+         if (matrixBits == 8)
+            buffer.get((byte[]) frame, 0, n);
+         else if (matrixBits == 16)
+            buffer.asShortBuffer().get((short[]) frame, 0, n);
+         else
+            buffer.asFloatBuffer().get((float[]) frame, 0, n);
+      }
+
+      public void close() throws IOException {
+         inflater.end();
+         raf.close();
+      }
+
+      private void checkRange(int first, int last) {
+         if (first < 1 || last > nFrames || first > last)
+            throw new IllegalArgumentException("Frames " + first + "-" + last + " are not in the file");
+      }
+
+      // Inflate and unshuffle block b of chunk c, whose values have valueBytes bytes
+      private ByteBuffer inflate(int c, int b, int valueBytes) throws IOException {
+         int size = blockLength[c][b];
+         int length = chunkLength[c]*(b < nTargets ? 8 : nTargets*nMaxima*valueBytes);
+         if (packed.length < size)
+            packed = new byte[size];
+         if (unpacked.length < length) {
+            unpacked = new byte[length];
+            values = new byte[length];
+         }
+         ByteBuffer in = ByteBuffer.wrap(packed, 0, size);
+         long position = blockOffset[c][b];
+         while (in.hasRemaining()) {
+            int n = channel.read(in, position);
+            if (n < 0)
+               throw new EOFException("Trace file ends in the middle of a block");
+            position += n;
+         }
+         inflater.reset();
+         inflater.setInput(packed, 0, size);
+         try {
+            int n = 0;
+            while (n < length && !inflater.finished())
+               n += inflater.inflate(unpacked, n, length - n);
+            if (n != length)
+               throw new IOException("Trace file block is too short");
+         } catch (DataFormatException e) {
+            throw new IOException("Trace file block is corrupt", e);
+         }
+         if (shuffled)
+            unshuffle(unpacked, values, length, valueBytes);
+         else
+            System.arraycopy(unpacked, 0, values, 0, length);
+         ByteBuffer block = ByteBuffer.wrap(values, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+         return block.slice().order(ByteOrder.LITTLE_ENDIAN);
+      }
+
+      private ByteBuffer read(long position, int length) throws IOException {
+         ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+         while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0)
+               throw new EOFException("Trace file is truncated");
+            position += n;
+         }
+         buffer.flip();
+         return buffer;
+      }
+   }
+
+   // Group byte k of every value together, which deflates much better for
+   // numbers that change slowly
+   private static void shuffle(byte[] in, byte[] out, int length, int valueBytes) {
+      int n = length/valueBytes;
+      for (int k = 0; k < valueBytes; k++)
+         for (int v = 0; v < n; v++)
+            out[k*n + v] = in[v*valueBytes + k];
+   }
+
+   private static void unshuffle(byte[] in, byte[] out, int length, int valueBytes) {
+      int n = length/valueBytes;
+      for (int k = 0; k < valueBytes; k++)
+         for (int v = 0; v < n; v++)
+            out[v*valueBytes + k] = in[k*n + v];
+   }
+}
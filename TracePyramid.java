@@ -0,0 +1,197 @@
+import java.util.*;
+
+/**
+* Traces together with a min/max pyramid of each of them, so the range of a trace
+* over any span of frames can be found by looking at a handful of values instead
+* of every frame. Level k of the pyramid holds the minimum and maximum of bins of
+* FACTOR^k frames. Frames can be appended one at a time (e.g. during live
+* acquisition); the pyramid is updated as they come in.
+*/
+
+public class TracePyramid {
+
+   // Frames per bin of the first level, and bins per bin of every following level
+   private static final int FACTOR = 4;
+
+   private final int nTraces;
+   private int nFrames;
+   // Raw values, [trace][frame]
+   private double[][] traces;
+   // Bins of each level, [level-1][trace][bin]
+   private final ArrayList<double[][]> mins = new ArrayList<double[][]>();
+   private final ArrayList<double[][]> maxs = new ArrayList<double[][]>();
+   // Range of each whole trace
+   private final double[] min, max;
+
+   // An empty pyramid that frames will be appended to
+   public TracePyramid(int nTraces) {
+      this.nTraces = nTraces;
+      traces = new double[nTraces][1024];
+      min = new double[nTraces];
+      max = new double[nTraces];
+      Arrays.fill(min, Double.POSITIVE_INFINITY);
+      Arrays.fill(max, Double.NEGATIVE_INFINITY);
+   }
+
+   // A pyramid of complete traces, [trace][frame]. The traces are not copied.
+   public TracePyramid(double[][] traces) {
+      this(traces.length);
+      this.traces = traces;
+      nFrames = traces.length > 0 ? traces[0].length : 0;
+
+      // Build each level from the one below, a trace at a time
+      for (int i = 0; i < nTraces; i++) {
+         for (int f = 0; f < nFrames; f++) {
+            if (traces[i][f] < min[i]) min[i] = traces[i][f];
+            if (traces[i][f] > max[i]) max[i] = traces[i][f];
+         }
+      }
+      double[][] belowMin = traces, belowMax = traces;
+      int below = nFrames;
+      while (below >= FACTOR) {
+         int bins = (below + FACTOR - 1)/FACTOR;
+         double[][] levelMin = new double[nTraces][bins], levelMax = new double[nTraces][bins];
+         for (int i = 0; i < nTraces; i++) {
+            for (int b = 0; b < bins; b++) {
+               int start = b*FACTOR, end = Math.min(start + FACTOR, below);
+               double lo = belowMin[i][start], hi = belowMax[i][start];
+               for (int k = start+1; k < end; k++) {
+                  if (belowMin[i][k] < lo) lo = belowMin[i][k];
+                  if (belowMax[i][k] > hi) hi = belowMax[i][k];
+               }
+               levelMin[i][b] = lo;
+               levelMax[i][b] = hi;
+            }
+         }
+         mins.add(levelMin);
+         maxs.add(levelMax);
+         belowMin = levelMin;
+         belowMax = levelMax;
+         below = bins;
+      }
+   }
+
+   public int getTraces() {
+      return nTraces;
+   }
+
+   public int getFrames() {
+      return nFrames;
+   }
+
+   // Value of trace i in frame f (0-based)
+   public double get(int i, int f) {
+      return traces[i][f];
+   }
+
+   // Smallest value of trace i over all frames
+   public double getMin(int i) {
+      return min[i];
+   }
+
+   // Largest value of trace i over all frames
+   public double getMax(int i) {
+      return max[i];
+   }
+
+   // Add one frame to the end of each trace
+   public void append(double[] values) {
+      if (nFrames == traces[0].length) {
+         for (int i = 0; i < nTraces; i++)
+            traces[i] = Arrays.copyOf(traces[i], nFrames*2);
+      }
+      for (int i = 0; i < nTraces; i++)
+         traces[i][nFrames] = values[i];
+      add(nFrames);
+      nFrames++;
+   }
+
+   // Copy of the traces, trimmed to the frames appended so far
+   public double[][] toArray() {
+      double[][] result = new double[nTraces][];
+      for (int i = 0; i < nTraces; i++)
+         result[i] = Arrays.copyOf(traces[i], nFrames);
+      return result;
+   }
+
+   // Minimum and maximum of trace i over frames first..last-1, stored in range[0]
+   // and range[1]. Walks up the pyramid, so only the partial bins at both ends
+   // of each level are looked at.
+   public void range(int i, int first, int last, double[] range) {
+      double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+      int level = 0;
+      while (first < last) {
+         double[] levelMin = level == 0 ? traces[i] : mins.get(level-1)[i];
+         double[] levelMax = level == 0 ? traces[i] : maxs.get(level-1)[i];
+
+         // At the top, or too few bins left to go up a level
+         boolean top = level == mins.size();
+         while (first < last && (top || first % FACTOR != 0)) {
+            lo = Math.min(lo, levelMin[first]);
+            hi = Math.max(hi, levelMax[first]);
+            first++;
+         }
+         while (first < last && last % FACTOR != 0) {
+            last--;
+            lo = Math.min(lo, levelMin[last]);
+            hi = Math.max(hi, levelMax[last]);
+         }
+         first /= FACTOR;
+         last /= FACTOR;
+         level++;
+      }
+      range[0] = lo;
+      range[1] = hi;
+   }
+
+   // Fold frame f into the range of each trace and into every level of the pyramid
+   private void add(int f) {
+      for (int i = 0; i < nTraces; i++) {
+         double value = traces[i][f];
+         if (value < min[i]) min[i] = value;
+         if (value > max[i]) max[i] = value;
+      }
+
+      // A level exists once there are enough frames for its first bin
+      long size = FACTOR;
+      for (int level = 0; size <= f+1; level++, size *= FACTOR) {
+         if (level == mins.size())
+            addLevel(f);
+         int bin = (int) (f/size);
+         if (bin == mins.get(level)[0].length)
+            growLevel(level);
+         double[][] levelMin = mins.get(level), levelMax = maxs.get(level);
+         boolean first = f % size == 0;
+         for (int i = 0; i < nTraces; i++) {
+            double value = traces[i][f];
+            if (first || value < levelMin[i][bin]) levelMin[i][bin] = value;
+            if (first || value > levelMax[i][bin]) levelMax[i][bin] = value;
+         }
+      }
+   }
+
+   // Add a level above the current top, with its first bin covering frames 0..f-1
+   private void addLevel(int f) {
+      double[][] levelMin = new double[nTraces][64];
+      double[][] levelMax = new double[nTraces][64];
+      for (int i = 0; i < nTraces; i++) {
+         double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+         for (int g = 0; g < f; g++) {
+            lo = Math.min(lo, traces[i][g]);
+            hi = Math.max(hi, traces[i][g]);
+         }
+         levelMin[i][0] = lo;
+         levelMax[i][0] = hi;
+      }
+      mins.add(levelMin);
+      maxs.add(levelMax);
+   }
+
+   private void growLevel(int level) {
+      double[][] levelMin = mins.get(level), levelMax = maxs.get(level);
+      for (int i = 0; i < nTraces; i++) {
+         levelMin[i] = Arrays.copyOf(levelMin[i], levelMin[i].length*2);
+         levelMax[i] = Arrays.copyOf(levelMax[i], levelMax[i].length*2);
+      }
+   }
+}
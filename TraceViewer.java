@@ -0,0 +1,261 @@
+import java.awt.*;
+import java.awt.event.*;
+import ij.*;
+import ij.gui.*;
+import ij.process.*;
+
+/**
+* Draws traces stacked above each other, each normalized to its own range, with
+* about one column of the image per screen pixel. When more frames are shown
+* than there are columns, each column is drawn as a vertical line from the
+* smallest to the largest value of its frames, read from a TracePyramid, so the
+* cost of a redraw depends on the size of the window and not on the length of
+* the recording, and no spike is lost between columns.
+*
+* As a raster, e.g. of the events found by EventDetector, each trace is drawn
+* as a tick across its row wherever it is above 0, and a column gets a tick if
+* any of its frames has one.
+*
+* The window has buttons to zoom in on the frames of a rectangular selection,
+* zoom out and show all frames. During live acquisition it can instead follow
+* the most recent frames.
+*/
+
+public class TraceViewer {
+
+   // Default width of the plotting area (pixels)
+   public static final int WIDTH = 1000;
+
+   // Margins around the plotting area, room for the labels (pixels)
+   private static final int LEFT = 80, RIGHT = 10, TOP = 10, BOTTOM = 30;
+
+   private final TracePyramid traces;
+   private final int nScale, plotWidth;
+   // Frames shown, 0-based, last exclusive
+   private int first, last;
+   // Show all frames, or the most recent follow frames (0: a fixed range)
+   private boolean showAll = true, raster;
+   private int follow;
+   private ImagePlus imp;
+   private final double[] range = new double[2];
+
+   // nScale: height of each trace (pixels); plotWidth: width of the plotting area
+   public TraceViewer(TracePyramid traces, int nScale, int plotWidth) {
+      this.traces = traces;
+      this.nScale = Math.max(2, nScale);
+      this.plotWidth = Math.max(16, plotWidth);
+      last = traces.getFrames();
+   }
+
+   public TraceViewer(TracePyramid traces, int nScale) {
+      this(traces, nScale, WIDTH);
+   }
+
+   // Show frames first..last-1 (0-based)
+   public void setRange(int first, int last) {
+      int n = traces.getFrames();
+      this.last = Math.max(1, Math.min(last, n));
+      this.first = Math.max(0, Math.min(first, this.last-1));
+      showAll = false;
+      follow = 0;
+   }
+
+   // Show all frames, including the ones appended later
+   public void setShowAll() {
+      showAll = true;
+      follow = 0;
+   }
+
+   // Keep the most recent frames in view as frames are appended
+   public void setFollow(int frames) {
+      follow = Math.max(2, frames);
+      showAll = false;
+   }
+
+   // Draw ticks where the traces are above 0 instead of the traces
+   public void setRaster(boolean raster) {
+      this.raster = raster;
+   }
+
+   // Draw the traces into a new image
+   public ImageProcessor render() {
+      int n = traces.getFrames();
+      if (showAll) {
+         first = 0;
+         last = n;
+      } else if (follow > 0) {
+         last = n;
+         first = Math.max(0, n - follow);
+      }
+      int nTraces = traces.getTraces();
+      ImageProcessor ip = new ByteProcessor(LEFT + plotWidth + RIGHT, TOP + nTraces*nScale + BOTTOM);
+      ip.setColor(Color.white);
+      ip.fill();
+      ip.setColor(Color.black);
+      ip.setFont(new Font("SansSerif", Font.PLAIN, 12));
+      ip.setAntialiasedText(true);
+
+      int span = last - first;
+      if (span > 0) {
+         for (int i = 0; i < nTraces; i++) {
+            // Trace 0 is at the bottom
+            int bottom = TOP + (nTraces-i)*nScale - 1;
+            double min = traces.getMin(i), max = traces.getMax(i);
+            double scale = max > min ? (nScale-1)/(max-min) : 0;
+            if (raster)
+               drawTicks(ip, i, span, bottom);
+            else if (span <= plotWidth)
+               drawLines(ip, i, span, bottom, min, scale);
+            else
+               drawColumns(ip, i, span, bottom, min, scale);
+            if (nScale >= 14)
+               ip.drawString("Neuron " + i, 4, bottom - nScale/2 + 6);
+         }
+      }
+
+      // Frame axis
+      int axis = TOP + nTraces*nScale + 2;
+      ip.drawLine(LEFT, axis, LEFT + plotWidth - 1, axis);
+      ip.drawString(Integer.toString(first+1), LEFT, axis + 16);
+      String end = Integer.toString(last);
+      ip.drawString(end, LEFT + plotWidth - ip.getStringWidth(end), axis + 16);
+      String title = "Time (Frames)";
+      ip.drawString(title, LEFT + (plotWidth - ip.getStringWidth(title))/2, axis + 16);
+      return ip;
+   }
+
+   // Show the traces in a window with zoom buttons
+   public void show(String title) {
+      imp = new ImagePlus(title, render());
+      new Window(imp);
+   }
+
+   // Redraw after frames were appended or the range changed
+   public void refresh() {
+      if (imp == null)
+         return;
+      imp.setProcessor(render());
+      ImageWindow win = imp.getWindow();
+      if (win instanceof Window)
+         ((Window) win).updateLabel();
+   }
+
+   // True once the window has been shown and closed again
+   public boolean isClosed() {
+      return imp != null && (imp.getWindow() == null || imp.getWindow().isClosed());
+   }
+
+   // Fewer frames than columns: connect the values of consecutive frames
+   private void drawLines(ImageProcessor ip, int i, int span, int bottom, double min, double scale) {
+      int px = 0, py = 0;
+      for (int f = first; f < last; f++) {
+         int x = LEFT + (int) ((f - first + 0.5)*plotWidth/span);
+         int y = bottom - (int) Math.round((traces.get(i, f)-min)*scale);
+         if (f == first)
+            ip.drawDot(x, y);
+         else
+            ip.drawLine(px, py, x, y);
+         px = x;
+         py = y;
+      }
+   }
+
+   // More frames than columns: one vertical line per column spanning the range of
+   // its frames, extended to meet the previous column so the trace stays connected
+   private void drawColumns(ImageProcessor ip, int i, int span, int bottom, double min, double scale) {
+      double prevLo = 0, prevHi = 0;
+      for (int x = 0; x < plotWidth; x++) {
+         int f0 = first + (int) ((long) x*span/plotWidth);
+         int f1 = first + (int) ((long) (x+1)*span/plotWidth);
+         traces.range(i, f0, f1, range);
+         double lo = range[0], hi = range[1];
+         if (x > 0) {
+            lo = Math.min(lo, prevHi);
+            hi = Math.max(hi, prevLo);
+         }
+         int y0 = bottom - (int) Math.round((lo-min)*scale);
+         int y1 = bottom - (int) Math.round((hi-min)*scale);
+         ip.drawLine(LEFT + x, y0, LEFT + x, y1);
+         prevLo = range[0];
+         prevHi = range[1];
+      }
+   }
+
+   // A tick at each frame, or column, where the trace is above 0
+   private void drawTicks(ImageProcessor ip, int i, int span, int bottom) {
+      int top = bottom - Math.max(1, nScale-3);
+      if (span <= plotWidth) {
+         for (int f = first; f < last; f++) {
+            if (traces.get(i, f) > 0) {
+               int x = LEFT + (int) ((f - first + 0.5)*plotWidth/span);
+               ip.drawLine(x, bottom, x, top);
+            }
+         }
+         return;
+      }
+      for (int x = 0; x < plotWidth; x++) {
+         int f0 = first + (int) ((long) x*span/plotWidth);
+         int f1 = first + (int) ((long) (x+1)*span/plotWidth);
+         traces.range(i, f0, f1, range);
+         if (range[1] > 0)
+            ip.drawLine(LEFT + x, bottom, LEFT + x, top);
+      }
+   }
+
+   // Frame shown at column x of the image
+   private int frameAt(int x) {
+      int column = Math.max(0, Math.min(x - LEFT, plotWidth));
+      return first + (int) ((long) column*(last - first)/plotWidth);
+   }
+
+   // Image window with the zoom buttons below the traces
+   private class Window extends ImageWindow implements ActionListener {
+      private static final long serialVersionUID = 1L;
+      private final Button zoomIn, zoomOut, all;
+      private final Label label;
+
+      Window(ImagePlus imp) {
+         super(imp);
+         Panel buttons = new Panel(new FlowLayout(FlowLayout.RIGHT));
+         zoomIn = new Button("Zoom to Selection");
+         zoomOut = new Button("Zoom Out");
+         all = new Button("Show All");
+         label = new Label("", Label.LEFT);
+         for (Button button : new Button[] {zoomIn, zoomOut, all}) {
+            button.addActionListener(this);
+            buttons.add(button);
+         }
+         buttons.add(label);
+         add(buttons);
+         updateLabel();
+         pack();
+      }
+
+      void updateLabel() {
+         label.setText("Frames " + (first+1) + "-" + last + " of " + traces.getFrames());
+         label.invalidate();
+         validate();
+      }
+
+      public void actionPerformed(ActionEvent e) {
+         Object source = e.getSource();
+         if (source == zoomIn) {
+            Roi roi = imp.getRoi();
+            if (roi == null || !roi.isArea()) {
+               IJ.error("Select the frames to zoom in on with a rectangle first!");
+               return;
+            }
+            Rectangle bounds = roi.getBounds();
+            int f0 = frameAt(bounds.x), f1 = frameAt(bounds.x + bounds.width);
+            imp.deleteRoi();
+            setRange(f0, Math.max(f1, f0+2));
+         } else if (source == zoomOut) {
+            int span = last - first, center = (first + last)/2;
+            setRange(center - span, center + span);
+         } else if (source == all) {
+            setShowAll();
+         }
+         refresh();
+      }
+   }
+}
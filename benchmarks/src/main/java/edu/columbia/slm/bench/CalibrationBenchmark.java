@@ -0,0 +1,92 @@
+package edu.columbia.slm.bench;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+import ij.process.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Throughput of the CalibrationFit that calibrate_slm_ makes from a pair of
+* matching points, and of the least-squares fit to a grid of them, and of the
+* automatic calibration of SpotCalibrator from the camera image of a projected
+* dot grid (spot detection, matching and fit).
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CalibrationBenchmark {
+
+   private final double[] calPairX = {40, 180}, calPairY = {52, 171};
+   private final double[] camPairX = {210, 25}, camPairY = {60, 210};
+   private Constructor<?> fit;
+   private double[] camX, camY, calX, calY;
+   private Object calibrator;
+   private Method automatic;
+   private ImageProcessor camera, grid;
+
+   @Setup
+   public void setup() throws Exception {
+      fit = Plugins.type("CalibrationFit").getConstructor(double[].class, double[].class,
+                                                          double[].class, double[].class, int.class);
+      // A 5 x 5 grid, rotated and sheared
+      camX = new double[25];
+      camY = new double[25];
+      calX = new double[25];
+      calY = new double[25];
+      for (int i = 0; i < 25; i++) {
+         camX[i] = 28 + 50*(i % 5);
+         camY[i] = 28 + 50*(i / 5);
+         calX[i] = 0.79*camX[i] - 0.08*camY[i] + 20;
+         calY[i] = 0.08*camX[i] + 0.72*camY[i] - 5;
+      }
+
+      // The grid as a 256 x 256 camera would see it, blurred spots on noise,
+      // through the inverse of the map above
+      grid = (ImageProcessor) Plugins.method("SpotCalibrator", "makeGrid", int.class, int.class)
+                                     .invoke(null, 213, 16);
+      float[] pixels = new float[256*256];
+      java.util.Random random = new java.util.Random(5);
+      for (int k = 0; k < pixels.length; k++)
+         pixels[k] = (float) (10 + 3*random.nextGaussian());
+      double det = 0.79*0.72 + 0.08*0.08;
+      for (int y = 0; y < 213; y++) {
+         for (int x = 0; x < 213; x++) {
+            if (grid.get(x, y) == 0)
+               continue;
+            double px = x - 20, py = y + 5;
+            double cx = (0.72*px + 0.08*py)/det, cy = (-0.08*px + 0.79*py)/det;
+            for (int v = (int) cy - 4; v <= (int) cy + 4; v++)
+               for (int u = (int) cx - 4; u <= (int) cx + 4; u++)
+                  if (u >= 0 && v >= 0 && u < 256 && v < 256)
+                     pixels[v*256 + u] += (float) (200*Math.exp(-((u-cx)*(u-cx) + (v-cy)*(v-cy))/3.4));
+         }
+      }
+      camera = new FloatProcessor(256, 256, pixels);
+      calibrator = Plugins.construct("SpotCalibrator", new Class<?>[] {double.class, int.class}, 50.0, 4);
+      automatic = Plugins.method("SpotCalibrator", "calibrate",
+                                 ImageProcessor.class, ImageProcessor.class, int.class);
+   }
+
+   // Scale and offset from two points. The fit takes about as long as the
+   // reflective call, so this is an upper bound on its cost.
+   @Benchmark
+   public Object calibrate() throws Exception {
+      return fit.newInstance(camPairX, camPairY, calPairX, calPairY, 1);
+   }
+
+   // Affine least-squares fit to 25 points
+   @Benchmark
+   public Object fitAffine() throws Exception {
+      return fit.newInstance(camX, camY, calX, calY, 1);
+   }
+
+   // Automatic calibration from the dot grid, about 140 spots
+   @Benchmark
+   public Object automatic() throws Exception {
+      return automatic.invoke(calibrator, camera, grid, 1);
+   }
+}
@@ -0,0 +1,76 @@
+package edu.columbia.slm.bench;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Latency of the ClosedLoop step that live extraction runs on every frame:
+* selecting the most active targets, drawing their mask from the mapped pixels
+* and writing it to the memory-mapped file of a FileSink. Reported times are
+* microseconds per frame; "-prof gc" should show no allocation.
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClosedLoopBenchmark {
+
+   @Param({"100", "1000"})
+   public int targets;
+
+   @Param({"10"})
+   public int stimulated;
+
+   private Object loop;
+   private Method startFrame, process;
+   private double[][] activity;
+   private int next;
+   private File file;
+
+   @Setup
+   public void setup() throws Exception {
+      int[][] points = Plugins.targets(256, targets, 3);
+      Object generator = Plugins.construct("MaskGenerator", new Class<?>[0]);
+      Object sequence = Plugins.construct("MaskSequence",
+                                          new Class<?>[] {Plugins.type("MaskGenerator"), int.class,
+                                                          int[].class, int[].class},
+                                          generator, 1, points[0], points[1]);
+      int size = (Integer) Plugins.method("MaskSequence", "getSize").invoke(sequence);
+      Object rule = Plugins.method("ClosedLoop", "strongest", int.class).invoke(null, stimulated);
+      file = File.createTempFile("closed-loop", ".slm");
+      Object sink = Plugins.construct("MaskSink$FileSink", new Class<?>[] {File.class, int.class},
+                                      file, size);
+      loop = Plugins.construct("ClosedLoop",
+                               new Class<?>[] {Plugins.type("MaskSequence"), Plugins.type("ClosedLoop$Rule"),
+                                               Plugins.type("MaskSink")},
+                               sequence, rule, sink);
+      startFrame = Plugins.method("ClosedLoop", "startFrame");
+      process = Plugins.method("ClosedLoop", "process", double[].class);
+      // A few frames of random activity to cycle through
+      Random random = new Random(3);
+      activity = new double[64][targets];
+      for (double[] frame : activity)
+         for (int i = 0; i < targets; i++)
+            frame[i] = random.nextGaussian();
+   }
+
+   @TearDown
+   public void tearDown() throws Exception {
+      Plugins.method("ClosedLoop", "close").invoke(loop);
+      file.delete();
+   }
+
+   // Select, draw and send one mask
+   @Benchmark
+   public Object process() throws Exception {
+      startFrame.invoke(loop);
+      process.invoke(loop, activity[next++ & 63]);
+      return loop;
+   }
+}
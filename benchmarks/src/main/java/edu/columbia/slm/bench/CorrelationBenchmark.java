@@ -0,0 +1,85 @@
+package edu.columbia.slm.bench;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Cost of the correlation matrix of all traces with CorrelationMatrix, from
+* complete traces and frame by frame as in live acquisition, and of ordering
+* it by hierarchical clustering.
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CorrelationBenchmark {
+
+   @Param({"200", "1000"})
+   public int targets;
+
+   @Param({"10000"})
+   public int frames;
+
+   @Param({"1", "4"})
+   public int threads;
+
+   private double[][] traces, correlations;
+   private Method compute, clusterOrder, addFrame, getCorrelations, setThreads, close;
+   private Constructor<?> matrix;
+
+   @Setup
+   public void setup() throws Exception {
+      // Groups of cells sharing a common signal, on a large baseline
+      Random random = new Random(1);
+      double[][] signals = new double[10][frames];
+      for (double[] signal : signals)
+         for (int f = 0; f < frames; f++)
+            signal[f] = random.nextGaussian();
+      traces = new double[targets][frames];
+      for (int i = 0; i < targets; i++) {
+         double[] signal = signals[random.nextInt(signals.length)];
+         for (int f = 0; f < frames; f++)
+            traces[i][f] = 1000 + 50*signal[f] + 40*random.nextGaussian();
+      }
+      compute = Plugins.method("CorrelationMatrix", "compute", double[][].class, int.class);
+      clusterOrder = Plugins.method("CorrelationMatrix", "clusterOrder", double[][].class);
+      matrix = Plugins.type("CorrelationMatrix").getConstructor(int.class);
+      setThreads = Plugins.method("CorrelationMatrix", "setThreads", int.class);
+      addFrame = Plugins.method("CorrelationMatrix", "addFrame", double[].class);
+      getCorrelations = Plugins.method("CorrelationMatrix", "getCorrelations");
+      close = Plugins.method("CorrelationMatrix", "close");
+      correlations = (double[][]) compute.invoke(null, traces, threads);
+   }
+
+   @Benchmark
+   public Object complete() throws Exception {
+      return compute.invoke(null, traces, threads);
+   }
+
+   @Benchmark
+   public Object incremental() throws Exception {
+      Object correlation = matrix.newInstance(targets);
+      setThreads.invoke(correlation, threads);
+      double[] values = new double[targets];
+      try {
+         for (int f = 0; f < frames; f++) {
+            for (int i = 0; i < targets; i++)
+               values[i] = traces[i][f];
+            addFrame.invoke(correlation, values);
+         }
+         return getCorrelations.invoke(correlation);
+      } finally {
+         close.invoke(correlation);
+      }
+   }
+
+   @Benchmark
+   public Object cluster() throws Exception {
+      return clusterOrder.invoke(null, (Object) correlations);
+   }
+}
@@ -0,0 +1,47 @@
+package edu.columbia.slm.bench;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import ij.*;
+import ij.process.*;
+
+/**
+* Time MaximaDetector takes to find the targets in one image, as when the
+* threshold is tuned in choose_targets_ or find_targets_.
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DetectionBenchmark {
+
+   @Param({"16", "32"})
+   public int bitDepth;
+
+   @Param({"512", "2048"})
+   public int size;
+
+   @Param({"1", "4"})
+   public int threads;
+
+   private ImageProcessor image;
+   private Object detector;
+   private Method detect;
+
+   @Setup
+   public void setup() throws Exception {
+      image = Plugins.stack(bitDepth, size, 1, 1).getProcessor(1);
+      detector = Plugins.construct("MaximaDetector", new Class<?>[] {double.class, int.class}, 100.0, 4);
+      Plugins.method("MaximaDetector", "setThreads", int.class).invoke(detector, threads);
+      detect = Plugins.method("MaximaDetector", "detect", ImageProcessor.class);
+   }
+
+   @Benchmark
+   public Object detect() throws Exception {
+      return detect.invoke(detector, image);
+   }
+}
@@ -0,0 +1,76 @@
+package edu.columbia.slm.bench;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Cost of inferring events with EventDetector: complete traces split among
+* threads, and frames added one at a time as in live acquisition. Both should
+* grow linearly with the number of frames.
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventBenchmark {
+
+   @Param({"10000", "100000"})
+   public int frames;
+
+   @Param({"100"})
+   public int targets;
+
+   @Param({"1", "4"})
+   public int threads;
+
+   private double[][] traces;
+   private Method detect, addFrame, flush;
+   private Constructor<?> detector;
+
+   @Setup
+   public void setup() throws Exception {
+      // Decaying transients at random times on a noisy baseline
+      Random random = new Random(1);
+      double g = Math.exp(-1/10.0);
+      traces = new double[targets][frames];
+      for (double[] trace : traces) {
+         double c = 0;
+         for (int f = 0; f < frames; f++) {
+            c = g*c + (random.nextDouble() < 0.01 ? 1 : 0);
+            trace[f] = 1000 + 200*c + random.nextGaussian()*20;
+         }
+      }
+      detect = Plugins.method("EventDetector", "detect", double[][].class, double.class,
+                              double.class, int.class, double.class, int.class);
+      detector = Plugins.type("EventDetector").getConstructor(int.class, double.class,
+                                                              double.class, int.class, double.class);
+      addFrame = Plugins.method("EventDetector", "addFrame", double[].class, double[].class);
+      flush = Plugins.method("EventDetector", "flush", double[].class);
+   }
+
+   @Benchmark
+   public Object complete() throws Exception {
+      return detect.invoke(null, traces, 10.0, 3.0, 1000, 10.0, threads);
+   }
+
+   @Benchmark
+   public Object live() throws Exception {
+      Object events = detector.newInstance(targets, 10.0, 3.0, 1000, 10.0);
+      double[] values = new double[targets], found = new double[targets];
+      double sum = 0;
+      for (int f = 0; f < frames; f++) {
+         for (int i = 0; i < targets; i++)
+            values[i] = traces[i][f];
+         if ((Boolean) addFrame.invoke(events, values, found))
+            sum += found[0];
+      }
+      while ((Boolean) flush.invoke(events, found))
+         sum += found[0];
+      return sum;
+   }
+}
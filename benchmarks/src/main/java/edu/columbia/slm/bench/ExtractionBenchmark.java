@@ -0,0 +1,119 @@
+package edu.columbia.slm.bench;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+import ij.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Throughput of the compress_stack_ extraction loop over synthetic stacks. Each
+* invocation extracts FRAMES frames, so the reported ops/s are frames/s. Run
+* with "-prof gc" to see the allocation rate per frame.
+*
+* The parameters below are a representative subset that runs in a few minutes.
+* The full sweep (about 1.7 h) is picked on the command line:
+*
+*   java -jar target/benchmarks.jar Extraction -p bitDepth=8,16,32 -p size=256,1024
+*        -p targets=50,500 -p radius=2,6 -p maxima=9,25 -p sorted=false,true
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtractionBenchmark {
+
+   public static final int FRAMES = 64;
+
+   @Param({"16"})
+   public int bitDepth;
+
+   @Param({"512"})
+   public int size;
+
+   @Param({"50", "500"})
+   public int targets;
+
+   @Param({"4"})
+   public int radius;
+
+   @Param({"9"})
+   public int maxima;
+
+   @Param({"false", "true"})
+   public boolean sorted;
+
+   @Param({"1"})
+   public int threads;
+
+   private ImageStack stack;
+   private Object extractor, matrix, cached, pipeline;
+   private Method extract, extractCached, runPipeline;
+
+   @Setup
+   public void setup() throws Exception {
+      stack = Plugins.stack(bitDepth, size, FRAMES, 1);
+      int[][] points = Plugins.targets(size, targets, 2);
+
+      Class<?> reducerType = Plugins.type("RoiReducer");
+      Object reducer = Plugins.method("RoiReducer", "create", int.class, boolean.class, double.class)
+                              .invoke(null, 0, sorted, 50.0);
+      extractor = Plugins.construct("TraceExtractor",
+            new Class<?>[] {int[].class, int[].class, int.class, int.class, int.class, reducerType},
+            points[0], points[1], targets, radius, maxima, reducer);
+      Plugins.method("TraceExtractor", "setThreads", int.class).invoke(extractor, threads);
+
+      Class<?> matrixType = Plugins.type("DataMatrixStore");
+      matrix = Plugins.construct("DataMatrixStore", new Class<?>[] {int.class, int.class, int.class, int.class},
+                                 targets, maxima, FRAMES, bitDepth);
+      extract = Plugins.method("TraceExtractor", "extract", ImageStack.class, matrixType);
+
+      // The same boxes read once into the extraction cache, as for a re-run
+      Class<?> viewType = Plugins.type("ExtractionCache$View");
+      cached = Plugins.method("ExtractionCache", "load", ImageStack.class, int[].class, int[].class,
+                              int.class, int.class, int.class, int.class)
+                      .invoke(null, stack, points[0], points[1], targets, radius, radius, threads);
+      extractCached = Plugins.method("TraceExtractor", "extract", viewType, matrixType);
+
+      // Decode, extract and write stages joined by queues, as for streamed stacks
+      pipeline = Plugins.construct("ExtractionPipeline",
+            new Class<?>[] {Plugins.type("TraceExtractor"), int.class, int.class}, extractor, threads, 8);
+      runPipeline = Plugins.method("ExtractionPipeline", "run", ImageStack.class, matrixType);
+   }
+
+   @TearDown
+   public void tearDown() throws Exception {
+      Plugins.method("DataMatrixStore", "close").invoke(matrix);
+      Plugins.method("ExtractionCache", "clear").invoke(null);
+   }
+
+   // Traces only
+   @Benchmark
+   @OperationsPerInvocation(FRAMES)
+   public Object traces() throws Exception {
+      return extract.invoke(extractor, stack, null);
+   }
+
+   // Traces and the data matrix
+   @Benchmark
+   @OperationsPerInvocation(FRAMES)
+   public Object tracesAndMatrix() throws Exception {
+      return extract.invoke(extractor, stack, matrix);
+   }
+
+   // Traces from the extraction cache instead of the stack
+   @Benchmark
+   @OperationsPerInvocation(FRAMES)
+   public Object cachedTraces() throws Exception {
+      return extractCached.invoke(extractor, cached, null);
+   }
+
+   // Traces and the data matrix through an ExtractionPipeline
+   @Benchmark
+   @OperationsPerInvocation(FRAMES)
+   public Object pipelined() throws Exception {
+      return runPipeline.invoke(pipeline, stack, matrix);
+   }
+}
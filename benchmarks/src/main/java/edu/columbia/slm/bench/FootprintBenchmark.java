@@ -0,0 +1,75 @@
+package edu.columbia.slm.bench;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+import ij.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Throughput of FootprintExtractor with disk footprints, with and without the
+* neuropil around them, for comparison with the box extraction of
+* ExtractionBenchmark. Each invocation extracts FRAMES frames, so the reported
+* ops/s are frames/s.
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FootprintBenchmark {
+
+   public static final int FRAMES = 64;
+
+   @Param({"16", "32"})
+   public int bitDepth;
+
+   @Param({"512"})
+   public int size;
+
+   @Param({"50", "500"})
+   public int targets;
+
+   @Param({"3", "6"})
+   public int radius;
+
+   @Param({"false", "true"})
+   public boolean neuropil;
+
+   @Param({"1"})
+   public int threads;
+
+   private ImageStack stack;
+   private Object extractor;
+   private Method extract;
+
+   @Setup
+   public void setup() throws Exception {
+      stack = Plugins.stack(bitDepth, size, FRAMES, 1);
+      int[][] points = Plugins.targets(size, targets, 2);
+
+      Object builder = Plugins.construct("FootprintMatrix$Builder", new Class<?>[] {int.class, int.class},
+                                         size, size);
+      Method addDisk = Plugins.method("FootprintMatrix$Builder", "addDisk",
+                                      double.class, double.class, double.class);
+      for (int i = 0; i < targets; i++)
+         addDisk.invoke(builder, (double) points[0][i], (double) points[1][i], (double) radius);
+      Object cells = Plugins.method("FootprintMatrix$Builder", "build", boolean.class).invoke(builder, true);
+      Object around = neuropil ? Plugins.method("FootprintMatrix$Builder", "buildNeuropil",
+                                                double.class, double.class, boolean.class)
+                                        .invoke(builder, (double) radius, 3.0*radius, true) : null;
+
+      Class<?> matrixType = Plugins.type("FootprintMatrix");
+      extractor = Plugins.construct("FootprintExtractor", new Class<?>[] {matrixType, matrixType},
+                                    cells, around);
+      Plugins.method("FootprintExtractor", "setThreads", int.class).invoke(extractor, threads);
+      extract = Plugins.method("FootprintExtractor", "extract", ImageStack.class);
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(FRAMES)
+   public Object traces() throws Exception {
+      return extract.invoke(extractor, stack);
+   }
+}
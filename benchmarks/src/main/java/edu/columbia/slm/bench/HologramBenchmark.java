@@ -0,0 +1,55 @@
+package edu.columbia.slm.bench;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Time to compute an SLM phase hologram with HologramGenerator: a fixed number
+* of weighted Gerchberg-Saxton iterations (no early stop) for 50 spots, on the
+* default pattern size and on a large SLM.
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HologramBenchmark {
+
+   @Param({"213", "512"})
+   public int size;
+
+   @Param({"1", "4"})
+   public int threads;
+
+   @Param({"20"})
+   public int iterations;
+
+   private Object hologram;
+   private Method compute;
+   private double[] xs, ys;
+
+   @Setup
+   public void setup() throws Exception {
+      Random random = new Random(3);
+      xs = new double[50];
+      ys = new double[50];
+      for (int s = 0; s < xs.length; s++) {
+         xs[s] = size/4 + random.nextInt(size/2);
+         ys[s] = size/4 + random.nextInt(size/2);
+      }
+      hologram = Plugins.construct("HologramGenerator", new Class<?>[] {int.class}, size);
+      Plugins.method("HologramGenerator", "setThreads", int.class).invoke(hologram, threads);
+      Plugins.method("HologramGenerator", "setIterations", int.class).invoke(hologram, iterations);
+      Plugins.method("HologramGenerator", "setTolerance", double.class).invoke(hologram, 0.0);
+      compute = Plugins.method("HologramGenerator", "compute", double[].class, double[].class, int.class);
+   }
+
+   @Benchmark
+   public Object compute() throws Exception {
+      return compute.invoke(hologram, xs, ys, xs.length);
+   }
+}
@@ -0,0 +1,76 @@
+package edu.columbia.slm.bench;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Throughput of MaskGenerator, which choose_targets_ uses to map targets from
+* camera to SLM coordinates and draw the mask, and of MaskSequence, which draws
+* masks for many groups of the same targets. Reported ops/s are masks/s.
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MaskBenchmark {
+
+   @Param({"1000", "10000"})
+   public int targets;
+
+   private Object generator, sequence;
+   private Method generateMask, createMask, render;
+   private int[][] points;
+   private int[] all;
+   private int next;
+   private byte[] mask;
+
+   @Setup
+   public void setup() throws Exception {
+      points = Plugins.targets(256, targets, 3);
+      generator = Plugins.construct("MaskGenerator", new Class<?>[0]);
+      generateMask = Plugins.method("MaskGenerator", "generateMask",
+                                    int.class, int[].class, int[].class);
+      createMask = Plugins.method("MaskGenerator", "createMask",
+                                  int.class, int[].class, int[].class);
+      sequence = Plugins.construct("MaskSequence",
+                                   new Class<?>[] {Plugins.type("MaskGenerator"), int.class,
+                                                   int[].class, int[].class},
+                                   generator, 1, points[0], points[1]);
+      render = Plugins.method("MaskSequence", "render", int[].class, byte[].class);
+      all = new int[targets];
+      for (int i = 0; i < targets; i++)
+         all[i] = i;
+      int size = (Integer) Plugins.method("MaskSequence", "getSize").invoke(sequence);
+      mask = new byte[size*size];
+   }
+
+   // Coordinate transform only
+   @Benchmark
+   public Object generateMask() throws Exception {
+      return generateMask.invoke(generator, 1, points[0], points[1]);
+   }
+
+   // Transform and draw the mask
+   @Benchmark
+   public Object createMask() throws Exception {
+      return createMask.invoke(generator, 1, points[0], points[1]);
+   }
+
+   // The same mask from the precomputed pixels, into a reused buffer
+   @Benchmark
+   public Object renderMask() throws Exception {
+      render.invoke(sequence, all, mask);
+      return mask;
+   }
+
+   // One mask per target, as for sequential stimulation
+   @Benchmark
+   public Object renderSingle() throws Exception {
+      render.invoke(sequence, new int[] {next++ % targets}, mask);
+      return mask;
+   }
+}
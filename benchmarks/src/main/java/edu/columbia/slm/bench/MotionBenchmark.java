@@ -0,0 +1,51 @@
+package edu.columbia.slm.bench;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import ij.*;
+import ij.process.*;
+
+/**
+* Throughput of the shift estimate MotionCorrector makes for every frame when
+* motion correction is on. Reported ops/s are frames/s for a single thread.
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MotionBenchmark {
+
+   @Param({"16", "32"})
+   public int bitDepth;
+
+   @Param({"256", "512"})
+   public int size;
+
+   private Object estimator;
+   private Method estimate;
+   private ImageProcessor frame;
+   private final int[] shift = new int[2];
+
+   @Setup
+   public void setup() throws Exception {
+      ImageStack stack = Plugins.stack(bitDepth, size, 2, 1);
+      frame = stack.getProcessor(2);
+      Object corrector = Plugins.construct("MotionCorrector",
+                                           new Class<?>[] {ImageProcessor.class, int.class},
+                                           stack.getProcessor(1), 10);
+      estimator = Plugins.method("MotionCorrector", "newEstimator").invoke(corrector);
+      estimate = estimator.getClass().getDeclaredMethod("estimate", Object.class,
+                                                         ImageProcessor.class, int[].class);
+      estimate.setAccessible(true);
+   }
+
+   @Benchmark
+   public int[] estimate() throws Exception {
+      estimate.invoke(estimator, frame.getPixels(), frame, shift);
+      return shift;
+   }
+}
@@ -0,0 +1,76 @@
+package edu.columbia.slm.bench;
+
+import java.lang.reflect.*;
+import java.util.*;
+import ij.*;
+import ij.process.*;
+
+/**
+* Access to the plugin classes, which live in the default package as ImageJ
+* expects. Java code can not refer to classes in the default package from a
+* named package (and JMH does not allow benchmarks in the default package), so
+* the benchmarks look them up by reflection once, during setup. Every call still
+* goes through Method.invoke or Constructor.newInstance, which costs tens of
+* nanoseconds, so the results of benchmarks that only do that much work include
+* it.
+*/
+
+public class Plugins {
+
+   // Load a plugin class by name
+   public static Class<?> type(String name) throws ClassNotFoundException {
+      return Class.forName(name);
+   }
+
+   // Create an instance of a plugin class
+   public static Object construct(String name, Class<?>[] types, Object... args) throws Exception {
+      Constructor<?> constructor = type(name).getDeclaredConstructor(types);
+      constructor.setAccessible(true);
+      return constructor.newInstance(args);
+   }
+
+   // Find a method, including private ones
+   public static Method method(String name, String method, Class<?>... types) throws Exception {
+      Method m = type(name).getDeclaredMethod(method, types);
+      m.setAccessible(true);
+      return m;
+   }
+
+   // A stack of random frames of the given bit depth (8, 16 or 32)
+   public static ImageStack stack(int bitDepth, int size, int nFrames, long seed) {
+      Random random = new Random(seed);
+      ImageStack stack = new ImageStack(size, size);
+      for (int f = 0; f < nFrames; f++) {
+         int n = size*size;
+         ImageProcessor ip;
+         if (bitDepth == 8) {
+            byte[] pixels = new byte[n];
+            random.nextBytes(pixels);
+            ip = new ByteProcessor(size, size, pixels, null);
+         } else if (bitDepth == 16) {
+            short[] pixels = new short[n];
+            for (int i = 0; i < n; i++)
+               pixels[i] = (short) random.nextInt(4096);
+            ip = new ShortProcessor(size, size, pixels, null);
+         } else {
+            float[] pixels = new float[n];
+            for (int i = 0; i < n; i++)
+               pixels[i] = random.nextFloat()*4096;
+            ip = new FloatProcessor(size, size, pixels, null);
+         }
+         stack.addSlice("Frame " + (f+1), ip);
+      }
+      return stack;
+   }
+
+   // Random target coordinates within a square image, [x, y][target]
+   public static int[][] targets(int size, int nTargets, long seed) {
+      Random random = new Random(seed);
+      int[][] points = new int[2][nTargets];
+      for (int i = 0; i < nTargets; i++) {
+         points[0][i] = random.nextInt(size);
+         points[1][i] = random.nextInt(size);
+      }
+      return points;
+   }
+}
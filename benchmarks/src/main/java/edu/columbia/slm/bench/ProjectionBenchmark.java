@@ -0,0 +1,49 @@
+package edu.columbia.slm.bench;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import ij.*;
+
+/**
+* Throughput of StackProjector, which computes the mean, max, std and local
+* correlation projections in one pass. Reported ops/s are frames/s.
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProjectionBenchmark {
+
+   private static final int FRAMES = 64;
+
+   @Param({"16"})
+   public int bitDepth;
+
+   @Param({"512"})
+   public int size;
+
+   @Param({"1", "4"})
+   public int threads;
+
+   private ImageStack stack;
+   private Object projector;
+   private Method project;
+
+   @Setup
+   public void setup() throws Exception {
+      stack = Plugins.stack(bitDepth, size, FRAMES, 1);
+      projector = Plugins.construct("StackProjector", new Class<?>[] {int.class, int.class}, size, size);
+      Plugins.method("StackProjector", "setThreads", int.class).invoke(projector, threads);
+      project = Plugins.method("StackProjector", "project", ImageStack.class);
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(FRAMES)
+   public Object project() throws Exception {
+      return project.invoke(projector, stack);
+   }
+}
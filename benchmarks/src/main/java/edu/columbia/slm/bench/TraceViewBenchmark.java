@@ -0,0 +1,66 @@
+package edu.columbia.slm.bench;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Cost of displaying long traces with TraceViewer: building the min/max pyramid
+* once after extraction, and redrawing all frames or a zoomed-in range. A redraw
+* should cost about the same however many frames there are.
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Djava.awt.headless=true"})
+public class TraceViewBenchmark {
+
+   @Param({"10000", "100000"})
+   public int frames;
+
+   @Param({"100"})
+   public int targets;
+
+   private double[][] traces;
+   private Constructor<?> pyramid;
+   private Object viewer;
+   private Method render, setRange, setShowAll;
+
+   @Setup
+   public void setup() throws Exception {
+      Random random = new Random(1);
+      traces = new double[targets][frames];
+      for (double[] trace : traces)
+         for (int f = 0; f < frames; f++)
+            trace[f] = 1000 + 100*Math.sin(f/500.0) + random.nextGaussian()*20;
+      pyramid = Plugins.type("TracePyramid").getConstructor(double[][].class);
+      Object traceData = pyramid.newInstance((Object) traces);
+      viewer = Plugins.construct("TraceViewer", new Class<?>[] {Plugins.type("TracePyramid"), int.class},
+                                 traceData, 20);
+      render = Plugins.method("TraceViewer", "render");
+      setRange = Plugins.method("TraceViewer", "setRange", int.class, int.class);
+      setShowAll = Plugins.method("TraceViewer", "setShowAll");
+   }
+
+   @Benchmark
+   public Object buildPyramid() throws Exception {
+      return pyramid.newInstance((Object) traces);
+   }
+
+   @Benchmark
+   public Object renderAll() throws Exception {
+      setShowAll.invoke(viewer);
+      return render.invoke(viewer);
+   }
+
+   // A tenth of the recording, still more frames than columns
+   @Benchmark
+   public Object renderZoomed() throws Exception {
+      setRange.invoke(viewer, frames/2, frames/2 + frames/10);
+      return render.invoke(viewer);
+   }
+}
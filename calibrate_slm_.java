@@ -9,7 +9,9 @@ import ij.*;
 import ij.io.*;
 import ij.gui.*;
 import ij.process.*;
+import ij.measure.*;
 import ij.plugin.PlugIn;
+import ij.util.Tools;
 import ij.plugin.filter.*;
 
 /** 
@@ -21,6 +23,15 @@ import ij.plugin.filter.*;
 * This means the first point in the camera image must correspond to the first point
 * in the calibration pattern.
 *
+* More than two pairs of points give a least-squares affine fit (or a quadratic
+* one, from six pairs), which also corrects rotation and shear; the distance of
+* each point from the fit is listed so bad picks can be redone.
+*
+* In automatic mode no points are picked: the calibration image is a dot grid
+* (made by this plugin when fewer than two images are open), the camera image
+* shows it projected through the SLM, and SpotCalibrator finds and matches the
+* dots to sub-pixel accuracy.
+*
 * @author Tim Machado, Columbia University
 * @date 5/14/2010
 */
@@ -32,6 +43,13 @@ public class calibrate_slm_ implements PlugIn {
    private ImagePlus[] admissibleImageList;
    private boolean flipVertical = true;
    private boolean flipHorizontal = false;
+   // Fit used for more than two points
+   private static final String[] FITS = {"Affine", "Quadratic"};
+   private int fitOrder = 1;
+   // Automatic calibration from a projected dot grid
+   private boolean automatic;
+   private int gridSpacing = 16, spotSeparation = 4;
+   private double spotThreshold = 20;
 
    // Size of output calibration image
    public static final int OUTPUT_SIZE = 213;
@@ -41,7 +59,7 @@ public class calibrate_slm_ implements PlugIn {
       // Get list of open images
       admissibleImageList = createAdmissibleImageList();
       if (admissibleImageList.length < 2) {
-        IJ.error("At least two grayscale or RGB-stack images are required");
+        makeDotGrid();
         return;
       }
       final GenericDialog gd = new GenericDialog("Calibrate SLM", IJ.getInstance());
@@ -52,8 +70,8 @@ public class calibrate_slm_ implements PlugIn {
       final Choice calibration = new Choice();
       final Choice camera = new Choice();
       final Panel panel = new Panel(new GridLayout(8,1));
-      final Label cameraMessage = new Label(nTargets + " (of 2) Targets Selected.");
-      final Label calibrationMessage = new Label(nTargets + " (of 2) Targets Selected.");
+      final Label cameraMessage = new Label(nTargets + " Targets Selected (2 or more).");
+      final Label calibrationMessage = new Label(nTargets + " Targets Selected (2 or more).");
 
 
       gd.add(panel);
@@ -67,6 +85,11 @@ public class calibrate_slm_ implements PlugIn {
       gd.addMessage("\n");
       gd.addCheckbox("Flip Vertical", flipVertical);
       gd.addCheckbox("Flip Horizontal", flipHorizontal);
+      gd.addChoice("Fit (3+ points):", FITS, FITS[fitOrder-1]);
+      gd.addMessage("\n");
+      gd.addCheckbox("Automatic (calibration image is a dot grid)", automatic);
+      gd.addNumericField("Spot Threshold:", spotThreshold, 1);
+      gd.addNumericField("Spot Separation (px):", spotSeparation, 0);
 
       String[] choices = new String[admissibleImageList.length];
       for(int i=0; i < choices.length; i++) {
@@ -85,7 +108,7 @@ public class calibrate_slm_ implements PlugIn {
                   // Update GUI
                   int tTargets = admissibleImageList[chosenCameraIndex].getRoi() != null ? 
                      admissibleImageList[chosenCameraIndex].getRoi().getPolygon().npoints : 0;
-                  cameraMessage.setText(tTargets + " (of 2) Targets Selected.");
+                  cameraMessage.setText(tTargets + " Targets Selected (2 or more).");
                 }
            }
       );
@@ -98,7 +121,7 @@ public class calibrate_slm_ implements PlugIn {
                   // Update GUI
                   int tTargets = admissibleImageList[chosenCalibrationIndex].getRoi() != null ? 
                      admissibleImageList[chosenCalibrationIndex].getRoi().getPolygon().npoints : 0;
-                  calibrationMessage.setText(tTargets + " (of 2) Targets Selected.");
+                  calibrationMessage.setText(tTargets + " Targets Selected (2 or more).");
                 }
            }
       );
@@ -110,68 +133,132 @@ public class calibrate_slm_ implements PlugIn {
       if (gd.wasCanceled())
          return;
 
-      // Check there are two targets in each image
-      int calTargets = admissibleImageList[chosenCalibrationIndex].getRoi() != null ? 
-                     admissibleImageList[chosenCalibrationIndex].getRoi().getPolygon().npoints : 0;
-      int camTargets = admissibleImageList[chosenCameraIndex].getRoi() != null ? 
-                     admissibleImageList[chosenCameraIndex].getRoi().getPolygon().npoints : 0;
-      if (calTargets != 2 && camTargets != 2) {
-         IJ.error("Exactly two targets must be selected in both the camera and calibration images");
-         return;
-      }
-
-      // Get target coordinates:
-      // [xCam1 yCam1 xCam2 yCam2]
-      double camPoints[] = {admissibleImageList[chosenCameraIndex].getRoi().getPolygon().xpoints[0],
-                            admissibleImageList[chosenCameraIndex].getRoi().getPolygon().ypoints[0],
-                            admissibleImageList[chosenCameraIndex].getRoi().getPolygon().xpoints[1],
-                            admissibleImageList[chosenCameraIndex].getRoi().getPolygon().ypoints[1]};
-      // [xCal1 yCal1 xCal2 yCal2]
-      double calPoints[] = {admissibleImageList[chosenCalibrationIndex].getRoi().getPolygon().xpoints[0],
-                            admissibleImageList[chosenCalibrationIndex].getRoi().getPolygon().ypoints[0],
-                            admissibleImageList[chosenCalibrationIndex].getRoi().getPolygon().xpoints[1],
-                            admissibleImageList[chosenCalibrationIndex].getRoi().getPolygon().ypoints[1]};
-
       // Get flipping preferences
-      Vector checkBoxes = gd.getCheckboxes();
+      Vector<?> checkBoxes = gd.getCheckboxes();
       Checkbox cb = (Checkbox) checkBoxes.elementAt(0);
       flipVertical = cb.getState();
       cb = (Checkbox) checkBoxes.elementAt(1);
       flipHorizontal = cb.getState();
+      fitOrder = ((Choice) gd.getChoices().elementAt(0)).getSelectedIndex() + 1;
+      cb = (Checkbox) checkBoxes.elementAt(2);
+      automatic = cb.getState();
+      // Entries that are not numbers keep the previous values
+      Vector<?> fields = gd.getNumericFields();
+      spotThreshold = Tools.parseDouble(((TextField) fields.elementAt(0)).getText(), spotThreshold);
+      spotSeparation = (int) Tools.parseDouble(((TextField) fields.elementAt(1)).getText(), spotSeparation);
 
-      // Do calibration, get array: [xScale yScale xOffset yOffset calibrationImageSize outputPatternSize]
-      double[] calibrationOutput = calibrate(calPoints,camPoints,
-                                  admissibleImageList[chosenCameraIndex].getWidth());
+      ImagePlus cameraImage = admissibleImageList[chosenCameraIndex];
+      ImagePlus calibrationImage = admissibleImageList[chosenCalibrationIndex];
+      double[] camX, camY, calX, calY;
+      CalibrationFit fit;
+      if (automatic) {
+         // Find the spots and match them to the dots of the grid
+         long start = System.nanoTime();
+         SpotCalibrator calibrator = new SpotCalibrator(spotThreshold, spotSeparation);
+         calibrator.setThreads(Prefs.getThreads());
+         fit = calibrator.calibrate(cameraImage.getProcessor(), calibrationImage.getProcessor(), fitOrder);
+         if (fit == null) {
+            IJ.error("Too few spots could be matched to the dot grid; check the threshold and separation");
+            return;
+         }
+         camX = calibrator.getCameraX();
+         camY = calibrator.getCameraY();
+         calX = calibrator.getPatternX();
+         calY = calibrator.getPatternY();
+         cameraImage.setRoi(new PointRoi(toFloat(camX), toFloat(camY), camX.length));
+         calibrationImage.setRoi(new PointRoi(toFloat(calX), toFloat(calY), calX.length));
+         IJ.log("Calibrate SLM: " + camX.length + " spots matched in "
+                + IJ.d2s((System.nanoTime() - start)/1e6, 0) + " ms");
+      } else {
+         // Check there are two targets in each image
+         int calTargets = calibrationImage.getRoi() != null ?
+                          calibrationImage.getRoi().getPolygon().npoints : 0;
+         int camTargets = cameraImage.getRoi() != null ?
+                          cameraImage.getRoi().getPolygon().npoints : 0;
+         if (calTargets < 2 || calTargets != camTargets) {
+            IJ.error("The same number of targets (at least two) must be selected in both the camera and calibration images");
+            return;
+         }
+
+         // Get target coordinates
+         Polygon cam = cameraImage.getRoi().getPolygon();
+         Polygon cal = calibrationImage.getRoi().getPolygon();
+         int n = camTargets;
+         camX = new double[n];
+         camY = new double[n];
+         calX = new double[n];
+         calY = new double[n];
+         for (int i = 0; i < n; i++) {
+            camX[i] = cam.xpoints[i];
+            camY[i] = cam.ypoints[i];
+            calX[i] = cal.xpoints[i];
+            calY[i] = cal.ypoints[i];
+         }
+
+         // Do calibration
+         try {
+            fit = new CalibrationFit(camX, camY, calX, calY, fitOrder);
+         } catch (IllegalArgumentException e) {
+            IJ.error(e.getMessage());
+            return;
+         }
+      }
+
+      MaskGenerator generator = new MaskGenerator();
+      fit.apply(generator);
+      generator.calSize = cameraImage.getWidth();
+      generator.outSize = OUTPUT_SIZE;
+      generator.flipVertical = flipVertical;
+      generator.flipHorizontal = flipHorizontal;
+      if (fit.getPoints() > 2)
+         showResiduals(fit, camX, camY, calX, calY);
 
       // Write calibration file
-      writeCalibration(calibrationOutput, flipVertical, flipHorizontal);
+      writeCalibration(generator);
    }
 
-  // Actually compute the calibration offsets and scale factors based on the selected points
-  private double[] calibrate(double[] calPoints, double[] camPoints, double calSize) {
-      double[] calibrationOutput = new double[6];
-      // xScale
-      calibrationOutput[0] = (calPoints[0]-calPoints[2]) / (camPoints[0] - camPoints[2]);
-      // yScale
-      calibrationOutput[1] = (calPoints[1]-calPoints[3]) / (camPoints[1] - camPoints[3]);
-      // xOffset
-      calibrationOutput[2] = calPoints[0]-camPoints[0]*calibrationOutput[0];
-      // yOffset
-      calibrationOutput[3] = calPoints[1]-camPoints[1]*calibrationOutput[1];
-      // size of camera image
-      calibrationOutput[4] = calSize;
-      // size of desired output mask
-      calibrationOutput[5] = OUTPUT_SIZE;
-
-      // For debugging purposes you might want to show the output here
-      if(false)
-         IJ.error("xScale: " + Double.toString(calibrationOutput[0]) + " yScale: " + Double.toString(calibrationOutput[1]) 
-                  + " xOffset: " + Double.toString(calibrationOutput[2]) + " yOffset: " + Double.toString(calibrationOutput[3]));
-      return calibrationOutput;
+  // Without two images to calibrate from, offer the dot grid to project for
+  // an automatic calibration
+  private void makeDotGrid() {
+      GenericDialog gd = new GenericDialog("Calibrate SLM", IJ.getInstance());
+      gd.addMessage("At least two grayscale or RGB-stack images are required.\n" +
+                    "Make a dot grid to project through the SLM for an automatic calibration?");
+      gd.addNumericField("Grid Spacing (px):", gridSpacing, 0);
+      gd.showDialog();
+      if (gd.wasCanceled())
+         return;
+      gridSpacing = Math.max(2, (int) gd.getNextNumber());
+      new ImagePlus("dot grid", SpotCalibrator.makeGrid(OUTPUT_SIZE, gridSpacing)).show();
+  }
+
+  private static float[] toFloat(double[] values) {
+      float[] f = new float[values.length];
+      for (int i = 0; i < values.length; i++)
+         f[i] = (float) values[i];
+      return f;
+  }
+
+  // List how far each calibration point is from where the fit puts its camera point
+  private void showResiduals(CalibrationFit fit, double[] camX, double[] camY,
+                             double[] calX, double[] calY) {
+      ResultsTable rt = new ResultsTable();
+      for (int i = 0; i < fit.getPoints(); i++) {
+         rt.incrementCounter();
+         rt.addValue("Camera X", camX[i]);
+         rt.addValue("Camera Y", camY[i]);
+         rt.addValue("Calibration X", calX[i]);
+         rt.addValue("Calibration Y", calY[i]);
+         rt.addValue("Fit X", fit.getFitX(i));
+         rt.addValue("Fit Y", fit.getFitY(i));
+         rt.addValue("Residual", fit.getResidual(i));
+      }
+      rt.show("Calibration Residuals");
+      IJ.showStatus(FITS[fitOrder-1] + " fit to " + fit.getPoints() + " points: rms "
+                    + IJ.d2s(fit.getRms(), 2) + " px, max " + IJ.d2s(fit.getMax(), 2) + " px");
   }
 
   // Generate output calibration file
-  private void writeCalibration(double[] calibrationOutput, boolean fVertical, boolean fHorizontal) {
+  private void writeCalibration(MaskGenerator generator) {
      
      // Ask the user where to save the file
      SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
@@ -186,24 +273,7 @@ public class calibrate_slm_ implements PlugIn {
 
       // Write out the file
       try {
-           PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(outPath)));
-           // Print comments in first five lines
-           out.println("SLM calibration file -- " + date);
-           out.println("-------------------------------------------------------------");
-           out.println("1. xScale, 2. yScale, 3. xOffset, 4. yOffset");
-           out.println("5. calSize, 6. outputSize, 7. flipVertical, 8. flipHorizontal");
-           out.println("-------------------------------------------------------------");
-
-           // Write out calibration data
-           for (int i=0; i < calibrationOutput.length; i++)
-             out.println(calibrationOutput[i]);
-
-           // Write default flipping values
-           out.println(flipVertical); 
-           out.println(flipHorizontal);
-
-           // Close the file stream
-           out.close();
+           generator.write(outPath, date);
      } catch(Exception e) {
         IJ.showMessage("Error writing calibration file!");
         return;
@@ -7,6 +7,7 @@ import ij.*;
 import ij.io.*;
 import ij.gui.*;
 import ij.process.*;
+import ij.measure.*;
 import ij.plugin.PlugIn;
 import ij.plugin.filter.*;
 
@@ -18,23 +19,17 @@ import ij.plugin.filter.*;
 
 public class choose_targets_ implements PlugIn {	
     
-    //////////////////////////////
-    // Default Calibration Values
-    //////////////////////////////
-
-    // fat 20x, 0.95 NA (4/16/10)
-    private double xScale  = -0.7576;
-    private double yScale  =  0.7937;
-    private double xOffset = 199.2424;
-    private double yOffset = -1.5873;
-    // How large was the calibration image   (pixels squared)
-    private int calSize = 256;
-    // How large was the calibration pattern (pixels squared)
-    private int outSize = 213;
-    private int threshold = 1;
-    // Flip image if desired
-    private boolean flipVertical   = true;
-    private boolean flipHorizontal = true;
+    // Calibration values, defaults until a calibration file is read
+    private MaskGenerator generator = new MaskGenerator();
+    private double threshold = 1;
+    private int separation = 4;
+    // Phase hologram of the targets, computed with (weighted) Gerchberg-Saxton
+    private boolean computeHologram, weightedGS = true;
+    private int iterations = 30;
+    private double gsTolerance = 0.001;
+    // A sequence of masks for subsets of the targets, e.g. one per target
+    private static final String[] SEQUENCES = {"None", "One Mask per Target", "Target Groups from File"};
+    private int sequence;
 
     ///////////////////////////
     // Mask generation function
@@ -63,22 +58,8 @@ public class choose_targets_ implements PlugIn {
          IJ.showMessage("Using arbitrary calibration values!");
       } else {
         try {
-           BufferedReader dis = new BufferedReader(new FileReader(dir+name));
-           // Skip the first five lines
-           int N_COMMENT = 5;
-           for(int i=0; i < N_COMMENT; i++)
-            dis.readLine();
-           // Read in the calibration data on the following lines
-           xScale   = Double.parseDouble(dis.readLine());
-           yScale   = Double.parseDouble(dis.readLine());
-           xOffset  = Double.parseDouble(dis.readLine());
-           yOffset  = Double.parseDouble(dis.readLine());
-           calSize  = (int) Double.parseDouble(dis.readLine());
-           outSize  = (int) Double.parseDouble(dis.readLine());
-           flipVertical = Boolean.parseBoolean(dis.readLine());
-           flipHorizontal = Boolean.parseBoolean(dis.readLine());
-           dis.close();
-        } catch(Exception e) {
+           generator = MaskGenerator.read(dir+name);
+        } catch(IOException e) {
            IJ.showMessage("Error parsing calibration file!");
            return;
         }
@@ -94,7 +75,7 @@ public class choose_targets_ implements PlugIn {
 	   roi = img.getRoi();
          poly = roi.getPolygon();
          nTargets = poly.npoints;      
-        sOffset = calSize/img.getHeight();
+        sOffset = generator.getScaleOffset(img.getHeight());
       }
 
       // Setup dialog box with calibration parameters
@@ -103,35 +84,63 @@ public class choose_targets_ implements PlugIn {
       gd.add(maximaPanel);
       gd.addMessage("\n");
       gd.addNumericField("Maxima Threshold:", threshold, 1);
+      gd.addNumericField("Min Separation (px):", separation, 0);
       gd.addMessage("\n");
       gd.addMessage("SLM Calibration Parameters:\n");
-      gd.addNumericField("xScale:", xScale, 4);
-      gd.addNumericField("yScale:", yScale, 4);
-      gd.addNumericField("xOffset:", xOffset, 4);
-      gd.addNumericField("yOffset:", yOffset, 4);
+      if (generator.xTerms != null)
+         gd.addMessage("(" + (generator.xTerms.length == 3 ? "affine" : "quadratic")
+                       + " fit from the file: scale and offset are not used)");
+      gd.addNumericField("xScale:", generator.xScale, 4);
+      gd.addNumericField("yScale:", generator.yScale, 4);
+      gd.addNumericField("xOffset:", generator.xOffset, 4);
+      gd.addNumericField("yOffset:", generator.yOffset, 4);
       gd.addMessage("\n");
-      gd.addNumericField("Calibration Image Size:", calSize, 0);
-      gd.addNumericField("Calibration Pattern Size:", outSize, 0);
+      gd.addNumericField("Calibration Image Size:", generator.calSize, 0);
+      gd.addNumericField("Calibration Pattern Size:", generator.outSize, 0);
       gd.addMessage("\n");
-      gd.addCheckbox("Flip Vertical:", flipVertical);
-      gd.addCheckbox("Flip Horizontal:", flipHorizontal);
+      gd.addCheckbox("Flip Vertical:", generator.flipVertical);
+      gd.addCheckbox("Flip Horizontal:", generator.flipHorizontal);
+      gd.addMessage("\n");
+      gd.addChoice("Mask Sequence:", SEQUENCES, SEQUENCES[sequence]);
+      gd.addCheckbox("Compute Phase Hologram?", computeHologram);
+      gd.addCheckbox("Weighted GS?", weightedGS);
+      gd.addNumericField("GS Iterations:", iterations, 0);
+      gd.addNumericField("GS Tolerance:", gsTolerance, 4);
       updateFields(gd);
       final Button maximaButton = new Button("Find Maxima...");
       final Label targetMessage = new Label(nTargets + " Targets Selected. Scale offset = " + sOffset);
 
-      // If "Find Maxima" button is pressed, update chosen targets
+      // If "Find Maxima" button is pressed, update chosen targets. Detection runs
+      // on its own thread so the dialog stays responsive on large images.
 	maximaButton.addActionListener(
            new ActionListener() {
                 public void actionPerformed(ActionEvent e) {
 
                   // Update ROI
                   updateFields(gd);
-                  IJ.run(img,"Find Maxima...","noise=" + threshold + " output=[Point Selection]");
-                  int tTargets = img.getRoi().getPolygon().npoints;
-                  int tOffset  = calSize/img.getHeight();
+                  maximaButton.setEnabled(false);
+                  targetMessage.setText("Finding maxima...");
+                  final MaximaDetector detector = new MaximaDetector(threshold, separation);
+                  detector.setThreads(Prefs.getThreads());
+                  new Thread(new Runnable() {
+                     public void run() {
+                        final PointRoi maxima = detector.detect(img.getProcessor());
+                        EventQueue.invokeLater(new Runnable() {
+                           public void run() {
+                              if (maxima != null)
+                                 img.setRoi(maxima);
+                              else
+                                 img.deleteRoi();
+                              int tTargets = maxima != null ? maxima.getPolygon().npoints : 0;
+                              int tOffset  = generator.getScaleOffset(img.getHeight());
 
-                  // Update GUI
-                  targetMessage.setText(tTargets + " Targets Selected. Scale offset = " + tOffset + "\n");
+                              // Update GUI
+                              targetMessage.setText(tTargets + " Targets Selected. Scale offset = " + tOffset + "\n");
+                              maximaButton.setEnabled(true);
+                           }
+                        });
+                     }
+                  }, "Find Maxima").start();
                 }
            }
       );
@@ -158,7 +167,7 @@ public class choose_targets_ implements PlugIn {
       roi = img.getRoi();
       poly = roi.getPolygon();
       nTargets = poly.npoints;      
-      sOffset = calSize/img.getHeight();
+      sOffset = generator.getScaleOffset(img.getHeight());
       int[] xpoints = poly.xpoints;
       int[] ypoints = poly.ypoints;
 
@@ -167,19 +176,8 @@ public class choose_targets_ implements PlugIn {
                 return;
 	}
 
-      // Make the mask
-      PointRoi maskRoi = generateMask(sOffset, xpoints, ypoints);
-
-      // Add it to a new image
-      IJ.run("Image...", "fill=White width=" + outSize + " height=" + outSize);
-      ImagePlus mask = ij.WindowManager.getCurrentImage();
-      ImageProcessor ip = mask.getChannelProcessor();
-      maskRoi.drawPixels(ip);
-      ip.invert();
-      if(flipHorizontal)
-         IJ.run(mask,"Flip Horizontally","");
-      if(flipVertical)
-         IJ.run(mask,"Flip Vertically","");
+      // Make the mask and add it to a new image
+      ImagePlus mask = new ImagePlus("mask", generator.createMask(sOffset, xpoints, ypoints));
 
       // Show it
 	mask.updateAndDraw();
@@ -189,8 +187,81 @@ public class choose_targets_ implements PlugIn {
       SaveDialog sd = new SaveDialog("Save Mask...", "mask", ".bmp");
       String outPath = sd.getDirectory() + sd.getFileName();
       if(sd.getFileName()!= null && !sd.getFileName().equalsIgnoreCase("null")) {
-         IJ.saveAs("BMP", outPath);
+         IJ.saveAs(mask, "BMP", outPath);
+      }
+
+      if (sequence > 0)
+         saveSequence(sOffset, nTargets, xpoints, ypoints);
+
+      if (computeHologram)
+         showHologram(sOffset, xpoints, ypoints);
+    }
+
+    // Make one mask per target, or per group of targets listed in a file, and
+    // save them all as one TIFF stack or, with a .raw name, as raw 8-bit frames
+    private void saveSequence(int sOffset, int nTargets, int[] xpoints, int[] ypoints) {
+      int[][] groups;
+      if (sequence == 1) {
+         groups = MaskSequence.singles(nTargets);
+      } else {
+         OpenDialog od = new OpenDialog("Choose a target groups file", null);
+         if (od.getFileName() == null)
+            return;
+         try {
+            groups = MaskSequence.readGroups(od.getDirectory() + od.getFileName(), nTargets);
+         } catch (IOException e) {
+            IJ.error(e.getMessage());
+            return;
+         }
+      }
+
+      SaveDialog sd = new SaveDialog("Save Mask Sequence...", "masks", ".tif");
+      if (sd.getFileName() == null)
+         return;
+      String path = sd.getDirectory() + sd.getFileName();
+      long start = System.nanoTime();
+      try {
+         MaskSequence masks = new MaskSequence(generator, sOffset, xpoints, ypoints);
+         if (path.toLowerCase().endsWith(".raw"))
+            masks.writeRaw(new File(path), groups);
+         else
+            masks.writeTiff(path, groups);
+      } catch (IOException e) {
+         IJ.error("Could not save mask sequence: " + e.getMessage());
+         return;
       }
+      IJ.showStatus(groups.length + " masks saved in " + IJ.d2s((System.nanoTime()-start)/1e6, 0) + " ms");
+    }
+
+    // Compute the phase pattern for the targets, list how the iterations went,
+    // then show and save it
+    private void showHologram(int sOffset, int[] xpoints, int[] ypoints) {
+      HologramGenerator hologram = new HologramGenerator(generator.outSize);
+      hologram.setThreads(Prefs.getThreads());
+      hologram.setIterations(iterations);
+      hologram.setTolerance(gsTolerance);
+      hologram.setWeighted(weightedGS);
+      IJ.showStatus("Computing phase hologram...");
+      FloatProcessor phase = generator.createHologram(hologram, sOffset, xpoints, ypoints);
+
+      ResultsTable rt = new ResultsTable();
+      double total = 0;
+      for (int k = 0; k < hologram.getIterations(); k++) {
+         rt.incrementCounter();
+         rt.addValue("Iteration", k+1);
+         rt.addValue("Time (ms)", hologram.getTime(k));
+         rt.addValue("Uniformity", hologram.getUniformity(k));
+         rt.addValue("Efficiency", hologram.getEfficiency(k));
+         total += hologram.getTime(k);
+      }
+      rt.show("Hologram Iterations");
+      IJ.showStatus(hologram.getIterations() + " iterations in " + IJ.d2s(total, 0) + " ms");
+
+      ImagePlus image = new ImagePlus("phase", HologramGenerator.toGrayLevels(phase));
+      image.show();
+      SaveDialog sd = new SaveDialog("Save Phase Hologram...", "phase", ".bmp");
+      if (sd.getFileName() != null)
+         IJ.saveAs(image, "BMP", sd.getDirectory() + sd.getFileName());
     }
 
     // Get fields from the dialog
@@ -201,44 +272,39 @@ public class choose_targets_ implements PlugIn {
       // Handle numeric fields
       Vector fields = gd.getNumericFields();
       TextField tf = (TextField) fields.elementAt(0);
-      threshold = (int) Double.parseDouble(tf.getText());
+      threshold = Double.parseDouble(tf.getText());
       tf = (TextField) fields.elementAt(1);
-      xScale  = Double.parseDouble(tf.getText());
+      separation = (int) Double.parseDouble(tf.getText());
       tf = (TextField) fields.elementAt(2);
-      yScale  = Double.parseDouble(tf.getText());
+      generator.xScale  = Double.parseDouble(tf.getText());
       tf = (TextField) fields.elementAt(3);
-      xOffset = Double.parseDouble(tf.getText());
+      generator.yScale  = Double.parseDouble(tf.getText());
       tf = (TextField) fields.elementAt(4);
-      yOffset = Double.parseDouble(tf.getText());
+      generator.xOffset = Double.parseDouble(tf.getText());
       tf = (TextField) fields.elementAt(5);
-      calSize = (int) Double.parseDouble(tf.getText());
+      generator.yOffset = Double.parseDouble(tf.getText());
       tf = (TextField) fields.elementAt(6);
-      outSize = (int) Double.parseDouble(tf.getText());
+      generator.calSize = (int) Double.parseDouble(tf.getText());
+      tf = (TextField) fields.elementAt(7);
+      generator.outSize = (int) Double.parseDouble(tf.getText());
+      tf = (TextField) fields.elementAt(8);
+      iterations = (int) Double.parseDouble(tf.getText());
+      tf = (TextField) fields.elementAt(9);
+      gsTolerance = Double.parseDouble(tf.getText());
 
       // Handle binary fields
       Vector checkBoxes = gd.getCheckboxes();
       Checkbox cb = (Checkbox) checkBoxes.elementAt(0);
-      flipVertical = cb.getState();
-      tf = (TextField) fields.elementAt(1);
-      flipHorizontal = cb.getState();
-    }
-
-    // Iterate over all targets and transform them to the calibrated space
-    private PointRoi generateMask(int sOffset, int[] xpoints, int[] ypoints) {
-
-      int[] nxpoints = new int[xpoints.length];
-      int[] nypoints = new int[ypoints.length]; 
-      double xc, yc;
-
-      for (int i = 0; i < xpoints.length; i++) {
-         xc = xScale*sOffset*xpoints[i] + xOffset;
-         yc = yScale*sOffset*ypoints[i] + yOffset;
-         nxpoints[i] = (int)Math.round(xc);
-         nypoints[i] = (int)Math.round(yc);
-      }
-      
-      PointRoi maskRoi = new PointRoi(nxpoints,nypoints,xpoints.length);
+      generator.flipVertical = cb.getState();
+      cb = (Checkbox) checkBoxes.elementAt(1);
+      generator.flipHorizontal = cb.getState();
+      cb = (Checkbox) checkBoxes.elementAt(2);
+      computeHologram = cb.getState();
+      cb = (Checkbox) checkBoxes.elementAt(3);
+      weightedGS = cb.getState();
 
-      return maskRoi;
+      // Handle choices
+      Choice choice = (Choice) gd.getChoices().elementAt(0);
+      sequence = choice.getSelectedIndex();
     }
 }
@@ -1,10 +1,14 @@
 import java.util.*; 
 import java.awt.*;
+import java.io.*;
 import java.lang.*;
 import ij.*;
+import ij.io.*;
 import ij.gui.*;
 import ij.process.*;
+import ij.measure.*;
 import ij.plugin.PlugIn;
+import ij.plugin.frame.RoiManager;
 
 /** 
 * For each selected point, draw a box around it that is of length and width
@@ -19,9 +23,38 @@ import ij.plugin.PlugIn;
 
 public class compress_stack_ implements PlugIn {	
    
-    private double nScale;
-    private int cRadius, nMaxima;
-    private boolean displayMatrix, displayTraces, displayIds, sortTraces;
+    private double nScale, percentile, bufferSize, refreshRate, deltaPercentile;
+    private double eventTau, eventThreshold;
+    private int cRadius, nMaxima, nThreads, traceValue, liveSource, plotFrames, deltaWindow, maxShift;
+    private boolean displayMatrix, displayTraces, displayIds, sortTraces, streamTiff, liveMode;
+    private boolean saveMatrix, saveTraces, computeDeltaF, detectEvents, showCorrelations;
+    private boolean correctMotion, subtractNeuropil;
+    // Closed loop in live mode: a mask for the most active targets of each frame
+    private boolean closedLoop;
+    private int loopRule, loopTargets, loopSink;
+    private double loopThreshold, loopBudget;
+    private static String loopAddress = "localhost:5000";
+    private int roiShape;
+    private double innerRadius, outerRadius, neuropilFactor;
+    // One slice of weights per target, with the WEIGHTS shape
+    private ImagePlus weightImages;
+    // Kept between runs, so a stack is only read once while settings are tried
+    private static boolean cachePixels;
+    private static int cacheRadius;
+
+    // Where frames come from in live mode
+    private static final String[] LIVE_SOURCES = {"Growing TIFF File", "Folder of TIFF Frames"};
+    // Which targets the closed loop stimulates, and where its masks go
+    private static final String[] LOOP_RULES = {"Active Targets", "Most Active Targets"};
+    private static final String[] LOOP_SINKS = {"Socket", "File"};
+
+    // Frames waiting between the stages of an ExtractionPipeline
+    private static final int QUEUE_FRAMES = 8;
+
+    // Shape of the area each trace is taken from
+    private static final int BOX = 0, DISK = 1, MANAGER = 2, WEIGHTS = 3;
+    private static final String[] ROI_SHAPES = {"Square Box", "Disk", "ROI Manager Shapes",
+                                                "Weight Image Stack"};
 
     // Main function for choosing targets
     public void run(String arg) {
@@ -36,14 +69,15 @@ public class compress_stack_ implements PlugIn {
                 return;
 	}
 
-      // Get selected points
-      if (img.getRoi() == null) {
+      // Get selected points, or the centers of the shapes in the ROI Manager
+      Roi[] shapes = managerShapes();
+      if (img.getRoi() == null && shapes.length == 0) {
 	    IJ.error ("Select targets first!");
                 return;
       }
 
       Roi roi = img.getRoi();
-      Polygon poly = roi.getPolygon();
+      Polygon poly = roi != null ? roi.getPolygon() : centers(shapes);
       int nTargets = poly.npoints;
       int[] xpoints = poly.xpoints;
       int[] ypoints = poly.ypoints;
@@ -57,6 +91,23 @@ public class compress_stack_ implements PlugIn {
       cRadius = 2;    // area around each target to use
       nMaxima = 25;   // pixels from each target to use
       nScale  = 100;  // pixel scale for plotting traces
+      nThreads = Prefs.getThreads(); // threads used for extraction
+      traceValue = RoiReducer.SUM;   // how each ROI is reduced to a trace value
+      percentile = 50;
+      deltaWindow = 1000;   // frames the dF/F baseline looks back over
+      deltaPercentile = 10; // percentile of those frames used as baseline
+      eventTau = 10;        // decay time of the indicator (frames)
+      eventThreshold = 3;   // smallest event, in noise standard deviations
+      maxShift = 10;        // largest motion corrected for (px)
+      innerRadius = 4;      // neuropil annulus around each cell (px)
+      outerRadius = 12;
+      neuropilFactor = 0.7; // fraction of the neuropil subtracted from each cell
+      bufferSize = 64;  // largest part of a frame read at once when streaming (MB)
+      plotFrames = 1000; // recent frames shown in live mode
+      refreshRate = 2;   // live plot redraws per second
+      loopThreshold = 0.5; // activity (dF/F if computed) that counts as active
+      loopTargets = 10;    // most targets stimulated at once
+      loopBudget = 2;      // latency a closed-loop frame should stay under (ms)
 
       // Set up dialog box with parameters
       GenericDialog gd = new GenericDialog("Cell Extraction Options", IJ.getInstance());
@@ -64,10 +115,35 @@ public class compress_stack_ implements PlugIn {
       gd.addNumericField("Cell Radius (px):", cRadius, 4);
       gd.addNumericField("Pixels/ROI to save:", nMaxima, 4);
       gd.addNumericField("Plot Using Pixels/Trace:", nScale, 4);
+      gd.addNumericField("Threads:", nThreads, 0);
+      gd.addCheckbox("Cache Pixels for Re-runs?", cachePixels);
+      gd.addNumericField("Cache Radius (px):", cacheRadius, 0);
       gd.addCheckbox("Display Data Matrix?", false);
       gd.addCheckbox("Display Data Traces?", true);
       gd.addCheckbox("Show Cell IDs?", true);
       gd.addCheckbox("Sort Data Matrix?", false);
+      gd.addCheckbox("Save Data Matrix (raw)?", false);
+      gd.addCheckbox("Save Traces (compressed)?", false);
+      gd.addChoice("Trace Value:", RoiReducer.NAMES, RoiReducer.NAMES[traceValue]);
+      gd.addNumericField("Percentile (%):", percentile, 1);
+      gd.addChoice("ROI Shape:", ROI_SHAPES, ROI_SHAPES[roi != null ? BOX : MANAGER]);
+      gd.addCheckbox("Subtract Neuropil?", false);
+      gd.addNumericField("Neuropil Inner Radius (px):", innerRadius, 1);
+      gd.addNumericField("Neuropil Outer Radius (px):", outerRadius, 1);
+      gd.addNumericField("Neuropil Factor:", neuropilFactor, 2);
+      gd.addCheckbox("Compute dF/F?", false);
+      gd.addNumericField("Baseline Window (frames):", deltaWindow, 0);
+      gd.addNumericField("Baseline Percentile (%):", deltaPercentile, 1);
+      gd.addCheckbox("Detect Events?", false);
+      gd.addNumericField("Decay Time (frames):", eventTau, 1);
+      gd.addNumericField("Event Threshold (SD):", eventThreshold, 1);
+      gd.addCheckbox("Show Correlation Matrix?", false);
+      gd.addCheckbox("Correct Motion?", false);
+      gd.addNumericField("Max Shift (px):", maxShift, 0);
+      gd.addCheckbox("Stream Stack From TIFF File?", false);
+      gd.addNumericField("Frame Buffer (MB):", bufferSize, 0);
+      gd.addCheckbox("Live Acquisition Mode?", false);
+      gd.addCheckbox("Closed Loop (Live Mode)?", false);
 
       // Print how many targets have been selected
       gd.addMessage(nTargets + " Targets Selected.");
@@ -83,10 +159,45 @@ public class compress_stack_ implements PlugIn {
       cRadius = (int) gd.getNextNumber();
       nMaxima = (int) gd.getNextNumber();
       nScale  = (int) gd.getNextNumber();
+      nThreads = (int) gd.getNextNumber();
+      cachePixels   =  gd.getNextBoolean();
+      cacheRadius   =  (int) gd.getNextNumber();
+      // A run without the cache frees what it holds
+      if (!cachePixels)
+         ExtractionCache.clear();
       displayMatrix =  gd.getNextBoolean();
       displayTraces =  gd.getNextBoolean();
       displayIds    =  gd.getNextBoolean();
       sortTraces    =  gd.getNextBoolean();
+      saveMatrix    =  gd.getNextBoolean();
+      saveTraces    =  gd.getNextBoolean();
+      traceValue    =  gd.getNextChoiceIndex();
+      percentile    =  gd.getNextNumber();
+      roiShape      =  gd.getNextChoiceIndex();
+      subtractNeuropil = gd.getNextBoolean();
+      innerRadius   =  gd.getNextNumber();
+      outerRadius   =  gd.getNextNumber();
+      neuropilFactor = gd.getNextNumber();
+      computeDeltaF =  gd.getNextBoolean();
+      deltaWindow   =  (int) gd.getNextNumber();
+      deltaPercentile = gd.getNextNumber();
+      detectEvents  =  gd.getNextBoolean();
+      eventTau      =  gd.getNextNumber();
+      eventThreshold = gd.getNextNumber();
+      showCorrelations = gd.getNextBoolean();
+      correctMotion =  gd.getNextBoolean();
+      maxShift      =  (int) gd.getNextNumber();
+      streamTiff    =  gd.getNextBoolean();
+      bufferSize    =  gd.getNextNumber();
+      liveMode      =  gd.getNextBoolean();
+      closedLoop    =  gd.getNextBoolean();
+
+      if (closedLoop && !liveMode) {
+         IJ.error("The closed loop needs live acquisition mode!");
+         return;
+      }
+      if (liveMode && !showLiveOptions())
+         return;
 
       // Check if the ROI size is nonzero
       if (cRadius < 1) {
@@ -98,83 +209,318 @@ public class compress_stack_ implements PlugIn {
       // total number of pixels in the total ROI
       int maxPixels = ((cRadius*2)+1)*((cRadius*2)+1);
       if (nMaxima > maxPixels) nMaxima = maxPixels;
+      if (nMaxima < 0) {
+         IJ.error("The number of pixels per ROI can not be negative!");
+         return;
+      }
+      // Without any pixels per target there is no data matrix
+      if (nMaxima == 0) {
+         displayMatrix = false;
+         saveMatrix = false;
+      }
 
-      // Create a new image stack
+      // Footprints other than boxes are a weighted mean of their pixels and
+      // have no data matrix
+      if (roiShape != BOX || subtractNeuropil) {
+         if (liveMode || correctMotion) {
+            IJ.error("Live mode and motion correction need square boxes without neuropil!");
+            return;
+         }
+         // The footprint matrix takes grayscale pixels only
+         if (!streamTiff && img.getBitDepth() == 24) {
+            IJ.error("Color stacks are not supported!");
+            return;
+         }
+         if (roiShape == MANAGER) {
+            if (shapes.length == 0) {
+               IJ.error("Add the cell shapes to the ROI Manager first!");
+               return;
+            }
+            poly = centers(shapes);
+            nTargets = poly.npoints;
+            xpoints = poly.xpoints;
+            ypoints = poly.ypoints;
+         }
+         if (roiShape == WEIGHTS) {
+            OpenDialog od = new OpenDialog("Choose the weight images (one slice per target)", null);
+            if (od.getFileName() == null)
+               return;
+            weightImages = IJ.openImage(od.getDirectory() + od.getFileName());
+            if (weightImages == null) {
+               IJ.error("Could not open " + od.getFileName());
+               return;
+            }
+            if (weightImages.getWidth() != img.getWidth() || weightImages.getHeight() != img.getHeight()
+                || weightImages.getBitDepth() == 24) {
+               IJ.error("Weight images must be grayscale and the same size as the image with the targets!");
+               return;
+            }
+            if (weightImages.getStackSize() != nTargets) {
+               IJ.error("The weight stack needs one slice per target (" + nTargets + ")!");
+               return;
+            }
+         }
+         displayMatrix = false;
+         saveMatrix = false;
+      }
+
+      // Set up the extraction
+      RoiReducer reducer = RoiReducer.create(traceValue, sortTraces, percentile);
+      TraceExtractor extractor = new TraceExtractor(xpoints, ypoints, nTargets,
+                                                    cRadius, nMaxima, reducer);
+      extractor.setThreads(nThreads);
+      if (computeDeltaF)
+         extractor.setDeltaF(Math.max(1, deltaWindow), deltaPercentile);
+      // Frames are registered to the image the targets were chosen on
+      if (correctMotion)
+         extractor.setMotionCorrection(new MotionCorrector(img.getProcessor(), maxShift));
+      long bandBytes = (long)(bufferSize*1024*1024);
+      // The cache keeps the boxes at the larger of the cell and cache radius; it
+      // does not follow moving boxes
+      boolean useCache = cachePixels && !correctMotion;
+      // Traces (with the data matrix when there is one) are written to the file
+      // as they are extracted
+      File traceFile = null;
+      if (saveTraces) {
+         SaveDialog sd = new SaveDialog("Save Traces...", "traces", ".trc");
+         if (sd.getFileName() == null)
+            return;
+         traceFile = new File(sd.getDirectory(), sd.getFileName());
+      }
       ImageStack input = img.getStack();
-      int nFrames = input.getSize();
-      ImageStack stack = new ImageStack(nTargets,nMaxima);
-
-      // Save a projection across each cell
-      double[][] dPoints = new double[nTargets][nFrames];
-      double[] xPoints = new double[nFrames];
-      int[][] frame = new int[img.getWidth()][img.getHeight()];
-
-      // Extract appropriate pixels
-      double normConst = 1;
-      for (int f=1; f <= nFrames; f++) {
-
-         // Get the current image processor
-         ImageProcessor cip = input.getProcessor(f) ;
-         frame = cip.getIntArray();
-         xPoints[f-1] = f;
-
-         // For each target get a square around it of size (cRadius*2 + 1)^2
-         int[] rawPoints = new int[((cRadius*2)+1)*((cRadius*2)+1)];
-         int[][] framePoints = new int[nTargets][nMaxima];
-         for (int i = 0; i < nTargets; i++) {
-             // Reset everything to zeros
-             int j = 0;
-             Arrays.fill(rawPoints,0);
-             // Extract pixels
-             for (int k = xpoints[i]-cRadius; k <= xpoints[i]+cRadius; k++) {
-                for (int l = ypoints[i]-cRadius; l <= ypoints[i]+cRadius; l++) {
-                    if (k < cip.getWidth() && k >= 0 && l < cip.getHeight() && l >= 0)
-                       rawPoints[j++] = frame[k][l];
-                }
-             }
-
-             // Save maxima
-             if (sortTraces) Arrays.sort(rawPoints);
-             double total = 0;
-             for (int m = 0; m < nMaxima; m++) {
-                framePoints[i][m] = rawPoints[rawPoints.length-1-m];
-                // Get the trace across each neuron for plotting, normalize it, and shift on Y
-                total = total + framePoints[i][m];
-             }
-             dPoints[i][f-1] = total;
-         }
-
-         // Draw it
-         ImageProcessor ip = new ShortProcessor(nTargets,nMaxima);
-         ip.setIntArray(framePoints);
-         
-         // Add it to a new image to end of stack
-         stack.addSlice("Slice",ip);
+      DataMatrixStore matrix = null;
+      double[][] dPoints;
+      double[][] deltaF = null;
+      double[][] events = null;
+
+      if (roiShape != BOX || subtractNeuropil) {
+         dPoints = extractFootprints(img, shapes, xpoints, ypoints, nTargets);
+         if (dPoints == null)
+            return;
+         if (traceFile != null) {
+            TraceFile.Writer writer = null;
+            try {
+               writer = openTraceFile(traceFile, nTargets, null);
+               writer.addFrames(dPoints, null, 1, dPoints[0].length);
+               writer.close();
+            } catch (IOException e) {
+               IJ.error("Error saving traces: " + e.getMessage());
+            } finally {
+               if (writer != null)
+                  closeQuietly(writer);
+            }
+         }
+      } else if (liveMode) {
+         // Follow an acquisition until the user stops it. There is no data matrix.
+         // The closed loop connects to its receiver before the first frame.
+         ClosedLoop loop = null;
+         if (closedLoop) {
+            loop = newClosedLoop(img, Arrays.copyOf(xpoints, nTargets), Arrays.copyOf(ypoints, nTargets));
+            if (loop == null)
+               return;
+         }
+         FrameSource source = openLiveSource(img);
+         if (source == null) {
+            if (loop != null)
+               closeQuietly(loop);
+            return;
+         }
+         displayMatrix = false;
+         saveMatrix = false;
+         LiveExtraction live = new LiveExtraction(extractor, nTargets, nScale,
+                                                  plotFrames, refreshRate, bandBytes);
+         if (detectEvents)
+            live.setEventDetector(newEventDetector(nTargets));
+         CorrelationMatrix correlations = null;
+         if (showCorrelations) {
+            correlations = new CorrelationMatrix(nTargets);
+            correlations.setThreads(nThreads);
+            live.setCorrelations(correlations);
+         }
+         live.setClosedLoop(loop);
+         try {
+            if (traceFile != null)
+               extractor.setWriter(openTraceFile(traceFile, nTargets, null));
+            dPoints = live.run(source);
+            closeTraceFile(extractor);
+         } catch (IOException e) {
+            IJ.error("Error reading live frames: " + e.getMessage());
+            return;
+         } finally {
+            closeQuietly(source);
+            if (extractor.getWriter() != null)
+               closeQuietly(extractor.getWriter());
+            if (loop != null)
+               closeQuietly(loop);
+            if (correlations != null)
+               correlations.close();
+         }
+         if (loop != null && loop.getFrames() > 0)
+            showLatency(loop);
+         if (live.getFrames() == 0)
+            return;
+         deltaF = live.getDeltaF();
+         events = live.getEvents();
+      } else if (streamTiff) {
+         // Open the file to stream from. The selected image only provides the targets.
+         OpenDialog od = new OpenDialog("Choose a TIFF stack to stream", null);
+         if (od.getFileName() == null)
+            return;
+         File file = new File(od.getDirectory(), od.getFileName());
+         // A file read before with these targets does not have to be read again
+         ExtractionCache.View cached = useCache ?
+            ExtractionCache.find(file, xpoints, ypoints, nTargets, cRadius) : null;
+         TiffStreamReader reader = null;
+         try {
+            if (cached == null) {
+               reader = new TiffStreamReader(file.getPath());
+               if (reader.getWidth() != img.getWidth() || reader.getHeight() != img.getHeight()) {
+                  IJ.error("Stack must be the same size as the image with the targets!");
+                  return;
+               }
+               if (useCache && fitsCache(ExtractionCache.bytesNeeded(nTargets, reader.getFrames(),
+                                  Math.max(cRadius, cacheRadius), reader.getBitDepth())))
+                  cached = ExtractionCache.load(file, reader, xpoints, ypoints, nTargets,
+                                                cacheRadius, cRadius, bandBytes);
+            }
+            if (displayMatrix || saveMatrix || (saveTraces && nMaxima > 0))
+               matrix = new DataMatrixStore(nTargets, nMaxima,
+                                            cached != null ? cached.getFrames() : reader.getFrames(),
+                                            cached != null ? cached.getBitDepth() : reader.getBitDepth());
+            if (traceFile != null)
+               extractor.setWriter(openTraceFile(traceFile, nTargets, matrix));
+            if (cached != null) {
+               dPoints = extractor.extract(cached, matrix);
+            } else if ((long) reader.getRowBytes()*reader.getHeight() <= bandBytes) {
+               // Whole frames fit in the buffer, so reading overlaps extraction
+               ExtractionPipeline pipeline = new ExtractionPipeline(extractor, nThreads, QUEUE_FRAMES);
+               dPoints = pipeline.run(reader, matrix);
+               IJ.log(pipeline.toString());
+            } else {
+               dPoints = extractor.extract(reader, matrix, bandBytes);
+            }
+            closeTraceFile(extractor);
+         } catch (IOException e) {
+            IJ.error("Error reading TIFF file: " + e.getMessage());
+            return;
+         } finally {
+            if (reader != null)
+               closeQuietly(reader);
+            if (extractor.getWriter() != null)
+               closeQuietly(extractor.getWriter());
+         }
+      } else {
+         // Extract appropriate pixels, through the cache if asked to
+         ExtractionCache.View cached = null;
+         if (useCache && (img.getBitDepth() == 8 || img.getBitDepth() == 16 || img.getBitDepth() == 32)) {
+            cached = ExtractionCache.find(input, xpoints, ypoints, nTargets, cRadius);
+            if (cached == null && fitsCache(ExtractionCache.bytesNeeded(nTargets, input.getSize(),
+                                     Math.max(cRadius, cacheRadius), img.getBitDepth())))
+               cached = ExtractionCache.load(input, xpoints, ypoints, nTargets,
+                                             cacheRadius, cRadius, nThreads);
+         }
+         try {
+            if (displayMatrix || saveMatrix || (saveTraces && nMaxima > 0))
+               matrix = new DataMatrixStore(nTargets, nMaxima, input.getSize(), img.getBitDepth());
+            if (traceFile != null)
+               extractor.setWriter(openTraceFile(traceFile, nTargets, matrix));
+            if (cached != null) {
+               dPoints = extractor.extract(cached, matrix);
+            } else if (input.isVirtual()) {
+               // Frames are read from disk one by one, so read them ahead on their own thread
+               ExtractionPipeline pipeline = new ExtractionPipeline(extractor, nThreads, QUEUE_FRAMES);
+               dPoints = pipeline.run(input, matrix);
+               IJ.log(pipeline.toString());
+            } else {
+               dPoints = extractor.extract(input, matrix);
+            }
+            closeTraceFile(extractor);
+         } catch (IOException e) {
+            IJ.error("Error reading stack: " + e.getMessage());
+            return;
+         } finally {
+            if (extractor.getWriter() != null)
+               closeQuietly(extractor.getWriter());
+         }
+      }
+      int nFrames = dPoints[0].length;
+      if (deltaF == null)
+         deltaF = extractor.getDeltaF();
+      if (computeDeltaF && deltaF == null)
+         deltaF = DeltaF.compute(dPoints, Math.max(1, deltaWindow), deltaPercentile, nThreads);
+      // Events are inferred from the dF/F traces if there are any
+      if (detectEvents && events == null)
+         events = EventDetector.detect(deltaF != null ? deltaF : dPoints, eventTau,
+                                       eventThreshold, Math.max(1, deltaWindow),
+                                       deltaPercentile, nThreads);
+      if (events != null) {
+         int total = 0;
+         for (int count : EventDetector.count(events))
+            total += count;
+         IJ.log("Events: " + total + " in " + nTargets + " targets over " + nFrames + " frames");
       }
 
-      
-      if (displayTraces) {
-         // Normalize each trace
-         for (int i=0; i < nTargets; i++) {
-            double max = 0; double min = Double.MAX_VALUE;
-            for(int j=0; j < nFrames; j++) {
-               max = dPoints[i][j] > max ? dPoints[i][j] : max;
-               min = dPoints[i][j] < min ? dPoints[i][j] : min;
+      // Save the data matrix for analysis elsewhere
+      if (saveMatrix) {
+         SaveDialog sd = new SaveDialog("Save Data Matrix...", "datamatrix", ".raw");
+         if (sd.getFileName() != null) {
+            try {
+               matrix.export(sd.getDirectory() + sd.getFileName());
+            } catch (IOException e) {
+               IJ.error("Error saving data matrix: " + e.getMessage());
             }
-            for(int j=0; j < nFrames; j++)
-               dPoints[i][j] = (dPoints[i][j]-min) * (1/(max-min)) * nScale + i*nScale;
          }
+      }
+      if (matrix != null && !displayMatrix)
+         closeQuietly(matrix);
+
+      // The cell IDs are drawn on top of the last frame (or the target image when streaming)
+      int[][] frame = (streamTiff || liveMode) ? img.getProcessor().getIntArray()
+                                               : input.getProcessor(nFrames).getIntArray();
+
+      
+      // In live mode the dF/F traces (or the raw ones without dF/F) are already on
+      // screen, so only the raw ones are added
+      if (displayTraces && liveMode) {
+         if (deltaF != null)
+            new TraceViewer(new TracePyramid(dPoints), (int) nScale).show("profile");
+      } else if (displayTraces) {
+         // Plot them, each normalized to its own range
+         TraceViewer viewer = new TraceViewer(new TracePyramid(dPoints), (int) nScale);
+         viewer.show("profile");
+         if (computeDeltaF)
+            new TraceViewer(new TracePyramid(deltaF), (int) nScale).show("dF/F");
+         if (events != null) {
+            TraceViewer raster = new TraceViewer(new TracePyramid(events), (int) nScale);
+            raster.setRaster(true);
+            raster.show("Events");
+         }
+      }
 
-         // Plot it  
-         Plot plot = new Plot("profile","Time (Frames)", "Fluorescence", xPoints, dPoints[0]);
-         plot.setSize(nFrames,nTargets*(int)nScale);
-         plot.setLimits(-100,nFrames,0,(nTargets+1)*nScale);
+      // Correlations between the (dF/F) traces, with correlated cells grouped
+      // together; in live mode they are already on screen
+      if (showCorrelations && !liveMode) {
+         double[][] r = CorrelationMatrix.compute(deltaF != null ? deltaF : dPoints, nThreads);
+         int[] order = CorrelationMatrix.clusterOrder(r);
+         ImagePlus correlations = new ImagePlus("Correlations", CorrelationMatrix.toImage(r, order));
+         StringBuilder info = new StringBuilder("Cells from top to bottom (and left to right):");
+         for (int i = 0; i < order.length; i++)
+            info.append(i % 20 == 0 ? "\n" : " ").append(order[i]);
+         correlations.setProperty("Info", info.toString());
+         correlations.show();
+      }
 
-         for (int i=0; i< nTargets; i++) {
-            plot.addPoints(xPoints,dPoints[i],Plot.LINE);
-            plot.addLabel(0,((double)i+1)/(nTargets+1), "Neuron " + (nTargets-1-i)); 
+      // Show how far each frame was moved
+      if (correctMotion && extractor.getShifts() != null) {
+         int[][] shifts = extractor.getShifts();
+         ResultsTable rt = new ResultsTable();
+         for (int f = 0; f < shifts[0].length; f++) {
+            rt.incrementCounter();
+            rt.addValue("Frame", f+1);
+            rt.addValue("X Shift", shifts[0][f]);
+            rt.addValue("Y Shift", shifts[1][f]);
          }
-         plot.show();
+         rt.show("Frame Shifts");
       }
 
       if (displayIds) {
@@ -200,8 +546,303 @@ public class compress_stack_ implements PlugIn {
 
       if (displayMatrix) {
          // Display the data matrix containing the fluorescence traces
-         ImagePlus output = new ImagePlus("Data Matrix",stack);
+         ImagePlus output = new ImagePlus("Data Matrix",matrix.getStack());
          output.show();
       }
     }
+
+    // Traces of footprints shaped as chosen, neuropil-corrected if asked for, from
+    // the stack or from a streamed TIFF file. Returns null if there are none.
+    private double[][] extractFootprints(ImagePlus img, Roi[] shapes, int[] xpoints, int[] ypoints,
+                                         int nTargets) {
+      FootprintMatrix.Builder builder = new FootprintMatrix.Builder(img.getWidth(), img.getHeight());
+      for (int i = 0; i < nTargets; i++) {
+         if (roiShape == MANAGER)
+            builder.addRoi(shapes[i]);
+         else if (roiShape == DISK)
+            builder.addDisk(xpoints[i], ypoints[i], cRadius);
+         else if (roiShape == WEIGHTS)
+            builder.addWeights(0, 0, weightImages.getStack().getProcessor(i+1));
+         else
+            builder.addWeights(xpoints[i]-cRadius, ypoints[i]-cRadius, box(cRadius));
+      }
+      FootprintMatrix neuropil = subtractNeuropil ?
+         builder.buildNeuropil(innerRadius, outerRadius, true) : null;
+      FootprintExtractor extractor = new FootprintExtractor(builder.build(true), neuropil);
+      extractor.setThreads(nThreads);
+
+      double[][] traces;
+      if (streamTiff) {
+         OpenDialog od = new OpenDialog("Choose a TIFF stack to stream", null);
+         if (od.getFileName() == null)
+            return null;
+         TiffStreamReader reader = null;
+         try {
+            reader = new TiffStreamReader(od.getDirectory() + od.getFileName());
+            if (reader.getWidth() != img.getWidth() || reader.getHeight() != img.getHeight()) {
+               IJ.error("Stack must be the same size as the image with the targets!");
+               return null;
+            }
+            traces = extractor.extract(reader);
+         } catch (IOException e) {
+            IJ.error("Error reading TIFF file: " + e.getMessage());
+            return null;
+         } finally {
+            if (reader != null)
+               closeQuietly(reader);
+         }
+      } else {
+         traces = extractor.extract(img.getStack());
+      }
+
+      // Take away the part of the neuropil that leaks into each cell
+      if (neuropil != null) {
+         double[][] around = extractor.getNeuropil();
+         for (int i = 0; i < traces.length; i++)
+            for (int f = 0; f < traces[i].length; f++)
+               traces[i][f] -= neuropilFactor*around[i][f];
+      }
+      return traces;
+    }
+
+    // A (2r+1)^2 square of ones
+    private static ImageProcessor box(int r) {
+      ImageProcessor ip = new FloatProcessor(2*r+1, 2*r+1);
+      ip.setValue(1);
+      ip.fill();
+      return ip;
+    }
+
+    // Area selections in the ROI Manager, if it is open
+    private static Roi[] managerShapes() {
+      RoiManager manager = RoiManager.getInstance();
+      if (manager == null)
+         return new Roi[0];
+      java.util.List<Roi> shapes = new ArrayList<Roi>();
+      for (Roi roi : manager.getRoisAsArray())
+         if (roi.isArea())
+            shapes.add(roi);
+      return shapes.toArray(new Roi[shapes.size()]);
+    }
+
+    // Centers of the bounding boxes of some selections
+    private static Polygon centers(Roi[] shapes) {
+      int n = shapes.length;
+      int[] xs = new int[n], ys = new int[n];
+      for (int i = 0; i < n; i++) {
+         Rectangle bounds = shapes[i].getBounds();
+         xs[i] = bounds.x + bounds.width/2;
+         ys[i] = bounds.y + bounds.height/2;
+      }
+      return new Polygon(xs, ys, n);
+    }
+
+    // Ask for the file or folder an acquisition writes to and wait until it exists
+    private FrameSource openLiveSource(ImagePlus img) {
+      String path;
+      if (liveSource == 0) {
+         OpenDialog od = new OpenDialog("Choose the TIFF file being acquired", null);
+         if (od.getFileName() == null)
+            return null;
+         path = od.getDirectory() + od.getFileName();
+      } else {
+         path = IJ.getDirectory("Choose the folder frames are written to");
+         if (path == null)
+            return null;
+      }
+
+      IJ.resetEscape();
+      while (!IJ.escapePressed()) {
+         try {
+            if (liveSource == 1)
+               return new FolderSource(path);
+            TiffStreamReader reader = new TiffStreamReader(path);
+            reader.setGrowing(true);
+            if (reader.getWidth() != img.getWidth() || reader.getHeight() != img.getHeight()) {
+               IJ.error("Stack must be the same size as the image with the targets!");
+               closeQuietly(reader);
+               return null;
+            }
+            return reader;
+         } catch (IOException e) {
+            // The acquisition has not written its first frame yet
+            IJ.showStatus("Waiting for " + path + " (press Esc to cancel)");
+            IJ.wait(100);
+         }
+      }
+      return null;
+    }
+
+    // Ask for the live mode settings, and those of the closed loop if it is on.
+    // Returns false if canceled.
+    private boolean showLiveOptions() {
+      GenericDialog gd = new GenericDialog("Live Acquisition Options", IJ.getInstance());
+      gd.addChoice("Live Source:", LIVE_SOURCES, LIVE_SOURCES[liveSource]);
+      gd.addNumericField("Live Plot Frames:", plotFrames, 0);
+      gd.addNumericField("Live Plot Refreshes/s:", refreshRate, 1);
+      if (closedLoop) {
+         gd.addMessage("Closed Loop:");
+         gd.addChoice("Stimulate:", LOOP_RULES, LOOP_RULES[loopRule]);
+         gd.addNumericField("Activity Threshold:", loopThreshold, 2);
+         gd.addNumericField("Max Targets:", loopTargets, 0);
+         gd.addChoice("Send Masks To:", LOOP_SINKS, LOOP_SINKS[loopSink]);
+         gd.addStringField("Socket (host:port):", loopAddress);
+         gd.addNumericField("Latency Budget (ms):", loopBudget, 1);
+      }
+      gd.showDialog();
+      if (gd.wasCanceled())
+         return false;
+
+      liveSource    =  gd.getNextChoiceIndex();
+      plotFrames    =  (int) gd.getNextNumber();
+      refreshRate   =  gd.getNextNumber();
+      if (closedLoop) {
+         loopRule      =  gd.getNextChoiceIndex();
+         loopThreshold =  gd.getNextNumber();
+         loopTargets   =  (int) gd.getNextNumber();
+         loopSink      =  gd.getNextChoiceIndex();
+         loopAddress   =  gd.getNextString();
+         loopBudget    =  gd.getNextNumber();
+      }
+      return true;
+    }
+
+    // Whether the pixels around the targets fit into the cache, saying so if not
+    private boolean fitsCache(long bytes) {
+      if (ExtractionCache.fits(bytes))
+         return true;
+      IJ.log("Pixels not cached: " + bytes/(1024*1024) + " MB is more than the cache holds ("
+             + ExtractionCache.getCapacity()/(1024*1024) + " MB)");
+      return false;
+    }
+
+    // Events inferred as the dF/F baseline is computed, on the same window
+    private EventDetector newEventDetector(int nTargets) {
+      return new EventDetector(nTargets, eventTau, eventThreshold,
+                               Math.max(1, deltaWindow), deltaPercentile);
+    }
+
+    // A trace file for the traces and, unless it is null, the data matrix, with
+    // the settings of this run in its header
+    private TraceFile.Writer openTraceFile(File file, int nTargets, DataMatrixStore matrix)
+                                                                    throws IOException {
+      Map<String, String> params = new LinkedHashMap<String, String>();
+      params.put("cellRadius", Integer.toString(cRadius));
+      params.put("roiShape", ROI_SHAPES[roiShape]);
+      if (roiShape == WEIGHTS)
+         params.put("weights", weightImages.getTitle());
+      params.put("traceValue", RoiReducer.NAMES[traceValue]);
+      params.put("percentile", Double.toString(percentile));
+      params.put("sorted", Boolean.toString(sortTraces));
+      if (subtractNeuropil)
+         params.put("neuropilFactor", Double.toString(neuropilFactor));
+      params.put("motionCorrected", Boolean.toString(correctMotion));
+      return new TraceFile.Writer(file, nTargets, matrix != null ? matrix.getMaxima() : 0,
+                                  matrix != null ? matrix.getBitDepth() : 0, params);
+    }
+
+    // Finish the trace file the extractor wrote to, if any
+    private void closeTraceFile(TraceExtractor extractor) throws IOException {
+      TraceFile.Writer writer = extractor.getWriter();
+      if (writer == null)
+         return;
+      writer.close();
+      IJ.log("Traces of " + writer.getFrames() + " frames saved");
+    }
+
+    private void closeQuietly(TraceFile.Writer writer) {
+      try {
+         writer.close();
+      } catch (IOException e) {
+         // The file is incomplete, which the reader will tell
+      }
+    }
+
+    private void closeQuietly(DataMatrixStore matrix) {
+      try {
+         matrix.close();
+      } catch (IOException e) {
+         // The temporary file is removed on exit anyway
+      }
+    }
+
+    // The closed loop of live mode: the targets mapped through a calibration file
+    // (or the default calibration), the chosen rule and where the masks go. Null
+    // if cancelled or the receiver can not be reached.
+    private ClosedLoop newClosedLoop(ImagePlus img, int[] xpoints, int[] ypoints) {
+      MaskGenerator generator = new MaskGenerator();
+      OpenDialog od = new OpenDialog("Choose a calibration file", null);
+      if (od.getFileName() == null) {
+         IJ.showMessage("Using arbitrary calibration values!");
+      } else {
+         try {
+            generator = MaskGenerator.read(od.getDirectory() + od.getFileName());
+         } catch (IOException e) {
+            IJ.error("Error parsing calibration file!");
+            return null;
+         }
+      }
+      MaskSequence targets = new MaskSequence(generator, generator.getScaleOffset(img.getHeight()),
+                                              xpoints, ypoints);
+      int k = Math.max(1, Math.min(xpoints.length, loopTargets));
+      ClosedLoop.Rule rule = loopRule == 0 ? ClosedLoop.above(loopThreshold, k) : ClosedLoop.strongest(k);
+
+      MaskSink sink;
+      try {
+         if (loopSink == 0) {
+            int colon = loopAddress.lastIndexOf(':');
+            int port = colon > 0 ? (int) ij.util.Tools.parseDouble(loopAddress.substring(colon+1), -1) : -1;
+            if (port < 0) {
+               IJ.error("The socket must be given as host:port!");
+               return null;
+            }
+            sink = new MaskSink.SocketSink(loopAddress.substring(0, colon), port, generator.outSize);
+         } else {
+            SaveDialog sd = new SaveDialog("Send Masks To...", "masks", ".slm");
+            if (sd.getFileName() == null)
+               return null;
+            sink = new MaskSink.FileSink(new File(sd.getDirectory(), sd.getFileName()), generator.outSize);
+         }
+      } catch (IOException e) {
+         IJ.error("Could not open the mask receiver: " + e.getMessage());
+         return null;
+      }
+      ClosedLoop loop = new ClosedLoop(targets, rule, sink);
+      loop.setBudget(loopBudget);
+      return loop;
+    }
+
+    // How long each stage of the closed loop took
+    private void showLatency(ClosedLoop loop) {
+      ResultsTable rt = new ResultsTable();
+      for (int s = 0; s < ClosedLoop.STAGES.length; s++) {
+         LatencyHistogram latency = loop.getLatency(s);
+         rt.incrementCounter();
+         rt.addValue("Stage", ClosedLoop.STAGES[s]);
+         rt.addValue("Frames", latency.getCount());
+         rt.addValue("Mean (us)", latency.getMean()/1e3);
+         rt.addValue("Median (us)", latency.getPercentile(0.5)/1e3);
+         rt.addValue("99% (us)", latency.getPercentile(0.99)/1e3);
+         rt.addValue("Max (us)", latency.getMax()/1e3);
+      }
+      rt.show("Closed Loop Latency");
+      IJ.log("Closed loop: " + loop.getFrames() + " masks sent, " + loop.getOverBudget()
+             + " over the " + loopBudget + " ms budget");
+    }
+
+    private void closeQuietly(ClosedLoop loop) {
+      try {
+         loop.close();
+      } catch (IOException e) {
+         // The receiver has gone anyway
+      }
+    }
+
+    private void closeQuietly(FrameSource reader) {
+      try {
+         reader.close();
+      } catch (IOException e) {
+         // Nothing left to read from it anyway
+      }
+    }
 }
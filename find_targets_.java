@@ -0,0 +1,52 @@
+import ij.*;
+import ij.gui.*;
+import ij.plugin.PlugIn;
+
+/**
+* Selects the cells in the current image (e.g. a projection from project_stack_)
+* as a point selection, ready for compress_stack_ or choose_targets_. Uses
+* MaximaDetector instead of ImageJ's Find Maxima command, so it is quick enough
+* to run again and again while tuning the threshold.
+*/
+
+public class find_targets_ implements PlugIn {
+
+   private static double threshold = 100;
+   private static int separation = 4;
+   private static boolean subPixel;
+
+   public void run(String arg) {
+      ImagePlus img = ij.WindowManager.getCurrentImage();
+      if (img == null) {
+         IJ.error("No image present!");
+         return;
+      }
+      if (img.getBitDepth() == 24) {
+         IJ.error("Color images are not supported!");
+         return;
+      }
+
+      GenericDialog gd = new GenericDialog("Find Targets", IJ.getInstance());
+      gd.addNumericField("Threshold (above local minimum):", threshold, 1);
+      gd.addNumericField("Min Separation (px):", separation, 0);
+      gd.addCheckbox("Sub-pixel Centroids?", subPixel);
+      gd.showDialog();
+      if (gd.wasCanceled())
+         return;
+      threshold  = gd.getNextNumber();
+      separation = (int) gd.getNextNumber();
+      subPixel   = gd.getNextBoolean();
+
+      MaximaDetector detector = new MaximaDetector(threshold, separation);
+      detector.setSubPixel(subPixel);
+      detector.setThreads(Prefs.getThreads());
+      PointRoi maxima = detector.detect(img.getProcessor());
+      if (maxima == null) {
+         img.deleteRoi();
+         IJ.showStatus("No targets found");
+         return;
+      }
+      img.setRoi(maxima);
+      IJ.showStatus(maxima.getPolygon().npoints + " targets found");
+   }
+}
@@ -0,0 +1,87 @@
+import java.io.*;
+import ij.*;
+import ij.io.*;
+import ij.gui.*;
+import ij.plugin.PlugIn;
+
+/**
+* Computes the mean, maximum, standard deviation and local correlation
+* projections of a stack in a single pass over it (see StackProjector), for
+* picking targets before running compress_stack_ or choose_targets_. The
+* stack can also be streamed from a TIFF file that is too large to open.
+* The projections are shown as one stack, starting on the chosen slice, so
+* targets can be selected on it straight away.
+*/
+
+public class project_stack_ implements PlugIn {
+
+   private int nThreads, showFirst;
+   private boolean streamTiff;
+
+   public void run(String arg) {
+      nThreads = Prefs.getThreads();
+      showFirst = StackProjector.CORRELATION;
+
+      GenericDialog gd = new GenericDialog("Stack Projections", IJ.getInstance());
+      gd.addNumericField("Threads:", nThreads, 0);
+      gd.addChoice("Show First:", StackProjector.NAMES, StackProjector.NAMES[showFirst]);
+      gd.addCheckbox("Stream Stack From TIFF File?", false);
+      gd.showDialog();
+      if (gd.wasCanceled())
+         return;
+      nThreads = (int) gd.getNextNumber();
+      showFirst = gd.getNextChoiceIndex();
+      streamTiff = gd.getNextBoolean();
+
+      ImageStack projections;
+      String title;
+      long start = System.currentTimeMillis();
+      if (streamTiff) {
+         OpenDialog od = new OpenDialog("Choose a TIFF stack to stream", null);
+         if (od.getFileName() == null)
+            return;
+         title = od.getFileName();
+         TiffStreamReader reader;
+         try {
+            reader = new TiffStreamReader(od.getDirectory() + od.getFileName());
+         } catch (IOException e) {
+            IJ.error("Error opening TIFF file: " + e.getMessage());
+            return;
+         }
+         StackProjector projector = new StackProjector(reader.getWidth(), reader.getHeight());
+         projector.setThreads(nThreads);
+         try {
+            projections = projector.project(reader);
+         } catch (IOException e) {
+            IJ.error("Error reading TIFF file: " + e.getMessage());
+            return;
+         } finally {
+            try {
+               reader.close();
+            } catch (IOException e) {
+               // Nothing left to read from it anyway
+            }
+         }
+      } else {
+         ImagePlus img = ij.WindowManager.getCurrentImage();
+         if (img == null) {
+            IJ.error("No image present!");
+            return;
+         }
+         if (img.getBitDepth() == 24) {
+            IJ.error("Color stacks are not supported!");
+            return;
+         }
+         title = img.getTitle();
+         StackProjector projector = new StackProjector(img.getWidth(), img.getHeight());
+         projector.setThreads(nThreads);
+         projections = projector.project(img.getStack());
+      }
+      IJ.showStatus("Projections done in " + (System.currentTimeMillis() - start) + " ms");
+
+      ImagePlus output = new ImagePlus("Projections of " + title, projections);
+      output.setSlice(showFirst + 1);
+      output.resetDisplayRange();
+      output.show();
+   }
+}